@@ -0,0 +1,287 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.benchmarks;
+
+import com.io7m.upgate.core.UConfiguration;
+import com.io7m.upgate.core.UGroup;
+import com.io7m.upgate.core.UGroupDatabase.UGroupDatabaseEntry;
+import com.io7m.upgate.core.UUser;
+import com.io7m.upgate.core.UUserDatabase.UUserDatabaseEntry;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Functions to generate synthetic configurations and databases. User
+ * {@code i} is named {@code u<i>} and has ID {@code 10000 + i}; it has a
+ * primary group {@code g<i>} with the same ID, and is the only member of
+ * that group.
+ */
+
+public final class UBenchmarkData
+{
+  private static final String SHELL = "/sbin/nologin";
+  private static final int BASE_ID = 10_000;
+  private static final int UNRELATED_ID = 1_000_000;
+
+  private UBenchmarkData()
+  {
+
+  }
+
+  /**
+   * @param index The index
+   *
+   * @return User {@code index}
+   */
+
+  public static UUser user(
+    final int index)
+  {
+    final var id = BASE_ID + index;
+    return new UUser(id, id, "u" + index, SHELL);
+  }
+
+  /**
+   * Generate a configuration.
+   *
+   * @param size The number of users and groups
+   *
+   * @return The configuration
+   */
+
+  public static UConfiguration configuration(
+    final int size)
+  {
+    final var users = new ArrayList<UUser>(size);
+    final var groups = new ArrayList<UGroup>(size);
+    for (int index = 0; index < size; ++index) {
+      final var user = user(index);
+      users.add(user);
+      groups.add(new UGroup(
+        user.groupId(),
+        "g" + index,
+        Map.of(user.name(), user)
+      ));
+    }
+    return new UConfiguration(List.copyOf(users), List.copyOf(groups));
+  }
+
+  /**
+   * Generate user database entries. The first {@code overlap} percent of
+   * the entries match the users of {@link #configuration(int)} exactly,
+   * and the rest are unrelated to the configuration.
+   *
+   * @param size    The number of entries
+   * @param overlap The percentage of entries that match the configuration
+   *
+   * @return The entries
+   */
+
+  public static List<UUserDatabaseEntry> userEntries(
+    final int size,
+    final int overlap)
+  {
+    final var matching = matching(size, overlap);
+    final var entries = new ArrayList<UUserDatabaseEntry>(size);
+    for (int index = 0; index < size; ++index) {
+      if (index < matching) {
+        final var user = user(index);
+        entries.add(new UUserDatabaseEntry(
+          user.name(), user.id(), user.groupId(), user.shell()));
+      } else {
+        final var id = UNRELATED_ID + index;
+        entries.add(new UUserDatabaseEntry("x" + index, id, id, SHELL));
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Generate group database entries. The first {@code overlap} percent of
+   * the entries match the groups of {@link #configuration(int)} exactly,
+   * and the rest are unrelated to the configuration.
+   *
+   * @param size    The number of entries
+   * @param overlap The percentage of entries that match the configuration
+   *
+   * @return The entries
+   */
+
+  public static List<UGroupDatabaseEntry> groupEntries(
+    final int size,
+    final int overlap)
+  {
+    final var matching = matching(size, overlap);
+    final var entries = new ArrayList<UGroupDatabaseEntry>(size);
+    for (int index = 0; index < size; ++index) {
+      if (index < matching) {
+        final var user = user(index);
+        entries.add(new UGroupDatabaseEntry(
+          "g" + index, user.groupId(), List.of(user.name())));
+      } else {
+        final var id = UNRELATED_ID + index;
+        entries.add(new UGroupDatabaseEntry(
+          "y" + index, id, List.of("x" + index)));
+      }
+    }
+    return entries;
+  }
+
+  private static int matching(
+    final int size,
+    final int overlap)
+  {
+    return (int) (((long) size * (long) overlap) / 100L);
+  }
+
+  /**
+   * Write the configuration produced by {@link #configuration(int)} as an
+   * XML document.
+   *
+   * @param file The output file
+   * @param size The number of users and groups
+   *
+   * @throws IOException On errors
+   */
+
+  public static void writeConfiguration(
+    final Path file,
+    final int size)
+    throws IOException
+  {
+    try (var writer = Files.newBufferedWriter(file)) {
+      writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n");
+      writer.write("<Configuration xmlns=\"urn:com.io7m.upgate:1\">\n");
+      writer.write("  <Users>\n");
+      for (int index = 0; index < size; ++index) {
+        final var user = user(index);
+        writer.write(
+          "    <User ID=\"%d\" GID=\"%d\" Name=\"%s\" Shell=\"%s\"/>\n"
+            .formatted(
+              Integer.valueOf(user.id()),
+              Integer.valueOf(user.groupId()),
+              user.name(),
+              user.shell()));
+      }
+      writer.write("  </Users>\n");
+      writer.write("  <Groups>\n");
+      for (int index = 0; index < size; ++index) {
+        final var user = user(index);
+        writer.write("    <Group ID=\"%d\" Name=\"g%d\">\n".formatted(
+          Integer.valueOf(user.groupId()),
+          Integer.valueOf(index)));
+        writer.write("      <GroupMember User=\"%s\"/>\n".formatted(
+          user.name()));
+        writer.write("    </Group>\n");
+      }
+      writer.write("  </Groups>\n");
+      writer.write("</Configuration>\n");
+    }
+  }
+
+  /**
+   * Write the entries produced by {@link #userEntries(int, int)} as a
+   * passwd(5) file.
+   *
+   * @param file    The output file
+   * @param size    The number of entries
+   * @param overlap The percentage of entries that match the configuration
+   *
+   * @throws IOException On errors
+   */
+
+  public static void writePasswd(
+    final Path file,
+    final int size,
+    final int overlap)
+    throws IOException
+  {
+    try (var writer = Files.newBufferedWriter(file)) {
+      for (final var entry : userEntries(size, overlap)) {
+        writer.write(String.join(
+          ":",
+          entry.userName(),
+          "x",
+          Integer.toUnsignedString(entry.uid()),
+          Integer.toUnsignedString(entry.gid()),
+          "",
+          "/home/" + entry.userName(),
+          entry.shell()
+        ));
+        writer.write('\n');
+      }
+    }
+  }
+
+  /**
+   * Write the entries produced by {@link #groupEntries(int, int)} as a
+   * group(5) file.
+   *
+   * @param file    The output file
+   * @param size    The number of entries
+   * @param overlap The percentage of entries that match the configuration
+   *
+   * @throws IOException On errors
+   */
+
+  public static void writeGroup(
+    final Path file,
+    final int size,
+    final int overlap)
+    throws IOException
+  {
+    try (var writer = Files.newBufferedWriter(file)) {
+      for (final var entry : groupEntries(size, overlap)) {
+        writer.write(String.join(
+          ":",
+          entry.groupName(),
+          "x",
+          Integer.toUnsignedString(entry.gid()),
+          String.join(",", entry.members())
+        ));
+        writer.write('\n');
+      }
+    }
+  }
+
+  /**
+   * Delete a directory and its contents.
+   *
+   * @param directory The directory
+   *
+   * @throws IOException On errors
+   */
+
+  public static void deleteDirectory(
+    final Path directory)
+    throws IOException
+  {
+    try (var stream = Files.walk(directory)) {
+      final var paths = stream.sorted(Comparator.reverseOrder()).toList();
+      for (final var path : paths) {
+        Files.deleteIfExists(path);
+      }
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.benchmarks;
+
+import com.io7m.upgate.core.UConfiguration;
+import com.io7m.upgate.core.UConfigurationParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for configuration parsing.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UConfigurationParseBenchmark
+{
+  /**
+   * The number of users and groups in the configuration.
+   */
+
+  @Param({"1000", "10000", "100000"})
+  private int size;
+
+  private Path directory;
+  private Path file;
+  private UConfigurationParser parser;
+
+  /**
+   * Benchmarks for configuration parsing.
+   */
+
+  public UConfigurationParseBenchmark()
+  {
+
+  }
+
+  /**
+   * Generate the configuration file.
+   *
+   * @throws Exception On errors
+   */
+
+  @Setup
+  public void setup()
+    throws Exception
+  {
+    this.directory = Files.createTempDirectory("upgate-benchmarks");
+    this.file = this.directory.resolve("config.xml");
+    UBenchmarkData.writeConfiguration(this.file, this.size);
+    this.parser = UConfigurationParser.create();
+  }
+
+  /**
+   * Delete the configuration file.
+   *
+   * @throws Exception On errors
+   */
+
+  @TearDown
+  public void tearDown()
+    throws Exception
+  {
+    UBenchmarkData.deleteDirectory(this.directory);
+  }
+
+  /**
+   * @return The parsed configuration
+   *
+   * @throws Exception On errors
+   */
+
+  @Benchmark
+  public UConfiguration parse()
+    throws Exception
+  {
+    return this.parser.parse(this.file);
+  }
+}
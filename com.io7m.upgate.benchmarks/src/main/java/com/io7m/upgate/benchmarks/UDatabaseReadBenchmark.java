@@ -0,0 +1,127 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.benchmarks;
+
+import com.io7m.upgate.core.UGroupDatabase;
+import com.io7m.upgate.core.UUserDatabase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for reading (and indexing) the passwd and group files.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UDatabaseReadBenchmark
+{
+  /**
+   * The number of entries in each file.
+   */
+
+  @Param({"1000", "10000", "100000"})
+  private int size;
+
+  private Path directory;
+  private Path passwd;
+  private Path group;
+
+  /**
+   * Benchmarks for reading the passwd and group files.
+   */
+
+  public UDatabaseReadBenchmark()
+  {
+
+  }
+
+  /**
+   * Generate the passwd and group files.
+   *
+   * @throws IOException On errors
+   */
+
+  @Setup
+  public void setup()
+    throws IOException
+  {
+    this.directory = Files.createTempDirectory("upgate-benchmarks");
+    this.passwd = this.directory.resolve("passwd");
+    this.group = this.directory.resolve("group");
+    UBenchmarkData.writePasswd(this.passwd, this.size, 0);
+    UBenchmarkData.writeGroup(this.group, this.size, 0);
+  }
+
+  /**
+   * Delete the passwd and group files.
+   *
+   * @throws IOException On errors
+   */
+
+  @TearDown
+  public void tearDown()
+    throws IOException
+  {
+    UBenchmarkData.deleteDirectory(this.directory);
+  }
+
+  /**
+   * @return The user database
+   *
+   * @throws IOException On errors
+   */
+
+  @Benchmark
+  public UUserDatabase readPasswd()
+    throws IOException
+  {
+    return UUserDatabase.fromFiles(this.passwd);
+  }
+
+  /**
+   * @return The group database
+   *
+   * @throws IOException On errors
+   */
+
+  @Benchmark
+  public UGroupDatabase readGroup()
+    throws IOException
+  {
+    return UGroupDatabase.fromFiles(this.group);
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.benchmarks;
+
+import com.io7m.upgate.core.UAdjustmentType;
+import com.io7m.upgate.core.UConfiguration;
+import com.io7m.upgate.core.UDelta;
+import com.io7m.upgate.core.UException;
+import com.io7m.upgate.core.UGroupDatabase;
+import com.io7m.upgate.core.UUserDatabase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for delta calculation.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UDeltaBenchmark
+{
+  /**
+   * The number of users and groups in the configuration and the databases.
+   */
+
+  @Param({"1000", "10000", "100000"})
+  private int size;
+
+  /**
+   * The percentage of database entries that already match the
+   * configuration.
+   */
+
+  @Param({"0", "50", "100"})
+  private int overlap;
+
+  private UConfiguration configuration;
+  private UUserDatabase users;
+  private UGroupDatabase groups;
+
+  /**
+   * Benchmarks for delta calculation.
+   */
+
+  public UDeltaBenchmark()
+  {
+
+  }
+
+  /**
+   * Generate the configuration and databases.
+   */
+
+  @Setup
+  public void setup()
+  {
+    this.configuration =
+      UBenchmarkData.configuration(this.size);
+    this.users =
+      new UUserDatabase(UBenchmarkData.userEntries(this.size, this.overlap));
+    this.groups =
+      new UGroupDatabase(UBenchmarkData.groupEntries(this.size, this.overlap));
+  }
+
+  /**
+   * @return The adjustments
+   *
+   * @throws UException On errors
+   */
+
+  @Benchmark
+  public List<UAdjustmentType> delta()
+    throws UException
+  {
+    return UDelta.delta(this.users, this.groups, this.configuration);
+  }
+}
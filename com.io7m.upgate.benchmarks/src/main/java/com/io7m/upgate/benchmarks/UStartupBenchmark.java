@@ -0,0 +1,112 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.benchmarks;
+
+import com.io7m.upgate.core.UMain;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A benchmark for the time taken by a single "apply" command in a fresh
+ * JVM: the class loading, schema compilation, parsing, and database reads
+ * that a short-lived invocation pays for every time. Each fork measures
+ * exactly one invocation. The JVM's own startup time is not included; run
+ * with {@code -jvmArgsAppend -XX:SharedArchiveFile=...} to measure the
+ * effect of an AppCDS archive.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+public class UStartupBenchmark
+{
+  private Path directory;
+  private Path file;
+
+  /**
+   * A benchmark for the time taken by a single "apply" command.
+   */
+
+  public UStartupBenchmark()
+  {
+
+  }
+
+  /**
+   * Generate an empty configuration, so that the command has nothing to
+   * do.
+   *
+   * @throws Exception On errors
+   */
+
+  @Setup
+  public void setup()
+    throws Exception
+  {
+    this.directory = Files.createTempDirectory("upgate-benchmarks");
+    this.file = this.directory.resolve("config.xml");
+    UBenchmarkData.writeConfiguration(this.file, 0);
+  }
+
+  /**
+   * Delete the configuration.
+   *
+   * @throws Exception On errors
+   */
+
+  @TearDown
+  public void tearDown()
+    throws Exception
+  {
+    UBenchmarkData.deleteDirectory(this.directory);
+  }
+
+  /**
+   * @return The exit code
+   */
+
+  @Benchmark
+  public int applyNoOp()
+  {
+    return UMain.mainExitless(new String[]{
+      "apply",
+      "--configuration",
+      this.file.toString(),
+      "--database-source",
+      "FILES",
+      "--dry-run",
+      "true",
+    });
+  }
+}
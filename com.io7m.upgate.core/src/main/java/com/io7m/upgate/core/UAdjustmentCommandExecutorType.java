@@ -26,13 +26,32 @@ import java.util.List;
 public interface UAdjustmentCommandExecutorType
 {
   /**
-   * Execute the given command as a separate process.
+   * Execute the given command as a separate process, writing the given
+   * lines of input to the process's standard input.
    *
    * @param command The command
+   * @param input   The lines of input
    *
    * @throws UException If the process fails
    */
 
-  void execute(List<String> command)
+  void execute(
+    List<String> command,
+    List<String> input)
     throws UException;
+
+  /**
+   * Execute the given command as a separate process.
+   *
+   * @param command The command
+   *
+   * @throws UException If the process fails
+   */
+
+  default void execute(
+    final List<String> command)
+    throws UException
+  {
+    this.execute(command, List.of());
+  }
 }
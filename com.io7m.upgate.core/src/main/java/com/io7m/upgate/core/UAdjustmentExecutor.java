@@ -21,6 +21,8 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -33,16 +35,22 @@ import java.util.Optional;
 public final class UAdjustmentExecutor
   implements UAdjustmentExecutorType
 {
+  private static final int BATCH_LIMIT = 1024;
+
   private static final Logger LOG =
     LoggerFactory.getLogger(UAdjustmentExecutor.class);
 
   private final UAdjustmentCommandExecutorType executor;
+  private final boolean batched;
 
   private UAdjustmentExecutor(
-    final UAdjustmentCommandExecutorType inExecutor)
+    final UAdjustmentCommandExecutorType inExecutor,
+    final boolean inBatched)
   {
     this.executor =
       Objects.requireNonNull(inExecutor, "executor");
+    this.batched =
+      inBatched;
   }
 
   /**
@@ -56,9 +64,59 @@ public final class UAdjustmentExecutor
   public static UAdjustmentExecutorType ofDryRun(
     final PrintWriter writer)
   {
-    return new UAdjustmentExecutor(command -> {
-      writer.println(String.join(" ", command));
-    });
+    return new UAdjustmentExecutor(dryRunCommands(writer), false);
+  }
+
+  /**
+   * Produce an executor that prints commands instead of running them. The
+   * executor batches adjustments in the same manner as
+   * {@link #ofSystemBatched()}.
+   *
+   * @param writer The output writer
+   *
+   * @return An executor
+   */
+
+  public static UAdjustmentExecutorType ofDryRunBatched(
+    final PrintWriter writer)
+  {
+    return new UAdjustmentExecutor(dryRunCommands(writer), true);
+  }
+
+  /**
+   * Produce an executor that prints commands instead of running them. The
+   * printed commands operate on the system rooted at {@code root}, in the
+   * same manner as {@link #ofSystem(Path, UMetrics)}.
+   *
+   * @param writer The output writer
+   * @param root   The root directory
+   *
+   * @return An executor
+   */
+
+  public static UAdjustmentExecutorType ofDryRun(
+    final PrintWriter writer,
+    final Path root)
+  {
+    return new UAdjustmentExecutor(rooted(dryRunCommands(writer), root), false);
+  }
+
+  /**
+   * Produce an executor that prints commands instead of running them. The
+   * printed commands operate on the system rooted at {@code root}, in the
+   * same manner as {@link #ofSystemBatched(Path, UMetrics)}.
+   *
+   * @param writer The output writer
+   * @param root   The root directory
+   *
+   * @return An executor
+   */
+
+  public static UAdjustmentExecutorType ofDryRunBatched(
+    final PrintWriter writer,
+    final Path root)
+  {
+    return new UAdjustmentExecutor(rooted(dryRunCommands(writer), root), true);
   }
 
   /**
@@ -69,7 +127,248 @@ public final class UAdjustmentExecutor
 
   public static UAdjustmentExecutorType ofSystem()
   {
-    return new UAdjustmentExecutor(command -> {
+    return new UAdjustmentExecutor(systemCommands(), false);
+  }
+
+  /**
+   * Produce an executor that executes commands on the system, batching
+   * adjustments where possible. Each run of consecutive user creations is
+   * executed as a single newusers(8) invocation, so the user database is
+   * locked and rewritten once per run instead of once per user. Users created
+   * this way are given a locked password and an empty home directory field,
+   * and no home directory is created; note that this differs from users
+   * created individually, for which useradd(8) records {@code /home/<name>}.
+   * All other adjustments are executed individually.
+   *
+   * @return An executor
+   */
+
+  public static UAdjustmentExecutorType ofSystemBatched()
+  {
+    return new UAdjustmentExecutor(systemCommands(), true);
+  }
+
+  /**
+   * Produce an executor that executes commands on the system, recording the
+   * time taken by each command in {@code metrics}.
+   *
+   * @param metrics The metrics
+   *
+   * @return An executor
+   *
+   * @see #ofSystem()
+   */
+
+  public static UAdjustmentExecutorType ofSystem(
+    final UMetrics metrics)
+  {
+    return new UAdjustmentExecutor(timed(systemCommands(), metrics), false);
+  }
+
+  /**
+   * Produce an executor that executes commands on the system, batching
+   * adjustments where possible, and recording the time taken by each command
+   * in {@code metrics}.
+   *
+   * @param metrics The metrics
+   *
+   * @return An executor
+   *
+   * @see #ofSystemBatched()
+   */
+
+  public static UAdjustmentExecutorType ofSystemBatched(
+    final UMetrics metrics)
+  {
+    return new UAdjustmentExecutor(timed(systemCommands(), metrics), true);
+  }
+
+  /**
+   * <p>Produce an executor that executes commands on the system whose
+   * passwd(5) and group(5) files are under {@code root}, such as a container
+   * image that is not running, recording the time taken by each command in
+   * {@code metrics}. useradd(8), usermod(8), groupadd(8), and groupmod(8)
+   * are passed {@code --prefix root}, and so operate on the files under
+   * {@code root} without using NSS. gpasswd(1) and newusers(8) have no such
+   * option and are passed {@code --root root}, and so chroot(2) into
+   * {@code root}; this requires the privilege to do so.</p>
+   *
+   * <p>If {@code root} is the root directory of the running system, this
+   * is equivalent to {@link #ofSystem(UMetrics)}.</p>
+   *
+   * @param root    The root directory
+   * @param metrics The metrics
+   *
+   * @return An executor
+   */
+
+  public static UAdjustmentExecutorType ofSystem(
+    final Path root,
+    final UMetrics metrics)
+  {
+    return new UAdjustmentExecutor(
+      timed(rooted(systemCommands(), root), metrics),
+      false
+    );
+  }
+
+  /**
+   * Produce an executor that executes commands on the system whose
+   * passwd(5) and group(5) files are under {@code root}, batching
+   * adjustments where possible, and recording the time taken by each
+   * command in {@code metrics}.
+   *
+   * @param root    The root directory
+   * @param metrics The metrics
+   *
+   * @return An executor
+   *
+   * @see #ofSystem(Path, UMetrics)
+   * @see #ofSystemBatched()
+   */
+
+  public static UAdjustmentExecutorType ofSystemBatched(
+    final Path root,
+    final UMetrics metrics)
+  {
+    return new UAdjustmentExecutor(
+      timed(rooted(systemCommands(), root), metrics),
+      true
+    );
+  }
+
+  /**
+   * Produce an executor that modifies the passwd(5), group(5), shadow(5),
+   * and gshadow(5) files under {@code root} directly, without running any
+   * external commands. All adjustments are applied in memory, and each
+   * modified file is then written once by writing a temporary file, syncing
+   * it, and atomically renaming it over the original, all while holding the
+   * lock files used by the shadow utilities. The shadow and gshadow files
+   * are updated only if they exist. Users created this way are given a
+   * locked password and a home directory path of {@code /home/<name>}, but
+   * no home directory is created.
+   *
+   * @param root The root directory (such as {@code /})
+   *
+   * @return An executor
+   */
+
+  public static UAdjustmentExecutorType ofFiles(
+    final Path root)
+  {
+    return new UAdjustmentExecutorFiles(root);
+  }
+
+  private static UAdjustmentCommandExecutorType dryRunCommands(
+    final PrintWriter writer)
+  {
+    return (command, input) -> {
+      if (input.isEmpty()) {
+        writer.println(String.join(" ", command));
+        return;
+      }
+
+      writer.print(String.join(" ", command));
+      writer.println(" <<'EOF'");
+      for (final var line : input) {
+        writer.println(line);
+      }
+      writer.println("EOF");
+    };
+  }
+
+  /**
+   * Produce an executor that executes commands through the given transport.
+   *
+   * @param transport The transport
+   * @param batched   {@code true} if adjustments should be batched in the
+   *                  manner of {@link #ofSystemBatched()}
+   *
+   * @return An executor
+   *
+   * @see UTransport
+   */
+
+  static UAdjustmentExecutorType ofTransport(
+    final List<String> transport,
+    final boolean batched)
+  {
+    return new UAdjustmentExecutor(
+      transported(systemCommands(), List.copyOf(transport)),
+      batched
+    );
+  }
+
+  private static UAdjustmentCommandExecutorType transported(
+    final UAdjustmentCommandExecutorType executor,
+    final List<String> transport)
+  {
+    return (command, input) -> {
+      executor.execute(UTransport.wrap(transport, command), input);
+    };
+  }
+
+  /**
+   * @param root The root directory
+   *
+   * @return {@code true} if {@code root} is the root of the running system
+   */
+
+  static boolean isSystemRoot(
+    final Path root)
+  {
+    return root.toAbsolutePath().normalize().getNameCount() == 0;
+  }
+
+  private static UAdjustmentCommandExecutorType rooted(
+    final UAdjustmentCommandExecutorType executor,
+    final Path root)
+  {
+    Objects.requireNonNull(executor, "executor");
+    Objects.requireNonNull(root, "root");
+
+    if (isSystemRoot(root)) {
+      return executor;
+    }
+
+    final var rootText = root.toAbsolutePath().normalize().toString();
+    return (command, input) -> {
+      final var program = command.get(0);
+      final var option = switch (program) {
+        case "gpasswd", "newusers" -> "--root";
+        default -> "--prefix";
+      };
+
+      final var result = new ArrayList<String>(command.size() + 2);
+      result.add(program);
+      result.add(option);
+      result.add(rootText);
+      result.addAll(command.subList(1, command.size()));
+      executor.execute(List.copyOf(result), input);
+    };
+  }
+
+  private static UAdjustmentCommandExecutorType timed(
+    final UAdjustmentCommandExecutorType executor,
+    final UMetrics metrics)
+  {
+    Objects.requireNonNull(executor, "executor");
+    Objects.requireNonNull(metrics, "metrics");
+
+    return (command, input) -> {
+      final var name = Path.of(command.get(0)).getFileName().toString();
+      final var start = System.nanoTime();
+      try {
+        executor.execute(command, input);
+      } finally {
+        metrics.commandCompleted(name, System.nanoTime() - start);
+      }
+    };
+  }
+
+  private static UAdjustmentCommandExecutorType systemCommands()
+  {
+    return (command, input) -> {
       try {
         LOG.debug("execute: {}", command);
 
@@ -77,6 +376,13 @@ public final class UAdjustmentExecutor
           new ProcessBuilder(command)
             .start();
 
+        try (var output = proc.outputWriter()) {
+          for (final var line : input) {
+            output.write(line);
+            output.newLine();
+          }
+        }
+
         final var exitCode = proc.waitFor();
         LOG.debug("execute: exit code {}", Integer.valueOf(exitCode));
 
@@ -104,7 +410,7 @@ public final class UAdjustmentExecutor
           List.of()
         );
       }
-    });
+    };
   }
 
   @Override
@@ -112,27 +418,173 @@ public final class UAdjustmentExecutor
     final List<UAdjustmentType> adjustments)
     throws UException
   {
+    final var sink = this.sink();
     for (final var adjustment : adjustments) {
-      this.executeAdjustment(adjustment);
+      sink.accept(adjustment);
+    }
+    sink.finish();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Each adjustment is executed as soon as it is accepted, except that
+   * a batching executor holds consecutive user creations until the run
+   * ends (or reaches 1024 users) so that they can be passed to newusers(8)
+   * together.</p>
+   */
+
+  @Override
+  public UAdjustmentSinkType sink()
+  {
+    return new Sink();
+  }
+
+  private final class Sink implements UAdjustmentSinkType
+  {
+    private final ArrayList<UAdjustmentUserCreate> run;
+
+    Sink()
+    {
+      this.run = new ArrayList<>();
+    }
+
+    @Override
+    public void accept(
+      final UAdjustmentType adjustment)
+      throws UException
+    {
+      Objects.requireNonNull(adjustment, "adjustment");
+
+      if (UAdjustmentExecutor.this.batched
+          && adjustment instanceof final UAdjustmentUserCreate c
+          && isNewusersSafe(c.user())) {
+        this.run.add(c);
+        if (this.run.size() >= BATCH_LIMIT) {
+          this.flush();
+        }
+        return;
+      }
+
+      this.flush();
+      UAdjustmentExecutor.this.executeAdjustment(adjustment);
+    }
+
+    /**
+     * Execute the held run of user creations. Users with names or shells
+     * that cannot be represented in the newusers input format are never
+     * held, and are left for useradd(8) to handle (and most likely
+     * reject).
+     */
+
+    private void flush()
+      throws UException
+    {
+      final var size = this.run.size();
+      if (size == 1) {
+        UAdjustmentExecutor.this.executeAdjustment(this.run.get(0));
+      } else if (size > 1) {
+        final var users = new ArrayList<UUser>(size);
+        for (final var create : this.run) {
+          users.add(create.user());
+        }
+        UAdjustmentExecutor.this.executeUserCreateBatch(users);
+      }
+      this.run.clear();
+    }
+
+    @Override
+    public void finish()
+      throws UException
+    {
+      this.flush();
     }
   }
 
+  private static boolean isNewusersSafe(
+    final UUser user)
+  {
+    return isNewusersSafe(user.name()) && isNewusersSafe(user.shell());
+  }
+
+  private static boolean isNewusersSafe(
+    final String text)
+  {
+    return text.indexOf(':') == -1
+           && text.indexOf('\n') == -1
+           && text.indexOf('\r') == -1;
+  }
+
+  private void executeUserCreateBatch(
+    final List<UUser> batch)
+    throws UException
+  {
+    /*
+     * The "NONE" crypt method causes newusers to store the password field
+     * verbatim, and so "!" yields a locked password. newusers creates any
+     * home directory that is named and missing, and has no option to
+     * prevent it, so the home directory field is left empty. Unlike users
+     * created by useradd, which records /home/<name> without creating it,
+     * users created in a batch therefore have an empty home directory.
+     */
+
+    final var input = new ArrayList<String>(batch.size());
+    for (final var user : batch) {
+      input.add(String.join(
+        ":",
+        user.name(),
+        "!",
+        Integer.toUnsignedString(user.id()),
+        Integer.toUnsignedString(user.groupId()),
+        "",
+        "",
+        user.shell()
+      ));
+    }
+
+    this.executor.execute(
+      List.of("newusers", "--crypt-method", "NONE"),
+      List.copyOf(input)
+    );
+  }
+
   private void executeAdjustment(
     final UAdjustmentType adjustment)
     throws UException
+  {
+    if (this.executeGroupAdjustment(adjustment)) {
+      return;
+    }
+    this.executeUserAdjustment(adjustment);
+  }
+
+  private boolean executeGroupAdjustment(
+    final UAdjustmentType adjustment)
+    throws UException
   {
     if (adjustment instanceof final UAdjustmentGroupChangeGID u) {
       this.executeGroupChangeGID(u);
-      return;
+      return true;
     }
     if (adjustment instanceof final UAdjustmentGroupChangeName u) {
       this.executeGroupChangeName(u);
-      return;
+      return true;
     }
     if (adjustment instanceof final UAdjustmentGroupCreate u) {
       this.executeGroupCreate(u);
-      return;
+      return true;
+    }
+    if (adjustment instanceof final UAdjustmentGroupSetMembers u) {
+      this.executeGroupSetMembers(u);
+      return true;
     }
+    return false;
+  }
+
+  private void executeUserAdjustment(
+    final UAdjustmentType adjustment)
+    throws UException
+  {
     if (adjustment instanceof final UAdjustmentUserChangeUID u) {
       this.executeUserChangeUID(u);
       return;
@@ -190,6 +642,23 @@ public final class UAdjustmentExecutor
     ));
   }
 
+  private void executeGroupSetMembers(
+    final UAdjustmentGroupSetMembers adjustment)
+    throws UException
+  {
+    /*
+     * A single gpasswd invocation replaces the entire member list,
+     * regardless of how many members are added or removed.
+     */
+
+    this.executor.execute(List.of(
+      "gpasswd",
+      "--members",
+      String.join(",", adjustment.members()),
+      adjustment.group().name()
+    ));
+  }
+
   private void executeUserChangeUID(
     final UAdjustmentUserChangeUID adjustment)
     throws UException
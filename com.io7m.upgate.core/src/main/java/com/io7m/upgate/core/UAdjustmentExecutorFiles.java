@@ -0,0 +1,595 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+import static java.lang.Integer.toUnsignedString;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * An executor that applies adjustments directly to the passwd(5), group(5),
+ * shadow(5), and gshadow(5) files under a root directory. All adjustments are
+ * applied to in-memory copies of the files, and each modified file is then
+ * written exactly once, atomically, while holding the same lock files that
+ * the shadow utilities use. If any adjustment cannot be applied, no file is
+ * written.
+ */
+
+final class UAdjustmentExecutorFiles
+  implements UAdjustmentExecutorType
+{
+  private static final Logger LOG =
+    LoggerFactory.getLogger(UAdjustmentExecutorFiles.class);
+
+  private static final int PASSWD_FIELDS = 7;
+  private static final int PASSWD_UID = 2;
+  private static final int PASSWD_GID = 3;
+  private static final int PASSWD_SHELL = 6;
+  private static final int GROUP_FIELDS = 4;
+  private static final int GROUP_GID = 2;
+  private static final int GROUP_MEMBERS = 3;
+  private static final int SHADOW_FIELDS = 9;
+  private static final int GSHADOW_FIELDS = 4;
+  private static final int GSHADOW_ADMINS = 2;
+  private static final int GSHADOW_MEMBERS = 3;
+
+  private final Path root;
+
+  /**
+   * An executor that applies adjustments to the files under {@code root}.
+   *
+   * @param inRoot The root directory
+   */
+
+  UAdjustmentExecutorFiles(
+    final Path inRoot)
+  {
+    this.root = Objects.requireNonNull(inRoot, "root");
+  }
+
+  private static UException errorIO(
+    final Path file,
+    final IOException e)
+  {
+    return new UException(
+      "I/O error.",
+      e,
+      "error-database-io",
+      Map.ofEntries(
+        Map.entry("File", file.toString()),
+        Map.entry("Message", String.valueOf(e.getMessage()))
+      ),
+      Optional.empty(),
+      List.of()
+    );
+  }
+
+  private static UException errorNonexistent(
+    final String code,
+    final String type,
+    final String name)
+  {
+    return new UException(
+      "The %s does not exist.".formatted(type.toLowerCase()),
+      code,
+      Map.of(type, name),
+      Optional.empty(),
+      List.of()
+    );
+  }
+
+  private static UException errorExists(
+    final String code,
+    final String type,
+    final String name)
+  {
+    return new UException(
+      "The %s already exists.".formatted(type.toLowerCase()),
+      code,
+      Map.of(type, name),
+      Optional.empty(),
+      List.of()
+    );
+  }
+
+  private static String renameMember(
+    final String members,
+    final String oldName,
+    final String newName)
+  {
+    if (members.isEmpty()) {
+      return members;
+    }
+
+    final var names = members.split(",", -1);
+    var changed = false;
+    for (int index = 0; index < names.length; ++index) {
+      if (names[index].equals(oldName)) {
+        names[index] = newName;
+        changed = true;
+      }
+    }
+    return changed ? String.join(",", names) : members;
+  }
+
+  @Override
+  public void execute(
+    final List<UAdjustmentType> adjustments)
+    throws UException
+  {
+    Objects.requireNonNull(adjustments, "adjustments");
+
+    final var etc = this.root.resolve("etc");
+    final var passwdFile = etc.resolve("passwd");
+    final var groupFile = etc.resolve("group");
+    final var shadowFile = etc.resolve("shadow");
+    final var gshadowFile = etc.resolve("gshadow");
+
+    final var files = new ArrayList<Path>(4);
+    files.add(passwdFile);
+    files.add(groupFile);
+    if (Files.isRegularFile(shadowFile)) {
+      files.add(shadowFile);
+    }
+    if (Files.isRegularFile(gshadowFile)) {
+      files.add(gshadowFile);
+    }
+
+    try (var ignored = Locks.acquire(etc, files)) {
+      final var state = new State(
+        load(passwdFile, PASSWD_FIELDS),
+        load(groupFile, GROUP_FIELDS),
+        files.contains(shadowFile)
+          ? load(shadowFile, SHADOW_FIELDS) : null,
+        files.contains(gshadowFile)
+          ? load(gshadowFile, GSHADOW_FIELDS) : null
+      );
+
+      for (final var adjustment : adjustments) {
+        state.apply(adjustment);
+      }
+      state.write();
+    }
+  }
+
+  private static UDatabaseFile load(
+    final Path file,
+    final int fieldCount)
+    throws UException
+  {
+    try {
+      return UDatabaseFile.load(file, fieldCount);
+    } catch (final IOException e) {
+      throw errorIO(file, e);
+    }
+  }
+
+  /**
+   * The in-memory state of the database files.
+   */
+
+  private static final class State
+  {
+    private final UDatabaseFile passwd;
+    private final UDatabaseFile group;
+    private final UDatabaseFile shadow;
+    private final UDatabaseFile gshadow;
+    private HashSet<String> groupIds;
+
+    State(
+      final UDatabaseFile inPasswd,
+      final UDatabaseFile inGroup,
+      final UDatabaseFile inShadow,
+      final UDatabaseFile inGshadow)
+    {
+      this.passwd = inPasswd;
+      this.group = inGroup;
+      this.shadow = inShadow;
+      this.gshadow = inGshadow;
+    }
+
+    void apply(
+      final UAdjustmentType adjustment)
+      throws UException
+    {
+      if (this.applyGroupAdjustment(adjustment)) {
+        return;
+      }
+      this.applyUserAdjustment(adjustment);
+    }
+
+    private boolean applyGroupAdjustment(
+      final UAdjustmentType adjustment)
+      throws UException
+    {
+      if (adjustment instanceof final UAdjustmentGroupChangeGID u) {
+        this.applyGroupChangeGID(u);
+        return true;
+      }
+      if (adjustment instanceof final UAdjustmentGroupChangeName u) {
+        this.applyGroupChangeName(u);
+        return true;
+      }
+      if (adjustment instanceof final UAdjustmentGroupCreate u) {
+        this.applyGroupCreate(u);
+        return true;
+      }
+      if (adjustment instanceof final UAdjustmentGroupSetMembers u) {
+        this.applyGroupSetMembers(u);
+        return true;
+      }
+      return false;
+    }
+
+    private void applyUserAdjustment(
+      final UAdjustmentType adjustment)
+      throws UException
+    {
+      if (adjustment instanceof final UAdjustmentUserChangeUID u) {
+        this.applyUserChangeUID(u);
+        return;
+      }
+      if (adjustment instanceof final UAdjustmentUserChangeName u) {
+        this.applyUserChangeName(u);
+        return;
+      }
+      if (adjustment instanceof final UAdjustmentUserCreate u) {
+        this.applyUserCreate(u);
+        return;
+      }
+      if (adjustment instanceof final UAdjustmentUserChangeShell u) {
+        this.applyUserChangeShell(u);
+        return;
+      }
+    }
+
+    private void applyGroupChangeGID(
+      final UAdjustmentGroupChangeGID adjustment)
+      throws UException
+    {
+      final var g = adjustment.group();
+      final var oldId = this.group.field(g.name(), GROUP_GID);
+      if (oldId == null) {
+        throw errorNonexistent("error-group-nonexistent", "Group", g.name());
+      }
+
+      final var newId = toUnsignedString(g.id());
+      this.group.setField(g.name(), GROUP_GID, newId);
+      this.groupIds = null;
+
+      /*
+       * Users with the group as their primary group keep it as their
+       * primary group, as with groupmod(8).
+       */
+
+      this.passwd.updateAll(
+        PASSWD_GID,
+        gid -> gid.equals(oldId) ? newId : gid
+      );
+    }
+
+    private void applyGroupChangeName(
+      final UAdjustmentGroupChangeName adjustment)
+      throws UException
+    {
+      final var g = adjustment.group();
+      final var oldName = adjustment.oldName();
+      if (this.group.contains(g.name())) {
+        throw errorExists("error-group-exists", "Group", g.name());
+      }
+      if (!this.group.rename(oldName, g.name())) {
+        throw errorNonexistent("error-group-nonexistent", "Group", oldName);
+      }
+      if (this.gshadow != null) {
+        this.gshadow.rename(oldName, g.name());
+      }
+    }
+
+    private void applyGroupCreate(
+      final UAdjustmentGroupCreate adjustment)
+      throws UException
+    {
+      final var g = adjustment.group();
+      if (this.group.contains(g.name())) {
+        throw errorExists("error-group-exists", "Group", g.name());
+      }
+
+      this.group.append(g.name(), "x", toUnsignedString(g.id()), "");
+      if (this.groupIds != null) {
+        this.groupIds.add(toUnsignedString(g.id()));
+      }
+      if (this.gshadow != null && !this.gshadow.contains(g.name())) {
+        this.gshadow.append(g.name(), "!", "", "");
+      }
+    }
+
+    private void applyGroupSetMembers(
+      final UAdjustmentGroupSetMembers adjustment)
+      throws UException
+    {
+      final var g = adjustment.group();
+      final var members = String.join(",", adjustment.members());
+      if (!this.group.setField(g.name(), GROUP_MEMBERS, members)) {
+        throw errorNonexistent("error-group-nonexistent", "Group", g.name());
+      }
+      if (this.gshadow != null) {
+        this.gshadow.setField(g.name(), GSHADOW_MEMBERS, members);
+      }
+    }
+
+    private void applyUserChangeUID(
+      final UAdjustmentUserChangeUID adjustment)
+      throws UException
+    {
+      final var user = adjustment.user();
+      final var newId = toUnsignedString(user.id());
+      if (!this.passwd.setField(user.name(), PASSWD_UID, newId)) {
+        throw errorNonexistent("error-user-nonexistent", "User", user.name());
+      }
+    }
+
+    private void applyUserChangeName(
+      final UAdjustmentUserChangeName adjustment)
+      throws UException
+    {
+      final var user = adjustment.user();
+      final var oldName = adjustment.oldName();
+      final var newName = user.name();
+      if (this.passwd.contains(newName)) {
+        throw errorExists("error-user-exists", "User", newName);
+      }
+      if (!this.passwd.rename(oldName, newName)) {
+        throw errorNonexistent("error-user-nonexistent", "User", oldName);
+      }
+      if (this.shadow != null) {
+        this.shadow.rename(oldName, newName);
+      }
+
+      /*
+       * Group memberships follow the user, as with usermod(8).
+       */
+
+      this.group.updateAll(
+        GROUP_MEMBERS,
+        members -> renameMember(members, oldName, newName)
+      );
+      if (this.gshadow != null) {
+        this.gshadow.updateAll(
+          GSHADOW_ADMINS,
+          members -> renameMember(members, oldName, newName)
+        );
+        this.gshadow.updateAll(
+          GSHADOW_MEMBERS,
+          members -> renameMember(members, oldName, newName)
+        );
+      }
+    }
+
+    private void applyUserCreate(
+      final UAdjustmentUserCreate adjustment)
+      throws UException
+    {
+      final var user = adjustment.user();
+      final var name = user.name();
+      if (this.passwd.contains(name)) {
+        throw errorExists("error-user-exists", "User", name);
+      }
+
+      /*
+       * useradd(8) refuses to create a user whose primary group does not
+       * exist. The set of group IDs is built on first use and kept up to
+       * date by group creations, so a run of creations costs a single scan
+       * of the group file.
+       */
+
+      if (this.groupIds == null) {
+        this.groupIds = this.group.fieldValues(GROUP_GID);
+      }
+      final var groupId = toUnsignedString(user.groupId());
+      if (!this.groupIds.contains(groupId)) {
+        throw new UException(
+          "The primary group of the user does not exist.",
+          "error-group-nonexistent",
+          Map.of("User", name, "Group ID", groupId),
+          Optional.empty(),
+          List.of()
+        );
+      }
+
+      this.passwd.append(
+        name,
+        "x",
+        toUnsignedString(user.id()),
+        toUnsignedString(user.groupId()),
+        "",
+        "/home/" + name,
+        user.shell()
+      );
+
+      if (this.shadow != null && !this.shadow.contains(name)) {
+        final var days =
+          LocalDate.now(ZoneOffset.UTC).toEpochDay();
+        this.shadow.append(
+          name, "!", Long.toString(days), "", "", "", "", "", "");
+      }
+    }
+
+    private void applyUserChangeShell(
+      final UAdjustmentUserChangeShell adjustment)
+      throws UException
+    {
+      final var user = adjustment.user();
+      if (!this.passwd.setField(user.name(), PASSWD_SHELL, user.shell())) {
+        throw errorNonexistent("error-user-nonexistent", "User", user.name());
+      }
+    }
+
+    void write()
+      throws UException
+    {
+      /*
+       * Groups are written before users, so that a crash between the two
+       * never leaves a user referring to a group that does not exist.
+       */
+
+      final var files = new ArrayList<UDatabaseFile>(4);
+      if (this.gshadow != null) {
+        files.add(this.gshadow);
+      }
+      files.add(this.group);
+      if (this.shadow != null) {
+        files.add(this.shadow);
+      }
+      files.add(this.passwd);
+
+      for (final var file : files) {
+        if (file.isModified()) {
+          try {
+            file.write();
+          } catch (final IOException e) {
+            throw errorIO(file.file(), e);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * The set of locks held while modifying the database: a {@code .lock}
+   * file created exclusively for each database file, in the same manner as
+   * the shadow utilities, and a lock on {@code .pwd.lock} as taken by
+   * lckpwdf(3).
+   */
+
+  private static final class Locks
+    implements AutoCloseable
+  {
+    private final List<Path> lockFiles;
+    private FileChannel channel;
+    private FileLock lock;
+
+    private Locks()
+    {
+      this.lockFiles = new ArrayList<>();
+    }
+
+    static Locks acquire(
+      final Path etc,
+      final List<Path> files)
+      throws UException
+    {
+      final var locks = new Locks();
+      try {
+        final var pwdLock = etc.resolve(".pwd.lock");
+        try {
+          locks.channel = FileChannel.open(pwdLock, CREATE, WRITE);
+          locks.lock = locks.channel.tryLock();
+        } catch (final IOException e) {
+          throw errorIO(pwdLock, e);
+        }
+        if (locks.lock == null) {
+          throw errorLocked(pwdLock);
+        }
+
+        final var pid =
+          Long.toString(ProcessHandle.current().pid());
+
+        for (final var file : files) {
+          final var lockFile =
+            file.resolveSibling(file.getFileName() + ".lock");
+          try {
+            Files.writeString(
+              lockFile,
+              pid,
+              StandardCharsets.US_ASCII,
+              CREATE_NEW,
+              WRITE
+            );
+          } catch (final FileAlreadyExistsException e) {
+            throw errorLocked(lockFile);
+          } catch (final IOException e) {
+            throw errorIO(lockFile, e);
+          }
+          locks.lockFiles.add(lockFile);
+        }
+        return locks;
+      } catch (final UException e) {
+        locks.close();
+        throw e;
+      }
+    }
+
+    private static UException errorLocked(
+      final Path file)
+    {
+      return new UException(
+        "The database is locked.",
+        "error-database-locked",
+        Map.of("Lock", file.toString()),
+        Optional.of(
+          "Wait for the process holding the lock to finish, "
+          + "or remove the lock if it is stale."),
+        List.of()
+      );
+    }
+
+    @Override
+    public void close()
+    {
+      for (final var file : this.lockFiles) {
+        try {
+          Files.deleteIfExists(file);
+        } catch (final IOException e) {
+          LOG.error("unable to remove lock {}: {}", file, e.getMessage());
+        }
+      }
+      this.lockFiles.clear();
+
+      try {
+        if (this.lock != null) {
+          this.lock.release();
+        }
+        if (this.channel != null) {
+          this.channel.close();
+        }
+      } catch (final IOException e) {
+        LOG.error("unable to release lock: {}", e.getMessage());
+      }
+    }
+  }
+}
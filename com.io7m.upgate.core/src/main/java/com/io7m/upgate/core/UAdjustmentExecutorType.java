@@ -17,7 +17,9 @@
 
 package com.io7m.upgate.core;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 
 /**
  * The interface exposed by adjustment executors.
@@ -35,4 +37,35 @@ public interface UAdjustmentExecutorType
 
   void execute(List<UAdjustmentType> adjustments)
     throws UException;
+
+  /**
+   * Produce a sink that executes the adjustments delivered to it, failing
+   * at the first one that fails. Executors that can act on each adjustment
+   * as it arrives do so; by default, adjustments are held and passed to
+   * {@link #execute(List)} when the sink is finished.
+   *
+   * @return A sink
+   */
+
+  default UAdjustmentSinkType sink()
+  {
+    final var held = new ArrayList<UAdjustmentType>();
+    return new UAdjustmentSinkType()
+    {
+      @Override
+      public void accept(
+        final UAdjustmentType adjustment)
+      {
+        held.add(Objects.requireNonNull(adjustment, "adjustment"));
+      }
+
+      @Override
+      public void finish()
+        throws UException
+      {
+        UAdjustmentExecutorType.this.execute(List.copyOf(held));
+        held.clear();
+      }
+    };
+  }
 }
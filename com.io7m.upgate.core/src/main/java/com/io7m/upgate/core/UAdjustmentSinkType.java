@@ -0,0 +1,59 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.core;
+
+/**
+ * <p>A consumer of adjustments, to which adjustments are delivered one at a
+ * time as they are calculated.</p>
+ *
+ * <p>A sink may act on each adjustment as soon as it is accepted, or may
+ * hold some or all adjustments until {@link #finish()} is called. A sink
+ * that has raised an exception must not be used further.</p>
+ *
+ * @see UDelta#delta(UUserDatabase, UGroupDatabase, UConfiguration,
+ * UAdjustmentSinkType)
+ * @see UAdjustmentExecutorType#sink()
+ */
+
+public interface UAdjustmentSinkType
+{
+  /**
+   * Accept an adjustment.
+   *
+   * @param adjustment The adjustment
+   *
+   * @throws UException On errors
+   */
+
+  void accept(UAdjustmentType adjustment)
+    throws UException;
+
+  /**
+   * Indicate that no more adjustments will be delivered, acting on any
+   * adjustments that are being held. The default implementation does
+   * nothing.
+   *
+   * @throws UException On errors
+   */
+
+  default void finish()
+    throws UException
+  {
+
+  }
+}
@@ -26,6 +26,7 @@ public sealed interface UAdjustmentType
   permits UAdjustmentGroupChangeGID,
   UAdjustmentGroupChangeName,
   UAdjustmentGroupCreate,
+  UAdjustmentGroupSetMembers,
   UAdjustmentUserChangeName,
   UAdjustmentUserChangeShell,
   UAdjustmentUserChangeUID,
@@ -0,0 +1,372 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * <p>A record of the files that were in place the last time a configuration
+ * was successfully applied: typically the configuration file itself and the
+ * passwd(5) and group(5) files. If none of the files have changed since, then
+ * applying the configuration again would have no effect.</p>
+ *
+ * <p>Each file is recorded with its size, modification time, and SHA-256
+ * digest. A file whose size and modification time are unchanged is assumed
+ * to be unchanged without reading it, unless it was modified so close to
+ * the time the state was captured that a later modification might not have
+ * changed the modification time; such files are compared by digest.</p>
+ */
+
+public final class UApplyState
+{
+  private static final Logger LOG =
+    LoggerFactory.getLogger(UApplyState.class);
+
+  private static final String VERSION = "1";
+  private static final Duration RACY_WINDOW = Duration.ofSeconds(1L);
+  private static final int BUFFER_SIZE = 65536;
+
+  private final Instant time;
+  private final List<FileState> files;
+
+  /**
+   * A record of files.
+   *
+   * @param inTime  The time at which capturing the state began; this must
+   *                not be later than the time any of the files were read
+   * @param inFiles The files
+   */
+
+  public UApplyState(
+    final Instant inTime,
+    final List<FileState> inFiles)
+  {
+    this.time = Objects.requireNonNull(inTime, "time");
+    this.files = List.copyOf(inFiles);
+  }
+
+  /**
+   * @return The time at which capturing the state began
+   */
+
+  public Instant time()
+  {
+    return this.time;
+  }
+
+  /**
+   * @return The recorded files
+   */
+
+  public List<FileState> files()
+  {
+    return this.files;
+  }
+
+  /**
+   * Record the current state of the given file.
+   *
+   * @param file The file
+   *
+   * @return The file state
+   *
+   * @throws IOException On errors
+   */
+
+  public static FileState captureFile(
+    final Path file)
+    throws IOException
+  {
+    final var absolute = file.toAbsolutePath();
+    final var size = Files.size(absolute);
+    final var modified = modifiedNanos(absolute);
+    return new FileState(absolute, size, modified, digest(absolute));
+  }
+
+  private static long modifiedNanos(
+    final Path file)
+    throws IOException
+  {
+    return Files.getLastModifiedTime(file).to(TimeUnit.NANOSECONDS);
+  }
+
+  static String digest(
+    final Path file)
+    throws IOException
+  {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+
+    final var buffer = new byte[BUFFER_SIZE];
+    try (var stream = Files.newInputStream(file)) {
+      while (true) {
+        final var r = stream.read(buffer);
+        if (r == -1) {
+          break;
+        }
+        digest.update(buffer, 0, r);
+      }
+    }
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  /**
+   * Load a state file. A state file that does not exist, or that cannot be
+   * understood, yields an empty state.
+   *
+   * @param file The state file
+   *
+   * @return The state, if any
+   *
+   * @throws IOException On I/O errors
+   */
+
+  public static Optional<UApplyState> load(
+    final Path file)
+    throws IOException
+  {
+    final var properties = new Properties();
+    try (var stream = Files.newInputStream(file)) {
+      properties.load(stream);
+    } catch (final NoSuchFileException e) {
+      return Optional.empty();
+    }
+
+    try {
+      return Optional.of(fromProperties(properties));
+    } catch (final IllegalArgumentException | NullPointerException e) {
+      LOG.warn("ignoring malformed state file {}: {}", file, e.getMessage());
+      return Optional.empty();
+    }
+  }
+
+  private static UApplyState fromProperties(
+    final Properties properties)
+  {
+    if (!VERSION.equals(properties.getProperty("version"))) {
+      throw new IllegalArgumentException("Unsupported version");
+    }
+
+    final var time =
+      Instant.parse(required(properties, "time"));
+    final var count =
+      Integer.parseInt(required(properties, "files"));
+
+    final var files = new ArrayList<FileState>(count);
+    for (int index = 0; index < count; ++index) {
+      final var prefix = "file." + index + ".";
+      files.add(new FileState(
+        Path.of(required(properties, prefix + "path")),
+        Long.parseLong(required(properties, prefix + "size")),
+        Long.parseLong(required(properties, prefix + "modified")),
+        required(properties, prefix + "sha256")
+      ));
+    }
+    return new UApplyState(time, files);
+  }
+
+  private static String required(
+    final Properties properties,
+    final String name)
+  {
+    return Objects.requireNonNull(
+      properties.getProperty(name), "Missing property " + name);
+  }
+
+  /**
+   * Save the state to the given file. The file is replaced atomically.
+   *
+   * @param file The state file
+   *
+   * @throws IOException On errors
+   */
+
+  public void save(
+    final Path file)
+    throws IOException
+  {
+    final var properties = new Properties();
+    properties.setProperty("version", VERSION);
+    properties.setProperty("time", this.time.toString());
+    properties.setProperty("files", Integer.toString(this.files.size()));
+    for (int index = 0; index < this.files.size(); ++index) {
+      final var prefix = "file." + index + ".";
+      final var state = this.files.get(index);
+      properties.setProperty(prefix + "path", state.path().toString());
+      properties.setProperty(prefix + "size", Long.toString(state.size()));
+      properties.setProperty(
+        prefix + "modified", Long.toString(state.modifiedNanos()));
+      properties.setProperty(prefix + "sha256", state.sha256());
+    }
+
+    final var absolute = file.toAbsolutePath();
+    final var temporary =
+      absolute.resolveSibling(absolute.getFileName() + ".tmp");
+    try (var stream = Files.newOutputStream(temporary)) {
+      properties.store(stream, "upgate apply state");
+    }
+    Files.move(temporary, absolute, ATOMIC_MOVE, REPLACE_EXISTING);
+  }
+
+  /**
+   * Determine if the recorded files are exactly the given files, and if
+   * none of them have changed since the state was captured.
+   *
+   * @param expected The files that must have been recorded
+   *
+   * @return {@code true} if nothing has changed
+   *
+   * @throws IOException On errors
+   */
+
+  public boolean isUpToDate(
+    final List<Path> expected)
+    throws IOException
+  {
+    final var expectedAbsolute =
+      expected.stream()
+        .map(Path::toAbsolutePath)
+        .toList();
+    final var recorded =
+      this.files.stream()
+        .map(FileState::path)
+        .toList();
+
+    if (!expectedAbsolute.equals(recorded)) {
+      return false;
+    }
+
+    final var trustedBefore =
+      this.time.minus(RACY_WINDOW);
+
+    for (final var state : this.files) {
+      if (!this.isUnchanged(state, trustedBefore)) {
+        LOG.debug("{} has changed", state.path());
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean isUnchanged(
+    final FileState state,
+    final Instant trustedBefore)
+    throws IOException
+  {
+    final var file = state.path();
+    final long size;
+    final long modified;
+    try {
+      size = Files.size(file);
+      modified = modifiedNanos(file);
+    } catch (final NoSuchFileException e) {
+      return false;
+    }
+
+    if (size != state.size()) {
+      return false;
+    }
+
+    final var modifiedTime =
+      Instant.EPOCH.plusNanos(state.modifiedNanos());
+
+    if (modified == state.modifiedNanos()
+        && modifiedTime.isBefore(trustedBefore)) {
+      return true;
+    }
+    return digest(file).equals(state.sha256());
+  }
+
+  @Override
+  public boolean equals(
+    final Object o)
+  {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || !this.getClass().equals(o.getClass())) {
+      return false;
+    }
+    final var that = (UApplyState) o;
+    return this.time.equals(that.time) && this.files.equals(that.files);
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return Objects.hash(this.time, this.files);
+  }
+
+  @Override
+  public String toString()
+  {
+    return "UApplyState[time=%s, files=%s]".formatted(this.time, this.files);
+  }
+
+  /**
+   * The recorded state of a single file.
+   *
+   * @param path          The absolute path of the file
+   * @param size          The size of the file in bytes
+   * @param modifiedNanos The modification time of the file, in nanoseconds
+   *                      since the epoch
+   * @param sha256        The SHA-256 digest of the file, in lowercase
+   *                      hexadecimal
+   */
+
+  public record FileState(
+    Path path,
+    long size,
+    long modifiedNanos,
+    String sha256)
+  {
+    /**
+     * The recorded state of a single file.
+     */
+
+    public FileState
+    {
+      Objects.requireNonNull(path, "path");
+      Objects.requireNonNull(sha256, "sha256");
+    }
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * <p>Functions to apply a single configuration to many targets
+ * concurrently.</p>
+ *
+ * <p>The configuration is parsed once by the caller and shared, unchanged,
+ * by every worker thread; configurations are immutable. Each target is read,
+ * compared against the configuration, and adjusted independently of the
+ * others, and a failure on one target does not affect the rest.</p>
+ */
+
+public final class UApplyTargets
+{
+  private UApplyTargets()
+  {
+
+  }
+
+  /**
+   * Apply the configuration to each target using the target's own
+   * executor.
+   *
+   * @param configuration The configuration
+   * @param targets       The targets
+   * @param threads       The maximum number of targets to apply concurrently
+   *
+   * @return One result per target, in the order of {@code targets}
+   *
+   * @throws InterruptedException On interruption
+   */
+
+  public static List<UTargetResult> apply(
+    final UConfiguration configuration,
+    final List<? extends UTargetType> targets,
+    final int threads)
+    throws InterruptedException
+  {
+    return apply(configuration, targets, threads, UTargetType::executor);
+  }
+
+  /**
+   * Apply the configuration to each target using the executor returned by
+   * {@code executors} for that target. This can be used, for example, to
+   * print the adjustments for each target instead of executing them.
+   *
+   * @param configuration The configuration
+   * @param targets       The targets
+   * @param threads       The maximum number of targets to apply concurrently
+   * @param executors     A function returning the executor for a target
+   *
+   * @return One result per target, in the order of {@code targets}
+   *
+   * @throws InterruptedException On interruption
+   */
+
+  public static List<UTargetResult> apply(
+    final UConfiguration configuration,
+    final List<? extends UTargetType> targets,
+    final int threads,
+    final Function<UTargetType, UAdjustmentExecutorType> executors)
+    throws InterruptedException
+  {
+    Objects.requireNonNull(configuration, "configuration");
+    Objects.requireNonNull(targets, "targets");
+    Objects.requireNonNull(executors, "executors");
+
+    if (threads < 1) {
+      throw new IllegalArgumentException(
+        "Thread count must be positive (got %d)".formatted(
+          Integer.valueOf(threads))
+      );
+    }
+    if (targets.isEmpty()) {
+      return List.of();
+    }
+
+    final var tasks = new ArrayList<Callable<UTargetResult>>(targets.size());
+    for (final var target : targets) {
+      Objects.requireNonNull(target, "target");
+      tasks.add(() -> applyOne(configuration, target, executors));
+    }
+
+    final var pool =
+      Executors.newFixedThreadPool(Math.min(threads, targets.size()), r -> {
+        final var thread = new Thread(r);
+        thread.setName("com.io7m.upgate.target");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+    try {
+      final var futures = pool.invokeAll(tasks);
+      final var results = new ArrayList<UTargetResult>(futures.size());
+      for (final var future : futures) {
+        results.add(future.get());
+      }
+      return List.copyOf(results);
+    } catch (final ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private static UTargetResult applyOne(
+    final UConfiguration configuration,
+    final UTargetType target,
+    final Function<UTargetType, UAdjustmentExecutorType> executors)
+    throws InterruptedException
+  {
+    List<UAdjustmentType> adjustments = List.of();
+    try {
+      final var users = target.userDatabase(configuration);
+      final var groups = target.groupDatabase(configuration);
+      adjustments = UDelta.delta(users, groups, configuration);
+      executors.apply(target).execute(adjustments);
+      return new UTargetResult(target, adjustments, Optional.empty());
+    } catch (final InterruptedException e) {
+      throw e;
+    } catch (final Exception e) {
+      return new UTargetResult(target, adjustments, Optional.of(e));
+    }
+  }
+}
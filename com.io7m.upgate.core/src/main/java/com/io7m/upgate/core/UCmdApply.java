@@ -28,13 +28,21 @@ import com.io7m.quarrel.core.QParametersPositionalNone;
 import com.io7m.quarrel.core.QParametersPositionalType;
 import com.io7m.quarrel.core.QStringType.QConstant;
 import com.io7m.quarrel.ext.logback.QLogback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
 
 import static java.lang.Boolean.FALSE;
 import static java.lang.Boolean.TRUE;
@@ -45,7 +53,7 @@ import static java.lang.Boolean.TRUE;
 
 public final class UCmdApply implements QCommandType
 {
-  private static final QParameterNamed1<Path> CONFIGURATION =
+  static final QParameterNamed1<Path> CONFIGURATION =
     new QParameterNamed1<>(
       "--configuration",
       List.of(),
@@ -54,7 +62,54 @@ public final class UCmdApply implements QCommandType
       Path.class
     );
 
-  private static final QParameterNamed01<Boolean> DRY_RUN =
+  private static final QParameterNamed01<Path> CONFIGURATION_OPTIONAL =
+    new QParameterNamed01<>(
+      "--configuration",
+      List.of(),
+      new QConstant(
+        "The configuration file. Required unless --configuration-directory "
+        + "or --plan is specified."),
+      Optional.empty(),
+      Path.class
+    );
+
+  static final QParameterNamed01<Path> CONFIGURATION_DIRECTORY =
+    new QParameterNamed01<>(
+      "--configuration-directory",
+      List.of(),
+      new QConstant(
+        "A directory of configuration fragments. Every *.xml file in the "
+        + "directory is parsed, and the fragments are merged into a single "
+        + "configuration."),
+      Optional.empty(),
+      Path.class
+    );
+
+  static final QParameterNamed01<Path> CONFIGURATION_IMAGE =
+    new QParameterNamed01<>(
+      "--configuration-image",
+      List.of(),
+      new QConstant(
+        "A configuration image produced by the compile command. The image "
+        + "is used instead of parsing the configuration file if it was "
+        + "compiled from the file's current contents."),
+      Optional.empty(),
+      Path.class
+    );
+
+  private static final QParameterNamed01<Path> PLAN =
+    new QParameterNamed01<>(
+      "--plan",
+      List.of(),
+      new QConstant(
+        "Execute a plan produced by the plan command instead of reading a "
+        + "configuration file. The plan is rejected if the users and groups "
+        + "it was calculated against have changed."),
+      Optional.empty(),
+      Path.class
+    );
+
+  static final QParameterNamed01<Boolean> DRY_RUN =
     new QParameterNamed01<>(
       "--dry-run",
       List.of(),
@@ -64,6 +119,125 @@ public final class UCmdApply implements QCommandType
       Boolean.class
     );
 
+  static final QParameterNamed01<Boolean> BATCH =
+    new QParameterNamed01<>(
+      "--batch",
+      List.of(),
+      new QConstant(
+        "Batch consecutive user creations into single newusers invocations. "
+        + "Users created in a batch have an empty home directory field, "
+        + "rather than the /home/<name> that useradd records."),
+      Optional.of(FALSE),
+      Boolean.class
+    );
+
+  private static final QParameterNamed01<Boolean> STREAM =
+    new QParameterNamed01<>(
+      "--stream",
+      List.of(),
+      new QConstant(
+        "Execute each change as soon as it has been calculated, rather than "
+        + "calculating all changes first. This reduces memory use for very "
+        + "large configurations."),
+      Optional.of(FALSE),
+      Boolean.class
+    );
+
+  static final QParameterNamed01<Boolean> DIRECT =
+    new QParameterNamed01<>(
+      "--direct",
+      List.of(),
+      new QConstant(
+        "Modify the passwd, group, shadow, and gshadow files directly "
+        + "rather than running the shadow utilities."),
+      Optional.of(FALSE),
+      Boolean.class
+    );
+
+  static final QParameterNamed01<Path> ROOT =
+    new QParameterNamed01<>(
+      "--root",
+      List.of(),
+      new QConstant(
+        "Reconcile the passwd and group files of the filesystem rooted at "
+        + "the given directory, such as an unpacked container image, "
+        + "rather than those of the running system."),
+      Optional.of(Path.of("/")),
+      Path.class
+    );
+
+  private static final QParameterNamed01<Path> STATE_FILE =
+    new QParameterNamed01<>(
+      "--state-file",
+      List.of(),
+      new QConstant(
+        "A file recording the state of the last successful apply. "
+        + "If the configuration and the databases are unchanged since, "
+        + "nothing is done."),
+      Optional.empty(),
+      Path.class
+    );
+
+  private static final QParameterNamed01<Path> METRICS_FILE =
+    new QParameterNamed01<>(
+      "--metrics-file",
+      List.of(),
+      new QConstant(
+        "A file to which metrics about the apply will be written."),
+      Optional.empty(),
+      Path.class
+    );
+
+  private static final QParameterNamed01<UMetricsFormat> METRICS_FORMAT =
+    new QParameterNamed01<>(
+      "--metrics-format",
+      List.of(),
+      new QConstant("The format of the metrics file."),
+      Optional.of(UMetricsFormat.PROMETHEUS),
+      UMetricsFormat.class
+    );
+
+  static final QParameterNamed01<UDatabaseSource> DATABASE_SOURCE =
+    new QParameterNamed01<>(
+      "--database-source",
+      List.of(),
+      new QConstant(
+        "The source from which to read the user and group databases."),
+      Optional.of(UDatabaseSource.AUTOMATIC),
+      UDatabaseSource.class
+    );
+
+  static final QParameterNamed01<UDatabaseLookup> DATABASE_LOOKUP =
+    new QParameterNamed01<>(
+      "--database-lookup",
+      List.of(),
+      new QConstant(
+        "Whether databases read through getent are enumerated in full, "
+        + "or only the users and groups in the configuration are looked up."),
+      Optional.of(UDatabaseLookup.AUTOMATIC),
+      UDatabaseLookup.class
+    );
+
+  static final QParameterNamed01<Duration> GETENT_TIMEOUT =
+    new QParameterNamed01<>(
+      "--getent-timeout",
+      List.of(),
+      new QConstant(
+        "The maximum time to allow getent to run when reading databases."),
+      Optional.of(UDatabaseParsing.DEFAULT_GETENT_TIMEOUT),
+      Duration.class
+    );
+
+  private static final Logger LOG =
+    LoggerFactory.getLogger(UCmdApply.class);
+
+  static final Path PASSWD =
+    Path.of("/etc/passwd");
+  static final Path GROUP =
+    Path.of("/etc/group");
+  private static final Path NSSWITCH =
+    Path.of("/etc/nsswitch.conf");
+
   /**
    * The "apply" command.
    */
@@ -77,8 +251,21 @@ public final class UCmdApply implements QCommandType
   public List<QParameterNamedType<?>> onListNamedParameters()
   {
     final var ps = new ArrayList<>(QLogback.parameters());
-    ps.add(CONFIGURATION);
+    ps.add(CONFIGURATION_OPTIONAL);
+    ps.add(CONFIGURATION_DIRECTORY);
+    ps.add(CONFIGURATION_IMAGE);
+    ps.add(PLAN);
     ps.add(DRY_RUN);
+    ps.add(DATABASE_SOURCE);
+    ps.add(DATABASE_LOOKUP);
+    ps.add(GETENT_TIMEOUT);
+    ps.add(BATCH);
+    ps.add(DIRECT);
+    ps.add(STREAM);
+    ps.add(ROOT);
+    ps.add(STATE_FILE);
+    ps.add(METRICS_FILE);
+    ps.add(METRICS_FORMAT);
     return List.copyOf(ps);
   }
 
@@ -95,27 +282,484 @@ public final class UCmdApply implements QCommandType
   {
     QLogback.configure(context);
 
+    final var metricsFile =
+      context.parameterValue(METRICS_FILE);
+    final var metricsFormat =
+      context.parameterValue(METRICS_FORMAT)
+        .orElse(UMetricsFormat.PROMETHEUS);
+
+    final var metrics = new UMetrics();
+    var success = false;
+    try {
+      this.apply(context, metrics);
+      success = true;
+      return QCommandStatus.SUCCESS;
+    } finally {
+      if (metricsFile.isPresent()) {
+        metrics.finished(Instant.now(), success);
+        writeMetrics(metrics, metricsFile.get(), metricsFormat);
+      }
+    }
+  }
+
+  private static void writeMetrics(
+    final UMetrics metrics,
+    final Path file,
+    final UMetricsFormat format)
+  {
+    /*
+     * A failure to write metrics is logged rather than raised so that it
+     * cannot hide the failure of the apply itself.
+     */
+
+    try {
+      metrics.write(file, format);
+    } catch (final IOException e) {
+      LOG.error("Failed to write metrics to {}: ", file, e);
+    }
+  }
+
+  private void apply(
+    final QCommandContextType context,
+    final UMetrics metrics)
+    throws Exception
+  {
     final var file =
-      context.parameterValue(CONFIGURATION);
-
-    final var configuration =
-      UConfigurations.parse(file);
-    final var userDatabase =
-      UUserDatabase.get();
-    final var groupDatabase =
-      UGroupDatabase.get();
-    final var delta =
-      UDelta.delta(userDatabase, groupDatabase, configuration);
-
-    final UAdjustmentExecutorType executor;
-    if (Objects.equals(context.parameterValue(DRY_RUN).orElse(FALSE), TRUE)) {
-      executor = UAdjustmentExecutor.ofDryRun(new PrintWriter(System.out));
+      context.parameterValue(CONFIGURATION_OPTIONAL);
+    final var directory =
+      context.parameterValue(CONFIGURATION_DIRECTORY);
+    final var plan =
+      context.parameterValue(PLAN);
+
+    final var sources =
+      Stream.of(file, directory, plan)
+        .filter(Optional::isPresent)
+        .count();
+
+    if (sources != 1L) {
+      throw parameterError(
+        "Exactly one of --configuration, --configuration-directory, or "
+        + "--plan must be specified.");
+    }
+    checkConfigurationImage(context, file);
+
+    if (plan.isPresent()) {
+      applyPlan(context, metrics, plan.get());
+    } else {
+      applyConfiguration(
+        context, metrics, configurationFiles(file, directory));
+    }
+  }
+
+  private static void applyPlan(
+    final QCommandContextType context,
+    final UMetrics metrics,
+    final Path file)
+    throws Exception
+  {
+    /*
+     * A plan is executed as a list that has already been calculated, and
+     * the state file only records configuration files; neither option
+     * would have any effect.
+     */
+
+    if (Objects.equals(context.parameterValue(STREAM).orElse(FALSE), TRUE)) {
+      throw parameterError("--stream cannot be used with --plan.");
+    }
+    if (context.parameterValue(STATE_FILE).isPresent()) {
+      throw parameterError("--state-file cannot be used with --plan.");
+    }
+
+    final var root =
+      context.parameterValue(ROOT)
+        .orElse(Path.of("/"));
+
+    final UPlan plan;
+    try (var ignored = metrics.phase("plan-load")) {
+      plan = UPlan.load(file);
+    }
+
+    final var configuration = plan.configuration();
+    metrics.entriesRead("configuration-users", configuration.users().size());
+    metrics.entriesRead("configuration-groups", configuration.groups().size());
+
+    final UUserDatabase userDatabase;
+    try (var ignored = metrics.phase("read-users")) {
+      userDatabase = readUsers(context, root, configuration);
+    }
+    metrics.entriesRead("passwd", userDatabase.entries().size());
+
+    final UGroupDatabase groupDatabase;
+    try (var ignored = metrics.phase("read-groups")) {
+      groupDatabase = readGroups(context, root, configuration);
+    }
+    metrics.entriesRead("group", groupDatabase.entries().size());
+
+    try (var ignored = metrics.phase("plan-verify")) {
+      plan.verify(userDatabase, groupDatabase);
+    }
+    metrics.adjustmentsCalculated(plan.adjustments());
+    execute(context, metrics, root, plan.adjustments());
+  }
+
+  private static void execute(
+    final QCommandContextType context,
+    final UMetrics metrics,
+    final Path root,
+    final List<UAdjustmentType> adjustments)
+    throws UException
+  {
+    final var writer = new PrintWriter(System.out);
+    try (var ignored = metrics.phase("execute")) {
+      executor(context, writer, metrics, root).execute(adjustments);
+      writer.flush();
+    }
+  }
+
+  /**
+   * Calculate the adjustments and execute each as soon as it has been
+   * calculated. The calculation and execution are interleaved, and so are
+   * measured as a single phase.
+   */
+
+  private static void executeStreaming(
+    final QCommandContextType context,
+    final UMetrics metrics,
+    final Path root,
+    final UUserDatabase userDatabase,
+    final UGroupDatabase groupDatabase,
+    final UConfiguration configuration)
+    throws UException
+  {
+    final var writer = new PrintWriter(System.out);
+    try (var ignored = metrics.phase("delta-execute")) {
+      final var sink =
+        executor(context, writer, metrics, root).sink();
+
+      UDelta.delta(userDatabase, groupDatabase, configuration, adjustment -> {
+        metrics.adjustmentCalculated(adjustment);
+        sink.accept(adjustment);
+      });
+      sink.finish();
+      writer.flush();
+    }
+  }
+
+  /**
+   * Reject {@code --configuration-image} unless a single
+   * {@code --configuration} file was specified; the image would otherwise
+   * be silently ignored.
+   *
+   * @param context The command context
+   * @param file    The value of {@code --configuration}
+   *
+   * @throws UException If the image cannot be used
+   */
+
+  static void checkConfigurationImage(
+    final QCommandContextType context,
+    final Optional<Path> file)
+    throws UException
+  {
+    if (context.parameterValue(CONFIGURATION_IMAGE).isPresent()
+        && file.isEmpty()) {
+      throw parameterError(
+        "--configuration-image can only be used with --configuration.");
+    }
+  }
+
+  static UException parameterError(
+    final String message)
+  {
+    return new UException(
+      message,
+      "error-parameters",
+      Map.of(),
+      Optional.empty(),
+      List.of()
+    );
+  }
+
+  /**
+   * @param file      The value of {@code --configuration}
+   * @param directory The value of {@code --configuration-directory}
+   *
+   * @return The configuration files named by whichever was specified
+   *
+   * @throws Exception On errors
+   */
+
+  static List<Path> configurationFiles(
+    final Optional<Path> file,
+    final Optional<Path> directory)
+    throws Exception
+  {
+    if (directory.isPresent()) {
+      return UConfigurations.fragments(directory.get());
+    }
+    return List.of(file.orElseThrow());
+  }
+
+  /**
+   * Parse the given configuration files. The files of a
+   * {@code --configuration-directory} are parsed concurrently and merged;
+   * a single {@code --configuration} file may be loaded from its
+   * {@code --configuration-image}.
+   *
+   * @param context The command context
+   * @param files   The files returned by
+   *                {@link #configurationFiles(Optional, Optional)}
+   *
+   * @return The configuration
+   *
+   * @throws Exception On errors
+   */
+
+  static UConfiguration parseConfiguration(
+    final QCommandContextType context,
+    final List<Path> files)
+    throws Exception
+  {
+    if (context.parameterValue(CONFIGURATION_DIRECTORY).isPresent()) {
+      return UConfigurations.parseFragments(files, ForkJoinPool.commonPool());
+    }
+
+    final var file = files.get(0);
+    final var image = context.parameterValue(CONFIGURATION_IMAGE);
+    if (image.isPresent()) {
+      return UConfigurations.parseWithImage(file, image.get());
+    }
+    return UConfigurations.parse(file);
+  }
+
+  private static void applyConfiguration(
+    final QCommandContextType context,
+    final UMetrics metrics,
+    final List<Path> files)
+    throws Exception
+  {
+    final var databaseSource =
+      context.parameterValue(DATABASE_SOURCE)
+        .orElse(UDatabaseSource.AUTOMATIC);
+    final var root =
+      context.parameterValue(ROOT)
+        .orElse(Path.of("/"));
+    final var stateFile =
+      context.parameterValue(STATE_FILE);
+
+    final var rooted =
+      !UAdjustmentExecutor.isSystemRoot(root);
+    final var passwd =
+      root.resolve("etc/passwd");
+    final var group =
+      root.resolve("etc/group");
+
+    /*
+     * The state file can only vouch for databases that are read from the
+     * files it records; databases served by other NSS sources can change
+     * without any local file changing. The databases of any other root are
+     * always read from its files.
+     */
+
+    final var trackedFiles = new ArrayList<>(files);
+    trackedFiles.add(passwd);
+    trackedFiles.add(group);
+
+    final var stateUsable =
+      stateFile.isPresent() && (rooted || readsFiles(databaseSource));
+
+    if (stateUsable) {
+      try (var ignored = metrics.phase("state-check")) {
+        final var state = UApplyState.load(stateFile.get());
+        if (state.isPresent() && state.get().isUpToDate(trackedFiles)) {
+          LOG.info("Nothing has changed since the last apply.");
+          return;
+        }
+      }
+    }
+
+    final var stateTime =
+      Instant.now();
+    final var fileStates = new ArrayList<UApplyState.FileState>();
+    if (stateUsable) {
+      for (final var file : files) {
+        fileStates.add(UApplyState.captureFile(file));
+      }
+    }
+
+    final UConfiguration configuration;
+    try (var ignored = metrics.phase("parse")) {
+      configuration = parseConfiguration(context, files);
+    }
+    metrics.entriesRead("configuration-users", configuration.users().size());
+    metrics.entriesRead("configuration-groups", configuration.groups().size());
+
+    final UUserDatabase userDatabase;
+    try (var ignored = metrics.phase("read-users")) {
+      userDatabase = readUsers(context, root, configuration);
+    }
+    metrics.entriesRead("passwd", userDatabase.entries().size());
+
+    final UGroupDatabase groupDatabase;
+    try (var ignored = metrics.phase("read-groups")) {
+      groupDatabase = readGroups(context, root, configuration);
+    }
+    metrics.entriesRead("group", groupDatabase.entries().size());
+
+    final var stream =
+      Objects.equals(context.parameterValue(STREAM).orElse(FALSE), TRUE);
+
+    if (stream) {
+      executeStreaming(
+        context, metrics, root, userDatabase, groupDatabase, configuration);
     } else {
-      executor = UAdjustmentExecutor.ofSystem();
+      final List<UAdjustmentType> delta;
+      try (var ignored = metrics.phase("delta")) {
+        delta = UDelta.delta(
+          userDatabase,
+          groupDatabase,
+          configuration,
+          ForkJoinPool.commonPool()
+        );
+      }
+      metrics.adjustmentsCalculated(delta);
+      execute(context, metrics, root, delta);
+    }
+
+    final var dryRun =
+      Objects.equals(context.parameterValue(DRY_RUN).orElse(FALSE), TRUE);
+
+    if (stateUsable && !dryRun) {
+      try (var ignored = metrics.phase("state-save")) {
+        fileStates.add(UApplyState.captureFile(passwd));
+        fileStates.add(UApplyState.captureFile(group));
+        new UApplyState(stateTime, fileStates).save(stateFile.get());
+      }
     }
+  }
 
-    executor.execute(delta);
-    return QCommandStatus.SUCCESS;
+  /**
+   * Read the user database selected by the {@code --database-source},
+   * {@code --database-lookup}, and {@code --getent-timeout} parameters. The
+   * database of a root other than that of the running system is always read
+   * from its files; NSS only describes the running system.
+   *
+   * @param context       The command context
+   * @param root          The root of the filesystem to be adjusted
+   * @param configuration The configuration
+   *
+   * @return The user database
+   *
+   * @throws Exception On errors
+   */
+
+  static UUserDatabase readUsers(
+    final QCommandContextType context,
+    final Path root,
+    final UConfiguration configuration)
+    throws Exception
+  {
+    if (!UAdjustmentExecutor.isSystemRoot(root)) {
+      return UUserDatabase.fromFiles(root.resolve("etc/passwd"));
+    }
+    return UUserDatabase.get(
+      context.parameterValue(DATABASE_SOURCE)
+        .orElse(UDatabaseSource.AUTOMATIC),
+      context.parameterValue(DATABASE_LOOKUP)
+        .orElse(UDatabaseLookup.AUTOMATIC),
+      configuration.users(),
+      context.parameterValue(GETENT_TIMEOUT)
+        .orElse(UDatabaseParsing.DEFAULT_GETENT_TIMEOUT)
+    );
+  }
+
+  /**
+   * Read the group database in the same manner as
+   * {@link #readUsers(QCommandContextType, Path, UConfiguration)}.
+   *
+   * @param context       The command context
+   * @param root          The root of the filesystem to be adjusted
+   * @param configuration The configuration
+   *
+   * @return The group database
+   *
+   * @throws Exception On errors
+   */
+
+  static UGroupDatabase readGroups(
+    final QCommandContextType context,
+    final Path root,
+    final UConfiguration configuration)
+    throws Exception
+  {
+    if (!UAdjustmentExecutor.isSystemRoot(root)) {
+      return UGroupDatabase.fromFiles(root.resolve("etc/group"));
+    }
+    return UGroupDatabase.get(
+      context.parameterValue(DATABASE_SOURCE)
+        .orElse(UDatabaseSource.AUTOMATIC),
+      context.parameterValue(DATABASE_LOOKUP)
+        .orElse(UDatabaseLookup.AUTOMATIC),
+      configuration.groups(),
+      context.parameterValue(GETENT_TIMEOUT)
+        .orElse(UDatabaseParsing.DEFAULT_GETENT_TIMEOUT)
+    );
+  }
+
+  /**
+   * Create the executor selected by the {@code --dry-run}, {@code --batch},
+   * and {@code --direct} parameters.
+   *
+   * @param context The command context
+   * @param writer  The writer used for dry runs
+   * @param metrics The metrics in which command latencies are recorded
+   * @param root    The root of the filesystem to be adjusted
+   *
+   * @return An executor
+   */
+
+  static UAdjustmentExecutorType executor(
+    final QCommandContextType context,
+    final PrintWriter writer,
+    final UMetrics metrics,
+    final Path root)
+  {
+    final var dryRun =
+      Objects.equals(context.parameterValue(DRY_RUN).orElse(FALSE), TRUE);
+    final var batch =
+      Objects.equals(context.parameterValue(BATCH).orElse(FALSE), TRUE);
+    final var direct =
+      Objects.equals(context.parameterValue(DIRECT).orElse(FALSE), TRUE);
+
+    if (dryRun) {
+      return batch
+        ? UAdjustmentExecutor.ofDryRunBatched(writer, root)
+        : UAdjustmentExecutor.ofDryRun(writer, root);
+    }
+    if (direct) {
+      return UAdjustmentExecutor.ofFiles(root);
+    }
+    return batch
+      ? UAdjustmentExecutor.ofSystemBatched(root, metrics)
+      : UAdjustmentExecutor.ofSystem(root, metrics);
+  }
+
+  /**
+   * @param source The database source
+   *
+   * @return {@code true} if the databases will be read from /etc/passwd and
+   * /etc/group
+   */
+
+  static boolean readsFiles(
+    final UDatabaseSource source)
+  {
+    return switch (source) {
+      case GETENT -> false;
+      case FILES -> true;
+      case AUTOMATIC -> UNameServiceSwitch.isFilesOnly(NSSWITCH, "passwd")
+                        && UNameServiceSwitch.isFilesOnly(NSSWITCH, "group");
+    };
   }
 
   @Override
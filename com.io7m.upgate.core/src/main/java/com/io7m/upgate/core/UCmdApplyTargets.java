@@ -0,0 +1,236 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.core;
+
+import com.io7m.quarrel.core.QCommandContextType;
+import com.io7m.quarrel.core.QCommandMetadata;
+import com.io7m.quarrel.core.QCommandStatus;
+import com.io7m.quarrel.core.QCommandType;
+import com.io7m.quarrel.core.QParameterNamed01;
+import com.io7m.quarrel.core.QParameterNamed0N;
+import com.io7m.quarrel.core.QParameterNamedType;
+import com.io7m.quarrel.core.QParametersPositionalNone;
+import com.io7m.quarrel.core.QParametersPositionalType;
+import com.io7m.quarrel.core.QStringType.QConstant;
+import com.io7m.quarrel.ext.logback.QLogback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.lang.Boolean.FALSE;
+import static java.lang.Boolean.TRUE;
+
+/**
+ * The "apply-targets" command.
+ */
+
+public final class UCmdApplyTargets implements QCommandType
+{
+  private static final Logger LOG =
+    LoggerFactory.getLogger(UCmdApplyTargets.class);
+
+  private static final QParameterNamed0N<Path> ROOT =
+    new QParameterNamed0N<>(
+      "--root",
+      List.of(),
+      new QConstant(
+        "A root directory to which the configuration will be applied by "
+        + "modifying its passwd, group, shadow, and gshadow files."),
+      List.of(),
+      Path.class
+    );
+
+  private static final QParameterNamed0N<String> SSH =
+    new QParameterNamed0N<>(
+      "--ssh",
+      List.of(),
+      new QConstant(
+        "A host to which the configuration will be applied over ssh."),
+      List.of(),
+      String.class
+    );
+
+  private static final QParameterNamed01<Integer> THREADS =
+    new QParameterNamed01<>(
+      "--threads",
+      List.of(),
+      new QConstant(
+        "The maximum number of targets to apply concurrently."),
+      Optional.of(Integer.valueOf(8)),
+      Integer.class
+    );
+
+  /**
+   * The "apply-targets" command.
+   */
+
+  public UCmdApplyTargets()
+  {
+
+  }
+
+  @Override
+  public List<QParameterNamedType<?>> onListNamedParameters()
+  {
+    final var ps = new ArrayList<>(QLogback.parameters());
+    ps.add(UCmdApply.CONFIGURATION);
+    ps.add(UCmdApply.DRY_RUN);
+    ps.add(UCmdApply.DATABASE_LOOKUP);
+    ps.add(UCmdApply.GETENT_TIMEOUT);
+    ps.add(UCmdApply.BATCH);
+    ps.add(ROOT);
+    ps.add(SSH);
+    ps.add(THREADS);
+    return List.copyOf(ps);
+  }
+
+  @Override
+  public QParametersPositionalType onListPositionalParameters()
+  {
+    return new QParametersPositionalNone();
+  }
+
+  @Override
+  public QCommandStatus onExecute(
+    final QCommandContextType context)
+    throws Exception
+  {
+    QLogback.configure(context);
+
+    final var file =
+      context.parameterValue(UCmdApply.CONFIGURATION);
+    final var dryRun =
+      Objects.equals(
+        context.parameterValue(UCmdApply.DRY_RUN).orElse(FALSE), TRUE);
+    final var batch =
+      Objects.equals(
+        context.parameterValue(UCmdApply.BATCH).orElse(FALSE), TRUE);
+    final var lookup =
+      context.parameterValue(UCmdApply.DATABASE_LOOKUP)
+        .orElse(UDatabaseLookup.AUTOMATIC);
+    final var timeout =
+      context.parameterValue(UCmdApply.GETENT_TIMEOUT)
+        .orElse(UDatabaseParsing.DEFAULT_GETENT_TIMEOUT);
+    final var threads =
+      context.parameterValue(THREADS)
+        .orElse(Integer.valueOf(8))
+        .intValue();
+
+    final var targets = new ArrayList<UTargetType>();
+    for (final var root : context.parameterValues(ROOT)) {
+      targets.add(new UTargetRoot(root));
+    }
+    for (final var host : context.parameterValues(SSH)) {
+      targets.add(UTargetRemote.ssh(host, lookup, timeout, batch));
+    }
+
+    final var configuration =
+      UConfigurations.parse(file);
+
+    /*
+     * Dry runs are written to a buffer per target so that the output of
+     * concurrently processed targets is not interleaved.
+     */
+
+    final var outputs =
+      new ConcurrentHashMap<UTargetType, StringWriter>();
+
+    final List<UTargetResult> results;
+    if (dryRun) {
+      results = UApplyTargets.apply(configuration, targets, threads, t -> {
+        final var writer = new PrintWriter(
+          outputs.computeIfAbsent(t, k -> new StringWriter()), true);
+        return batch
+          ? UAdjustmentExecutor.ofDryRunBatched(writer)
+          : UAdjustmentExecutor.ofDryRun(writer);
+      });
+    } else {
+      results = UApplyTargets.apply(configuration, targets, threads);
+    }
+
+    final var failed = report(results, outputs);
+    if (failed > 0) {
+      LOG.error(
+        "{} of {} targets failed.",
+        Integer.valueOf(failed),
+        Integer.valueOf(results.size()));
+      return QCommandStatus.FAILURE;
+    }
+    return QCommandStatus.SUCCESS;
+  }
+
+  private static int report(
+    final List<UTargetResult> results,
+    final Map<UTargetType, StringWriter> outputs)
+  {
+    final var out = new PrintWriter(System.out);
+    var failed = 0;
+    for (final var result : results) {
+      final var target = result.target();
+      final var output = outputs.get(target);
+      if (output != null) {
+        out.printf("# %s%n", target.name());
+        out.print(output);
+      }
+
+      if (result.succeeded()) {
+        LOG.info(
+          "{}: {} adjustments",
+          target.name(),
+          Integer.valueOf(result.adjustments().size()));
+        continue;
+      }
+
+      ++failed;
+      final var e = result.failure().orElseThrow();
+      if (e instanceof final UException u) {
+        LOG.error(
+          "{}: {}: {} {}",
+          target.name(), u.errorCode(), u.getMessage(), u.attributes());
+      } else if (e instanceof IOException) {
+        LOG.error("{}: {}", target.name(), e.toString());
+      } else {
+        LOG.error("{}: ", target.name(), e);
+      }
+    }
+    out.flush();
+    return failed;
+  }
+
+  @Override
+  public QCommandMetadata metadata()
+  {
+    return new QCommandMetadata(
+      "apply-targets",
+      new QConstant(
+        "Apply changes to many root directories or remote hosts "
+        + "concurrently."),
+      Optional.empty()
+    );
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.core;
+
+import com.io7m.quarrel.core.QCommandContextType;
+import com.io7m.quarrel.core.QCommandMetadata;
+import com.io7m.quarrel.core.QCommandStatus;
+import com.io7m.quarrel.core.QCommandType;
+import com.io7m.quarrel.core.QParameterNamed1;
+import com.io7m.quarrel.core.QParameterNamedType;
+import com.io7m.quarrel.core.QParametersPositionalNone;
+import com.io7m.quarrel.core.QParametersPositionalType;
+import com.io7m.quarrel.core.QStringType.QConstant;
+import com.io7m.quarrel.ext.logback.QLogback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * The "compile" command.
+ */
+
+public final class UCmdCompile implements QCommandType
+{
+  private static final Logger LOG =
+    LoggerFactory.getLogger(UCmdCompile.class);
+
+  private static final QParameterNamed1<Path> OUTPUT =
+    new QParameterNamed1<>(
+      "--output",
+      List.of(),
+      new QConstant("The file to which the configuration image is written."),
+      Optional.empty(),
+      Path.class
+    );
+
+  /**
+   * The "compile" command.
+   */
+
+  public UCmdCompile()
+  {
+
+  }
+
+  @Override
+  public List<QParameterNamedType<?>> onListNamedParameters()
+  {
+    final var ps = new ArrayList<>(QLogback.parameters());
+    ps.add(UCmdApply.CONFIGURATION);
+    ps.add(OUTPUT);
+    return List.copyOf(ps);
+  }
+
+  @Override
+  public QParametersPositionalType onListPositionalParameters()
+  {
+    return new QParametersPositionalNone();
+  }
+
+  @Override
+  public QCommandStatus onExecute(
+    final QCommandContextType context)
+    throws Exception
+  {
+    QLogback.configure(context);
+
+    final var file =
+      context.parameterValue(UCmdApply.CONFIGURATION);
+    final var output =
+      context.parameterValue(OUTPUT);
+
+    final var configuration =
+      UConfigurations.compile(file, output);
+
+    LOG.info(
+      "Compiled {} users and {} groups to {}",
+      Integer.valueOf(configuration.users().size()),
+      Integer.valueOf(configuration.groups().size()),
+      output);
+    return QCommandStatus.SUCCESS;
+  }
+
+  @Override
+  public QCommandMetadata metadata()
+  {
+    return new QCommandMetadata(
+      "compile",
+      new QConstant(
+        "Validate a configuration file and write a compiled image of it "
+        + "that apply --configuration-image can load without parsing."),
+      Optional.empty()
+    );
+  }
+}
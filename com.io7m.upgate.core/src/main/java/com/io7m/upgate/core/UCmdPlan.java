@@ -0,0 +1,155 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.core;
+
+import com.io7m.quarrel.core.QCommandContextType;
+import com.io7m.quarrel.core.QCommandMetadata;
+import com.io7m.quarrel.core.QCommandStatus;
+import com.io7m.quarrel.core.QCommandType;
+import com.io7m.quarrel.core.QParameterNamed01;
+import com.io7m.quarrel.core.QParameterNamed1;
+import com.io7m.quarrel.core.QParameterNamedType;
+import com.io7m.quarrel.core.QParametersPositionalNone;
+import com.io7m.quarrel.core.QParametersPositionalType;
+import com.io7m.quarrel.core.QStringType.QConstant;
+import com.io7m.quarrel.ext.logback.QLogback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The "plan" command.
+ */
+
+public final class UCmdPlan implements QCommandType
+{
+  private static final Logger LOG =
+    LoggerFactory.getLogger(UCmdPlan.class);
+
+  private static final QParameterNamed01<Path> CONFIGURATION =
+    new QParameterNamed01<>(
+      "--configuration",
+      List.of(),
+      new QConstant(
+        "The configuration file. Required unless --configuration-directory "
+        + "is specified."),
+      Optional.empty(),
+      Path.class
+    );
+
+  private static final QParameterNamed1<Path> OUTPUT =
+    new QParameterNamed1<>(
+      "--output",
+      List.of(),
+      new QConstant("The file to which the plan will be written."),
+      Optional.empty(),
+      Path.class
+    );
+
+  /**
+   * The "plan" command.
+   */
+
+  public UCmdPlan()
+  {
+
+  }
+
+  @Override
+  public List<QParameterNamedType<?>> onListNamedParameters()
+  {
+    final var ps = new ArrayList<>(QLogback.parameters());
+    ps.add(CONFIGURATION);
+    ps.add(UCmdApply.CONFIGURATION_DIRECTORY);
+    ps.add(UCmdApply.CONFIGURATION_IMAGE);
+    ps.add(UCmdApply.DATABASE_SOURCE);
+    ps.add(UCmdApply.DATABASE_LOOKUP);
+    ps.add(UCmdApply.GETENT_TIMEOUT);
+    ps.add(UCmdApply.ROOT);
+    ps.add(OUTPUT);
+    return List.copyOf(ps);
+  }
+
+  @Override
+  public QParametersPositionalType onListPositionalParameters()
+  {
+    return new QParametersPositionalNone();
+  }
+
+  @Override
+  public QCommandStatus onExecute(
+    final QCommandContextType context)
+    throws Exception
+  {
+    QLogback.configure(context);
+
+    final var file =
+      context.parameterValue(CONFIGURATION);
+    final var directory =
+      context.parameterValue(UCmdApply.CONFIGURATION_DIRECTORY);
+    final var root =
+      context.parameterValue(UCmdApply.ROOT)
+        .orElse(Path.of("/"));
+    final var output =
+      context.parameterValue(OUTPUT);
+
+    if (file.isPresent() == directory.isPresent()) {
+      throw UCmdApply.parameterError(
+        "Exactly one of --configuration or --configuration-directory must "
+        + "be specified.");
+    }
+    UCmdApply.checkConfigurationImage(context, file);
+
+    final var configuration =
+      UCmdApply.parseConfiguration(
+        context,
+        UCmdApply.configurationFiles(file, directory)
+      );
+    final var plan =
+      UPlan.create(
+        UCmdApply.readUsers(context, root, configuration),
+        UCmdApply.readGroups(context, root, configuration),
+        configuration,
+        ForkJoinPool.commonPool()
+      );
+
+    plan.save(output);
+    LOG.info(
+      "Wrote a plan of {} adjustments to {}",
+      Integer.valueOf(plan.adjustments().size()),
+      output);
+    return QCommandStatus.SUCCESS;
+  }
+
+  @Override
+  public QCommandMetadata metadata()
+  {
+    return new QCommandMetadata(
+      "plan",
+      new QConstant(
+        "Calculate the changes that apply would make, and write them to a "
+        + "plan file that can be executed later with apply --plan."),
+      Optional.empty()
+    );
+  }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.core;
+
+import com.io7m.quarrel.core.QCommandContextType;
+import com.io7m.quarrel.core.QCommandMetadata;
+import com.io7m.quarrel.core.QCommandStatus;
+import com.io7m.quarrel.core.QCommandType;
+import com.io7m.quarrel.core.QParameterNamed01;
+import com.io7m.quarrel.core.QParameterNamedType;
+import com.io7m.quarrel.core.QParametersPositionalNone;
+import com.io7m.quarrel.core.QParametersPositionalType;
+import com.io7m.quarrel.core.QStringType.QConstant;
+import com.io7m.quarrel.ext.logback.QLogback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * The "watch" command.
+ */
+
+public final class UCmdWatch implements QCommandType
+{
+  private static final Logger LOG =
+    LoggerFactory.getLogger(UCmdWatch.class);
+
+  private static final QParameterNamed01<Duration> DEBOUNCE =
+    new QParameterNamed01<>(
+      "--debounce",
+      List.of(),
+      new QConstant(
+        "The period of quiet required after a change before reconciling."),
+      Optional.of(Duration.ofSeconds(1L)),
+      Duration.class
+    );
+
+  /**
+   * The "watch" command.
+   */
+
+  public UCmdWatch()
+  {
+
+  }
+
+  @Override
+  public List<QParameterNamedType<?>> onListNamedParameters()
+  {
+    final var ps = new ArrayList<>(QLogback.parameters());
+    ps.add(UCmdApply.CONFIGURATION);
+    ps.add(UCmdApply.DRY_RUN);
+    ps.add(UCmdApply.DATABASE_SOURCE);
+    ps.add(UCmdApply.DATABASE_LOOKUP);
+    ps.add(UCmdApply.GETENT_TIMEOUT);
+    ps.add(UCmdApply.BATCH);
+    ps.add(UCmdApply.DIRECT);
+    ps.add(DEBOUNCE);
+    return List.copyOf(ps);
+  }
+
+  @Override
+  public QParametersPositionalType onListPositionalParameters()
+  {
+    return new QParametersPositionalNone();
+  }
+
+  @Override
+  public QCommandStatus onExecute(
+    final QCommandContextType context)
+    throws Exception
+  {
+    QLogback.configure(context);
+
+    final var file =
+      context.parameterValue(UCmdApply.CONFIGURATION)
+        .toAbsolutePath();
+    final var databaseSource =
+      context.parameterValue(UCmdApply.DATABASE_SOURCE)
+        .orElse(UDatabaseSource.AUTOMATIC);
+    final var databaseLookup =
+      context.parameterValue(UCmdApply.DATABASE_LOOKUP)
+        .orElse(UDatabaseLookup.AUTOMATIC);
+    final var getentTimeout =
+      context.parameterValue(UCmdApply.GETENT_TIMEOUT)
+        .orElse(UDatabaseParsing.DEFAULT_GETENT_TIMEOUT);
+    final var debounce =
+      context.parameterValue(DEBOUNCE)
+        .orElse(Duration.ofSeconds(1L));
+
+    if (!UCmdApply.readsFiles(databaseSource)) {
+      LOG.warn(
+        "The databases are not read from files; changes made through "
+        + "other name services will not be noticed until a watched file "
+        + "changes.");
+    }
+
+    final var writer =
+      new PrintWriter(System.out);
+    final var reconciler =
+      new Reconciler(
+        file,
+        databaseSource,
+        databaseLookup,
+        getentTimeout,
+        UCmdApply.executor(
+          context, writer, new UMetrics(), Path.of("/")),
+        writer
+      );
+
+    try (var watcher = FileSystems.getDefault().newWatchService()) {
+      final var directories = new ArrayList<Path>();
+      directories.add(file.getParent());
+      directories.add(UCmdApply.PASSWD.getParent());
+      directories.add(UCmdApply.GROUP.getParent());
+
+      for (final var directory : directories.stream().distinct().toList()) {
+        LOG.debug("watching {}", directory);
+        directory.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+      }
+
+      final var debouncer = new UWatchDebounce(file, debounce);
+      reconciler.reconcile(true, true);
+      while (true) {
+        final var changes = awaitChanges(watcher, debouncer);
+        reconciler.reconcile(changes.configuration(), changes.databases());
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return QCommandStatus.SUCCESS;
+    }
+  }
+
+  /**
+   * Wait for a change to one of the watched files, and then wait until no
+   * further changes have been seen for the debounce period. Tools that edit
+   * the databases typically write a temporary file, rename it, and remove
+   * lock files, so a single logical change produces a burst of events.
+   */
+
+  private static UWatchDebounce.Changes awaitChanges(
+    final WatchService watcher,
+    final UWatchDebounce debounce)
+    throws InterruptedException, IOException
+  {
+    while (true) {
+      final var now = System.nanoTime();
+      final var changes = debounce.take(now);
+      if (changes.isPresent()) {
+        return changes.get();
+      }
+
+      final var wait = debounce.waitTime(now);
+      final WatchKey key;
+      if (wait.isPresent()) {
+        key = watcher.poll(wait.getAsLong(), TimeUnit.NANOSECONDS);
+      } else {
+        key = watcher.take();
+      }
+      if (key != null) {
+        collect(debounce, key);
+      }
+    }
+  }
+
+  /**
+   * Record the events of a key.
+   */
+
+  private static void collect(
+    final UWatchDebounce debounce,
+    final WatchKey key)
+    throws IOException
+  {
+    final var directory = (Path) key.watchable();
+    for (final var event : key.pollEvents()) {
+      final var now = System.nanoTime();
+      if (event.kind() == OVERFLOW) {
+        debounce.onOverflow(now);
+      } else {
+        debounce.onEvent(directory.resolve((Path) event.context()), now);
+      }
+    }
+
+    if (!key.reset()) {
+      throw new IOException(
+        "Watched directory %s is no longer accessible.".formatted(directory)
+      );
+    }
+  }
+
+  @Override
+  public QCommandMetadata metadata()
+  {
+    return new QCommandMetadata(
+      "watch",
+      new QConstant(
+        "Watch the configuration and databases, and apply changes as "
+        + "they occur."),
+      Optional.empty()
+    );
+  }
+
+  /**
+   * A reconciler that keeps the most recently parsed configuration and the
+   * most recently read databases, and refreshes only what has changed.
+   */
+
+  private static final class Reconciler
+  {
+    private final Path file;
+    private final UDatabaseSource databaseSource;
+    private final UDatabaseLookup databaseLookup;
+    private final Duration getentTimeout;
+    private final UAdjustmentExecutorType executor;
+    private final PrintWriter writer;
+    private UConfiguration configuration;
+    private UUserDatabase users;
+    private UGroupDatabase groups;
+
+    Reconciler(
+      final Path inFile,
+      final UDatabaseSource inDatabaseSource,
+      final UDatabaseLookup inDatabaseLookup,
+      final Duration inGetentTimeout,
+      final UAdjustmentExecutorType inExecutor,
+      final PrintWriter inWriter)
+    {
+      this.file = inFile;
+      this.databaseSource = inDatabaseSource;
+      this.databaseLookup = inDatabaseLookup;
+      this.getentTimeout = inGetentTimeout;
+      this.executor = inExecutor;
+      this.writer = inWriter;
+    }
+
+    void reconcile(
+      final boolean configurationChanged,
+      final boolean databasesChanged)
+      throws InterruptedException
+    {
+      try {
+        if (configurationChanged || this.configuration == null) {
+          LOG.debug("parsing {}", this.file);
+          this.configuration = UConfigurations.parse(this.file);
+        }
+
+        /*
+         * A snapshot produced by targeted lookups only covers the users and
+         * groups in the configuration it was read for.
+         */
+
+        final var targeted =
+          this.databaseLookup != UDatabaseLookup.ENUMERATE;
+        if (databasesChanged
+            || this.users == null
+            || (configurationChanged && targeted)) {
+          LOG.debug("reading databases");
+          this.users = UUserDatabase.get(
+            this.databaseSource,
+            this.databaseLookup,
+            this.configuration.users(),
+            this.getentTimeout
+          );
+          this.groups = UGroupDatabase.get(
+            this.databaseSource,
+            this.databaseLookup,
+            this.configuration.groups(),
+            this.getentTimeout
+          );
+        }
+
+        final var delta =
+          UDelta.delta(
+            this.users,
+            this.groups,
+            this.configuration,
+            ForkJoinPool.commonPool()
+          );
+
+        if (delta.isEmpty()) {
+          LOG.debug("no adjustments required");
+          return;
+        }
+
+        /*
+         * Executing the adjustments changes the databases, so the snapshots
+         * must be read again next time regardless of what the watcher sees.
+         */
+
+        LOG.info("applying {} adjustments", Integer.valueOf(delta.size()));
+        this.users = null;
+        this.groups = null;
+        this.executor.execute(delta);
+        this.writer.flush();
+      } catch (final UException e) {
+        LOG.error("{}: {} {}", e.errorCode(), e.getMessage(), e.attributes());
+      } catch (final InterruptedException e) {
+        throw e;
+      } catch (final Exception e) {
+        LOG.error("reconcile failed: ", e);
+      }
+    }
+  }
+}
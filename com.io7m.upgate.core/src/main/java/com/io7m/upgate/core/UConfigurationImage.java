@@ -0,0 +1,411 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.core;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * <p>A compiled image of a configuration.</p>
+ *
+ * <p>An image consists of a magic number and version, the 32-byte SHA-256
+ * digest of the configuration file from which it was compiled, a table of
+ * the distinct strings in the configuration, and then the users and groups
+ * as parallel arrays of integers. Names and shells are indices into the
+ * string table, and group members are indices into the user arrays. All
+ * integers are big-endian and strings are UTF-8.</p>
+ *
+ * <p>Images are read through a memory-mapped file; opening an image reads
+ * nothing but the header, and decoding the configuration is a linear scan
+ * of the arrays with no parsing or schema validation.</p>
+ *
+ * @see UConfigurations#compile(Path, Path)
+ */
+
+final class UConfigurationImage
+{
+  private static final int MAGIC = 0x55504349;
+  private static final int VERSION = 1;
+  private static final int DIGEST_SIZE = 32;
+  private static final int HEADER_SIZE = 8 + DIGEST_SIZE;
+
+  private final ByteBuffer buffer;
+  private int position;
+
+  private UConfigurationImage(
+    final ByteBuffer inBuffer)
+  {
+    this.buffer = Objects.requireNonNull(inBuffer, "buffer");
+    this.position = HEADER_SIZE;
+  }
+
+  /**
+   * Open the image in the given file.
+   *
+   * @param file The file
+   *
+   * @return The image
+   *
+   * @throws IOException On I/O errors
+   * @throws UException  If the file is not an image
+   */
+
+  static UConfigurationImage open(
+    final Path file)
+    throws IOException, UException
+  {
+    try (var channel = FileChannel.open(file, READ)) {
+      final var size = channel.size();
+      if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+        throw malformed("The file is not a configuration image.");
+      }
+
+      final var buffer = channel.map(READ_ONLY, 0L, size);
+      if (buffer.getInt(0) != MAGIC) {
+        throw malformed("The file is not a configuration image.");
+      }
+      final var version = buffer.getInt(4);
+      if (version != VERSION) {
+        throw malformed(
+          "Unsupported configuration image version %d."
+            .formatted(Integer.valueOf(version)));
+      }
+      return new UConfigurationImage(buffer);
+    }
+  }
+
+  /**
+   * Write an image of a configuration to the given file. The file is
+   * replaced atomically.
+   *
+   * @param file          The file
+   * @param configuration The configuration
+   * @param sourceSHA256  The SHA-256 digest of the configuration file, in
+   *                      lowercase hexadecimal
+   *
+   * @throws IOException On errors
+   */
+
+  static void write(
+    final Path file,
+    final UConfiguration configuration,
+    final String sourceSHA256)
+    throws IOException
+  {
+    final var absolute = file.toAbsolutePath();
+    final var temporary =
+      absolute.resolveSibling(absolute.getFileName() + ".tmp");
+    try (var output = new DataOutputStream(
+      new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+      output.writeInt(MAGIC);
+      output.writeInt(VERSION);
+      output.write(HexFormat.of().parseHex(sourceSHA256));
+      writeBody(output, configuration);
+    }
+    Files.move(temporary, absolute, ATOMIC_MOVE, REPLACE_EXISTING);
+  }
+
+  private static void writeBody(
+    final DataOutputStream output,
+    final UConfiguration configuration)
+    throws IOException
+  {
+    final var strings = new LinkedHashMap<String, Integer>();
+    final var users = configuration.users();
+    final var userIndices = new HashMap<String, Integer>(users.size() * 2);
+    for (final var user : users) {
+      intern(strings, user.name());
+      intern(strings, user.shell());
+      userIndices.put(user.name(), Integer.valueOf(userIndices.size()));
+    }
+    final var groups = configuration.groups();
+    for (final var group : groups) {
+      intern(strings, group.name());
+    }
+
+    writeStrings(output, strings);
+    writeUsers(output, users, strings);
+
+    output.writeInt(groups.size());
+    for (final var group : groups) {
+      output.writeInt(group.id());
+    }
+    for (final var group : groups) {
+      output.writeInt(strings.get(group.name()).intValue());
+    }
+    writeMembers(output, groups, userIndices);
+  }
+
+  private static void writeUsers(
+    final DataOutputStream output,
+    final List<UUser> users,
+    final Map<String, Integer> strings)
+    throws IOException
+  {
+    output.writeInt(users.size());
+    for (final var user : users) {
+      output.writeInt(user.id());
+    }
+    for (final var user : users) {
+      output.writeInt(user.groupId());
+    }
+    for (final var user : users) {
+      output.writeInt(strings.get(user.name()).intValue());
+    }
+    for (final var user : users) {
+      output.writeInt(strings.get(user.shell()).intValue());
+    }
+  }
+
+  private static void writeMembers(
+    final DataOutputStream output,
+    final List<UGroup> groups,
+    final Map<String, Integer> userIndices)
+    throws IOException
+  {
+    var start = 0;
+    output.writeInt(start);
+    for (final var group : groups) {
+      start += group.users().size();
+      output.writeInt(start);
+    }
+    for (final var group : groups) {
+      for (final var user : group.users().values()) {
+        final var index = userIndices.get(user.name());
+        if (index == null) {
+          throw new IllegalArgumentException(
+            "Group %s contains user %s, which is not a configured user."
+              .formatted(group.name(), user.name()));
+        }
+        output.writeInt(index.intValue());
+      }
+    }
+  }
+
+  private static void intern(
+    final Map<String, Integer> strings,
+    final String string)
+  {
+    strings.putIfAbsent(string, Integer.valueOf(strings.size()));
+  }
+
+  private static void writeStrings(
+    final DataOutputStream output,
+    final Map<String, Integer> strings)
+    throws IOException
+  {
+    final var encoded = new ArrayList<byte[]>(strings.size());
+    for (final var string : strings.keySet()) {
+      encoded.add(string.getBytes(UTF_8));
+    }
+
+    output.writeInt(encoded.size());
+    var offset = 0;
+    output.writeInt(offset);
+    for (final var bytes : encoded) {
+      offset += bytes.length;
+      output.writeInt(offset);
+    }
+    for (final var bytes : encoded) {
+      output.write(bytes);
+    }
+  }
+
+  /**
+   * @return The SHA-256 digest of the configuration file from which the
+   * image was compiled, in lowercase hexadecimal
+   */
+
+  String sourceSHA256()
+  {
+    final var digest = new byte[DIGEST_SIZE];
+    this.buffer.get(8, digest);
+    return HexFormat.of().formatHex(digest);
+  }
+
+  /**
+   * Decode the configuration in the image.
+   *
+   * @return The configuration
+   *
+   * @throws UException If the image is truncated or corrupt
+   */
+
+  UConfiguration configuration()
+    throws UException
+  {
+    this.position = HEADER_SIZE;
+    try {
+      final var strings = this.readStrings();
+      final var users = this.readUsers(strings);
+      final var groups = this.readGroups(strings, users);
+      if (this.position != this.buffer.limit()) {
+        throw malformed("Trailing data after the configuration image.");
+      }
+      return new UConfiguration(List.of(users), List.copyOf(groups));
+    } catch (final IndexOutOfBoundsException | IllegalArgumentException e) {
+      throw malformed("The configuration image is truncated or corrupt.");
+    }
+  }
+
+  private String[] readStrings()
+    throws UException
+  {
+    final var count = this.readCount();
+    final var offsets = this.readInts(this.checkCount(count + 1));
+    final var base = this.position;
+    this.position += this.checkBytes(offsets[count]);
+
+    final var strings = new String[count];
+    for (int index = 0; index < count; ++index) {
+      final var start = offsets[index];
+      final var length = offsets[index + 1] - start;
+      if (start < 0 || length < 0 || offsets[index + 1] > offsets[count]) {
+        throw malformed(
+          "Invalid string table offset %d.".formatted(Integer.valueOf(start)));
+      }
+      strings[index] =
+        UTF_8.decode(this.buffer.slice(base + start, length)).toString();
+    }
+    return strings;
+  }
+
+  private UUser[] readUsers(
+    final String[] strings)
+    throws UException
+  {
+    final var count = this.readCount();
+    final var ids = this.readInts(count);
+    final var groupIds = this.readInts(count);
+    final var names = this.readInts(count);
+    final var shells = this.readInts(count);
+
+    final var users = new UUser[count];
+    for (int index = 0; index < count; ++index) {
+      users[index] = new UUser(
+        ids[index],
+        groupIds[index],
+        strings[names[index]],
+        strings[shells[index]]
+      );
+    }
+    return users;
+  }
+
+  private List<UGroup> readGroups(
+    final String[] strings,
+    final UUser[] users)
+    throws UException
+  {
+    final var count = this.readCount();
+    final var ids = this.readInts(count);
+    final var names = this.readInts(count);
+    final var starts = this.readInts(this.checkCount(count + 1));
+    final var members = this.readInts(this.checkCount(starts[count]));
+
+    final var groups = new ArrayList<UGroup>(count);
+    for (int index = 0; index < count; ++index) {
+      final var end = starts[index + 1];
+      final var groupUsers = new HashMap<String, UUser>();
+      for (int member = starts[index]; member < end; ++member) {
+        final var user = users[members[member]];
+        groupUsers.put(user.name(), user);
+      }
+      groups.add(
+        new UGroup(ids[index], strings[names[index]], Map.copyOf(groupUsers))
+      );
+    }
+    return groups;
+  }
+
+  private int readCount()
+    throws UException
+  {
+    final var count = this.buffer.getInt(this.position);
+    this.position += 4;
+    return this.checkCount(count);
+  }
+
+  private int checkCount(
+    final int count)
+    throws UException
+  {
+    if (count < 0 || (long) count * 4L > this.remaining()) {
+      throw malformed("Invalid count %d.".formatted(Integer.valueOf(count)));
+    }
+    return count;
+  }
+
+  private int checkBytes(
+    final int count)
+    throws UException
+  {
+    if (count < 0 || count > this.remaining()) {
+      throw malformed(
+        "Invalid string table size %d.".formatted(Integer.valueOf(count)));
+    }
+    return count;
+  }
+
+  private long remaining()
+  {
+    return (long) this.buffer.limit() - (long) this.position;
+  }
+
+  private int[] readInts(
+    final int count)
+  {
+    final var values = new int[count];
+    this.buffer.slice(this.position, count * 4)
+      .asIntBuffer()
+      .get(values);
+    this.position += count * 4;
+    return values;
+  }
+
+  private static UException malformed(
+    final String message)
+  {
+    return new UException(
+      message,
+      "error-configuration-image-malformed",
+      Map.of(),
+      Optional.empty(),
+      List.of()
+    );
+  }
+}
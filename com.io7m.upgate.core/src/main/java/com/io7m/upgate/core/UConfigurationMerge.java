@@ -0,0 +1,204 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.core;
+
+import com.io7m.seltzer.api.SStructuredError;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+import static java.lang.Integer.toUnsignedString;
+import static java.util.Map.entry;
+
+/**
+ * <p>Functions to merge configuration fragments into a single
+ * configuration.</p>
+ *
+ * <p>Each fragment has already been validated on its own, so merging only
+ * has to check entries against those of other fragments. Users and groups
+ * are indexed by name and by ID as they are merged. An entry that is
+ * identical to one in an earlier fragment is accepted once; an entry that
+ * shares a name or an ID with a different entry is a conflict. Every
+ * conflict is reported, not just the first.</p>
+ */
+
+final class UConfigurationMerge
+{
+  private UConfigurationMerge()
+  {
+
+  }
+
+  private record Claim<T>(
+    T entry,
+    Path file)
+  {
+    Claim
+    {
+      Objects.requireNonNull(entry, "entry");
+      Objects.requireNonNull(file, "file");
+    }
+  }
+
+  /**
+   * Merge the given fragments.
+   *
+   * @param files     The fragment files, in merge order
+   * @param fragments The configurations parsed from each file
+   *
+   * @return The merged configuration
+   *
+   * @throws UException If any fragments conflict
+   */
+
+  static UConfiguration merge(
+    final List<Path> files,
+    final List<UConfiguration> fragments)
+    throws UException
+  {
+    if (files.size() != fragments.size()) {
+      throw new IllegalArgumentException(
+        "Expected %d fragments, received %d"
+          .formatted(
+            Integer.valueOf(files.size()),
+            Integer.valueOf(fragments.size())));
+    }
+
+    var userCount = 0;
+    var groupCount = 0;
+    for (final var fragment : fragments) {
+      userCount += fragment.users().size();
+      groupCount += fragment.groups().size();
+    }
+
+    final var errors =
+      new ArrayList<SStructuredError<String>>();
+    final var users =
+      new ArrayList<UUser>(userCount);
+    final var usersByName =
+      new HashMap<String, Claim<UUser>>(userCount * 2);
+    final var usersById =
+      new UIntMap<Claim<UUser>>(userCount);
+    final var groups =
+      new ArrayList<UGroup>(groupCount);
+    final var groupsByName =
+      new HashMap<String, Claim<UGroup>>(groupCount * 2);
+    final var groupsById =
+      new UIntMap<Claim<UGroup>>(groupCount);
+
+    for (int index = 0; index < fragments.size(); ++index) {
+      final var file = files.get(index);
+      final var fragment = fragments.get(index);
+
+      for (final var user : fragment.users()) {
+        final var claim = new Claim<>(user, file);
+        final var existing =
+          claimOf(usersByName, usersById, user.name(), user.id(), claim);
+        if (existing == null) {
+          users.add(user);
+        } else if (!existing.entry().equals(user)) {
+          errors.add(userConflict(existing, claim));
+        }
+      }
+
+      for (final var group : fragment.groups()) {
+        final var claim = new Claim<>(group, file);
+        final var existing =
+          claimOf(groupsByName, groupsById, group.name(), group.id(), claim);
+        if (existing == null) {
+          groups.add(group);
+        } else if (!existing.entry().equals(group)) {
+          errors.add(groupConflict(existing, claim));
+        }
+      }
+    }
+
+    UDelta.checkErrors(errors);
+    return new UConfiguration(List.copyOf(users), List.copyOf(groups));
+  }
+
+  /**
+   * Claim a name and ID for an entry.
+   *
+   * @return The earlier claim on the name or, failing that, the ID, or
+   * {@code null} if neither was claimed
+   */
+
+  private static <T> Claim<T> claimOf(
+    final Map<String, Claim<T>> byName,
+    final UIntMap<Claim<T>> byId,
+    final String name,
+    final int id,
+    final Claim<T> claim)
+  {
+    final var named = byName.putIfAbsent(name, claim);
+    final var numbered = byId.putIfAbsent(id, claim);
+    return named != null ? named : numbered;
+  }
+
+  private static SStructuredError<String> userConflict(
+    final Claim<UUser> existing,
+    final Claim<UUser> claim)
+  {
+    final var user0 = existing.entry();
+    final var user1 = claim.entry();
+    return new SStructuredError<>(
+      "error-fragment-user-conflict",
+      "Configuration fragments define conflicting users.",
+      Map.ofEntries(
+        entry("File (0)", existing.file().toString()),
+        entry("User (0) Name", user0.name()),
+        entry("User (0) ID", toUnsignedString(user0.id())),
+        entry("File (1)", claim.file().toString()),
+        entry("User (1) Name", user1.name()),
+        entry("User (1) ID", toUnsignedString(user1.id()))
+      ),
+      Optional.of(
+        "Define the user identically in each fragment, or in only one."),
+      Optional.empty()
+    );
+  }
+
+  private static SStructuredError<String> groupConflict(
+    final Claim<UGroup> existing,
+    final Claim<UGroup> claim)
+  {
+    final var group0 = existing.entry();
+    final var group1 = claim.entry();
+    return new SStructuredError<>(
+      "error-fragment-group-conflict",
+      "Configuration fragments define conflicting groups.",
+      Map.ofEntries(
+        entry("File (0)", existing.file().toString()),
+        entry("Group (0) Name", group0.name()),
+        entry("Group (0) ID", toUnsignedString(group0.id())),
+        entry("File (1)", claim.file().toString()),
+        entry("Group (1) Name", group1.name()),
+        entry("Group (1) ID", toUnsignedString(group1.id()))
+      ),
+      Optional.of(
+        "Define the group identically in each fragment, or in only one."),
+      Optional.empty()
+    );
+  }
+}
@@ -0,0 +1,424 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.core;
+
+import com.io7m.seltzer.api.SStructuredError;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.ValidatorHandler;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A configuration parser. The parser compiles the configuration schema once
+ * on creation, and keeps a pool of XML readers and schema validators that are
+ * reused across parses. Parsers are safe to use from multiple threads
+ * concurrently; each concurrent parse takes its own reader from the pool.
+ */
+
+public final class UConfigurationParser
+{
+  private static final Logger LOG =
+    LoggerFactory.getLogger(UConfigurationParser.class);
+  private static final String NS =
+    "urn:com.io7m.upgate:1";
+
+  private final Schema schema;
+  private final SAXParserFactory parsers;
+  private final ConcurrentLinkedQueue<Worker> workers;
+
+  private UConfigurationParser(
+    final Schema inSchema,
+    final SAXParserFactory inParsers)
+  {
+    this.schema =
+      Objects.requireNonNull(inSchema, "schema");
+    this.parsers =
+      Objects.requireNonNull(inParsers, "parsers");
+    this.workers =
+      new ConcurrentLinkedQueue<>();
+  }
+
+  /**
+   * Create a new configuration parser.
+   *
+   * @return A new parser
+   *
+   * @throws UException If the schema cannot be compiled
+   */
+
+  public static UConfigurationParser create()
+    throws UException
+  {
+    try {
+      final var schemas =
+        SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+      final var schema =
+        schemas.newSchema(
+          UConfigurationParser.class.getResource(
+            "/com/io7m/upgate/core/upgate-1.xsd")
+        );
+
+      final var parsers =
+        SAXParserFactory.newDefaultNSInstance();
+
+      parsers.setValidating(false);
+      parsers.setXIncludeAware(false);
+      parsers.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+      return new UConfigurationParser(schema, parsers);
+    } catch (final SAXException | ParserConfigurationException e) {
+      throw new UException(
+        "Failed to create a configuration parser.",
+        e,
+        "error-parser-create",
+        Map.of(),
+        Optional.empty(),
+        List.of()
+      );
+    }
+  }
+
+  /**
+   * Parse the given configuration file. The file is validated against the
+   * schema and converted to a configuration in a single streaming pass;
+   * no document tree is constructed.
+   *
+   * @param file The file
+   *
+   * @return The configuration
+   *
+   * @throws Exception On errors
+   */
+
+  public UConfiguration parse(
+    final Path file)
+    throws Exception
+  {
+    Objects.requireNonNull(file, "file");
+
+    final var worker = this.takeWorker();
+    final var failed =
+      new AtomicBoolean(false);
+    final var errorHandler =
+      new LoggingErrorHandler(failed);
+    final var handler =
+      new ConfigurationHandler(failed);
+
+    var reusable = false;
+    try {
+      worker.validator.setErrorHandler(errorHandler);
+      worker.validator.setContentHandler(handler);
+      worker.reader.setErrorHandler(errorHandler);
+      worker.reader.setContentHandler(worker.validator);
+
+      try (var stream = Files.newInputStream(file)) {
+        final var source = new InputSource(stream);
+        source.setSystemId(file.toUri().toString());
+        worker.reader.parse(source);
+      }
+      reusable = true;
+    } finally {
+      worker.validator.setErrorHandler(null);
+      worker.validator.setContentHandler(null);
+      worker.reader.setErrorHandler(null);
+      worker.reader.setContentHandler(null);
+
+      /*
+       * A reader that failed part way through a document is discarded
+       * rather than returned to the pool.
+       */
+
+      if (reusable) {
+        this.workers.add(worker);
+      }
+    }
+
+    handler.checkErrors();
+    if (failed.get()) {
+      throw new IOException("One or more parse/validation errors occurred.");
+    }
+    return handler.result();
+  }
+
+  private Worker takeWorker()
+    throws ParserConfigurationException, SAXException
+  {
+    final var existing = this.workers.poll();
+    if (existing != null) {
+      return existing;
+    }
+
+    /*
+     * Factories are not guaranteed to be thread-safe.
+     */
+
+    final XMLReader reader;
+    synchronized (this.parsers) {
+      reader = this.parsers.newSAXParser().getXMLReader();
+    }
+    return new Worker(reader, this.schema.newValidatorHandler());
+  }
+
+  private record Worker(
+    XMLReader reader,
+    ValidatorHandler validator)
+  {
+
+  }
+
+  /**
+   * A content handler that receives events from the schema validator and
+   * accumulates users and groups as elements arrive. Once any error has been
+   * reported, the handler stops interpreting elements, as the attributes of
+   * invalid elements cannot be trusted; the caller is expected to discard the
+   * result.
+   */
+
+  private static final class ConfigurationHandler
+    extends DefaultHandler
+  {
+    private final AtomicBoolean failed;
+    private final ArrayList<UUser> users;
+    private final ArrayList<UGroup> groups;
+    private final HashMap<String, UUser> groupUsers;
+    private final LinkedList<SStructuredError<String>> errors;
+    private Map<String, UUser> usersByName;
+    private Locator locator;
+    private int groupId;
+    private String groupName;
+
+    ConfigurationHandler(
+      final AtomicBoolean inFailed)
+    {
+      this.failed = inFailed;
+      this.users = new ArrayList<>();
+      this.groups = new ArrayList<>();
+      this.groupUsers = new HashMap<>();
+      this.errors = new LinkedList<>();
+      this.usersByName = Map.of();
+    }
+
+    void checkErrors()
+      throws UException
+    {
+      if (!this.errors.isEmpty()) {
+        final var first = this.errors.removeFirst();
+        throw new UException(
+          first.message(),
+          first.errorCode(),
+          first.attributes(),
+          first.remediatingAction(),
+          this.errors
+        );
+      }
+    }
+
+    @Override
+    public void setDocumentLocator(
+      final Locator inLocator)
+    {
+      this.locator = inLocator;
+    }
+
+    UConfiguration result()
+    {
+      return new UConfiguration(
+        List.copyOf(this.users),
+        List.copyOf(this.groups)
+      );
+    }
+
+    @Override
+    public void startElement(
+      final String uri,
+      final String localName,
+      final String qName,
+      final Attributes attributes)
+    {
+      if (this.failed.get() || !NS.equals(uri)) {
+        return;
+      }
+
+      switch (localName) {
+        case "User" -> {
+          this.users.add(new UUser(
+            Integer.parseUnsignedInt(attributes.getValue("", "ID")),
+            Integer.parseUnsignedInt(attributes.getValue("", "GID")),
+            attributes.getValue("", "Name"),
+            attributes.getValue("", "Shell")
+          ));
+        }
+
+        case "Group" -> {
+          this.groupId =
+            Integer.parseUnsignedInt(attributes.getValue("", "ID"));
+          this.groupName =
+            attributes.getValue("", "Name");
+          this.groupUsers.clear();
+        }
+
+        case "GroupMember" -> {
+          final var name =
+            attributes.getValue("", "User");
+          final var user =
+            this.usersByName.get(name);
+
+          if (user == null) {
+            this.errors.add(this.errorNonexistentMember(name));
+          } else {
+            this.groupUsers.put(name, user);
+          }
+        }
+
+        default -> {
+
+        }
+      }
+    }
+
+    @Override
+    public void endElement(
+      final String uri,
+      final String localName,
+      final String qName)
+    {
+      if (this.failed.get() || !NS.equals(uri)) {
+        return;
+      }
+
+      switch (localName) {
+        case "Users" -> {
+          final var index =
+            new HashMap<String, UUser>(this.users.size() * 2);
+          for (final var user : this.users) {
+            index.put(user.name(), user);
+          }
+          this.usersByName = index;
+        }
+
+        case "Group" -> {
+          this.groups.add(new UGroup(
+            this.groupId,
+            this.groupName,
+            Map.copyOf(this.groupUsers)
+          ));
+        }
+
+        default -> {
+
+        }
+      }
+    }
+
+    private SStructuredError<String> errorNonexistentMember(
+      final String name)
+    {
+      final var attributes = new HashMap<String, String>();
+      attributes.put("Group", this.groupName);
+      attributes.put("User", name);
+      if (this.locator != null) {
+        attributes.put("File", String.valueOf(this.locator.getSystemId()));
+        attributes.put(
+          "Line",
+          Integer.toString(this.locator.getLineNumber()));
+      }
+
+      return new SStructuredError<>(
+        "error-group-member-nonexistent",
+        "A group member refers to a user that does not exist.",
+        Map.copyOf(attributes),
+        Optional.of("Declare the user, or remove it from the group."),
+        Optional.empty()
+      );
+    }
+  }
+
+  private static final class LoggingErrorHandler
+    implements ErrorHandler
+  {
+    private final AtomicBoolean failed;
+
+    private LoggingErrorHandler(
+      final AtomicBoolean inFailed)
+    {
+      this.failed = inFailed;
+    }
+
+    @Override
+    public void warning(
+      final SAXParseException exception)
+    {
+      LOG.warn(
+        "{}:{}: {}",
+        Integer.valueOf(exception.getLineNumber()),
+        Integer.valueOf(exception.getColumnNumber()),
+        exception.getMessage()
+      );
+    }
+
+    @Override
+    public void error(
+      final SAXParseException exception)
+    {
+      LOG.error(
+        "{}:{}: {}",
+        Integer.valueOf(exception.getLineNumber()),
+        Integer.valueOf(exception.getColumnNumber()),
+        exception.getMessage()
+      );
+      this.failed.set(true);
+    }
+
+    @Override
+    public void fatalError(
+      final SAXParseException exception)
+    {
+      LOG.error(
+        "{}:{}: {}",
+        Integer.valueOf(exception.getLineNumber()),
+        Integer.valueOf(exception.getColumnNumber()),
+        exception.getMessage()
+      );
+      this.failed.set(true);
+    }
+  }
+}
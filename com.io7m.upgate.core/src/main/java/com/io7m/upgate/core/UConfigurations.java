@@ -19,25 +19,17 @@ package com.io7m.upgate.core;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.xml.sax.ErrorHandler;
-import org.xml.sax.SAXException;
-import org.xml.sax.SAXParseException;
-
-import javax.xml.XMLConstants;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.validation.SchemaFactory;
+
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * Functions to parse configurations.
@@ -47,8 +39,6 @@ public final class UConfigurations
 {
   private static final Logger LOG =
     LoggerFactory.getLogger(UConfigurations.class);
-  private static final String NS =
-    "urn:com.io7m.upgate:1";
 
   private UConfigurations()
   {
@@ -56,182 +46,278 @@ public final class UConfigurations
   }
 
   /**
-   * Parse the given configuration file.
+   * Parse the given configuration file using a shared parser. The parser,
+   * and therefore the compiled schema, is created on first use and reused
+   * for every subsequent call.
    *
    * @param file The file
    *
    * @return The configuration
    *
    * @throws Exception On errors
+   *
+   * @see UConfigurationParser
    */
 
   public static UConfiguration parse(
     final Path file)
     throws Exception
   {
-    return consumeFile(parseFile(file));
+    return sharedParser().parse(file);
   }
 
-  private static UConfiguration consumeFile(
-    final Document document)
+  /**
+   * Parse and validate the given configuration file, and write a compiled
+   * image of the configuration to {@code image}. The image records the
+   * SHA-256 digest of the configuration file so that
+   * {@link #parseWithImage(Path, Path)} can tell whether it is still
+   * current.
+   *
+   * @param file  The configuration file
+   * @param image The output image file
+   *
+   * @return The configuration
+   *
+   * @throws Exception On errors
+   */
+
+  public static UConfiguration compile(
+    final Path file,
+    final Path image)
+    throws Exception
   {
-    final var root =
-      document.getDocumentElement();
+    final var sourceSHA256 = UApplyState.digest(file);
+    final var configuration = parse(file);
+    UConfigurationImage.write(image, configuration, sourceSHA256);
+    return configuration;
+  }
 
-    final var users =
-      new ArrayList<UUser>();
+  /**
+   * Load the configuration from a compiled image if the image was compiled
+   * from the current contents of {@code file}, skipping XML parsing and
+   * schema validation entirely. If the image is missing, stale, or
+   * unreadable, the configuration file is parsed as usual.
+   *
+   * @param file  The configuration file
+   * @param image The image file produced by {@link #compile(Path, Path)}
+   *
+   * @return The configuration
+   *
+   * @throws Exception On errors
+   */
 
-    {
-      final var usersE =
-        (Element) root.getElementsByTagNameNS(NS, "Users")
-          .item(0);
-
-      final var usersList =
-        usersE.getElementsByTagNameNS(NS, "User");
-
-      for (int index = 0; index < usersList.getLength(); ++index) {
-        final var userE = (Element) usersList.item(index);
-        users.add(new UUser(
-          Integer.parseUnsignedInt(userE.getAttribute("ID")),
-          Integer.parseUnsignedInt(userE.getAttribute("GID")),
-          userE.getAttribute("Name"),
-          userE.getAttribute("Shell")
-        ));
-      }
+  public static UConfiguration parseWithImage(
+    final Path file,
+    final Path image)
+    throws Exception
+  {
+    final var compiled =
+      loadImage(image, UApplyState.digest(file));
+    if (compiled.isPresent()) {
+      return compiled.get();
     }
+    return parse(file);
+  }
 
-    final var groups =
-      new ArrayList<UGroup>();
+  /**
+   * List the configuration fragments in the given directory: the regular
+   * files whose names end in {@code .xml}, sorted by name. Subdirectories
+   * are not searched.
+   *
+   * @param directory The directory
+   *
+   * @return The fragment files
+   *
+   * @throws IOException On I/O errors
+   * @throws UException  If the directory contains no fragments
+   */
 
-    {
-      final var groupsE =
-        (Element) root.getElementsByTagNameNS(NS, "Groups")
-          .item(0);
-
-      final var groupsList =
-        groupsE.getElementsByTagNameNS(NS, "Group");
-
-      for (int index = 0; index < groupsList.getLength(); ++index) {
-        final var groupE = (Element) groupsList.item(index);
-
-        final var membersE =
-          groupE.getElementsByTagNameNS(NS, "GroupMember");
-
-        final var groupUsers =
-          new HashMap<String, UUser>();
-
-        for (int gmIndex = 0; gmIndex < membersE.getLength(); ++gmIndex) {
-          final var memberE =
-            (Element) membersE.item(gmIndex);
-          final var name =
-            memberE.getAttribute("User");
-
-          final var user =
-            users.stream()
-              .filter(u -> Objects.equals(u.name(), name))
-              .findFirst()
-              .orElseThrow();
-
-          groupUsers.put(name, user);
-        }
-
-        groups.add(new UGroup(
-          Integer.parseUnsignedInt(groupE.getAttribute("ID")),
-          groupE.getAttribute("Name"),
-          Map.copyOf(groupUsers)
-        ));
-      }
+  public static List<Path> fragments(
+    final Path directory)
+    throws IOException, UException
+  {
+    final List<Path> files;
+    try (var stream = Files.list(directory)) {
+      files = stream.filter(Files::isRegularFile)
+        .filter(f -> f.getFileName().toString().endsWith(".xml"))
+        .sorted()
+        .toList();
     }
 
-    return new UConfiguration(
-      List.copyOf(users),
-      List.copyOf(groups)
-    );
+    if (files.isEmpty()) {
+      throw new UException(
+        "The configuration directory contains no fragments.",
+        "error-configuration-directory-empty",
+        Map.of("Directory", directory.toString()),
+        Optional.of("Add at least one .xml configuration fragment."),
+        List.of()
+      );
+    }
+    return files;
   }
 
-  private static Document parseFile(final Path file)
-    throws SAXException, ParserConfigurationException, IOException
+  /**
+   * Parse every fragment in the given directory and merge the results.
+   *
+   * @param directory The directory
+   * @param pool      The pool on which fragments are parsed
+   *
+   * @return The merged configuration
+   *
+   * @throws Exception On errors
+   *
+   * @see #fragments(Path)
+   * @see #parseFragments(List, ForkJoinPool)
+   */
+
+  public static UConfiguration parseDirectory(
+    final Path directory,
+    final ForkJoinPool pool)
+    throws Exception
   {
-    final var schemas =
-      SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-    final var schema =
-      schemas.newSchema(
-        UConfigurations.class.getResource(
-          "/com/io7m/upgate/core/upgate-1.xsd")
-      );
+    return parseFragments(fragments(directory), pool);
+  }
 
-    final var documentBuilders =
-      DocumentBuilderFactory.newDefaultNSInstance();
+  /**
+   * Parse the given configuration fragments concurrently on {@code pool},
+   * and merge them into a single configuration. Each fragment is a complete
+   * configuration document validated against the schema on its own, using
+   * the shared parser. A user or group may appear in more than one fragment
+   * only if every definition of it is identical; fragments that define
+   * different users or groups with the same name or ID are rejected.
+   *
+   * @param files The fragment files, in merge order
+   * @param pool  The pool on which fragments are parsed
+   *
+   * @return The merged configuration
+   *
+   * @throws Exception On errors
+   */
 
-    documentBuilders.setSchema(schema);
-    documentBuilders.setValidating(false);
-    documentBuilders.setExpandEntityReferences(false);
-    documentBuilders.setXIncludeAware(false);
+  public static UConfiguration parseFragments(
+    final List<Path> files,
+    final ForkJoinPool pool)
+    throws Exception
+  {
+    final var parser = sharedParser();
+    final var tasks =
+      new ArrayList<ForkJoinTask<Parsed>>(files.size());
+    for (final var file : files) {
+      tasks.add(pool.submit(() -> Parsed.of(parser, file)));
+    }
 
-    final var documentBuilder =
-      documentBuilders.newDocumentBuilder();
+    /*
+     * Every task is joined so that no parse is left running after a
+     * failure is raised. Failures after the first are attached to it.
+     */
+
+    final var fragments = new ArrayList<UConfiguration>(files.size());
+    Exception failure = null;
+    for (final var task : tasks) {
+      final var parsed = task.join();
+      if (parsed.failure() == null) {
+        fragments.add(parsed.configuration());
+      } else if (failure == null) {
+        failure = parsed.failure();
+      } else {
+        failure.addSuppressed(parsed.failure());
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    return UConfigurationMerge.merge(files, fragments);
+  }
 
-    final var failed = new AtomicBoolean(false);
-    documentBuilder.setErrorHandler(new LoggingErrorHandler(failed));
+  /**
+   * The result of parsing one fragment. Failures are carried back to the
+   * caller as values; the pool would otherwise wrap checked exceptions.
+   */
 
-    final Document document;
-    try (var stream = Files.newInputStream(file)) {
-      document = documentBuilder.parse(stream, file.toString());
+  private record Parsed(
+    UConfiguration configuration,
+    Exception failure)
+  {
+    static Parsed of(
+      final UConfigurationParser parser,
+      final Path file)
+    {
+      try {
+        return new Parsed(parser.parse(file), null);
+      } catch (final Exception e) {
+        return new Parsed(null, e);
+      }
     }
+  }
 
-    if (failed.get()) {
-      throw new IOException("One or more parse/validation errors occurred.");
+  private static Optional<UConfiguration> loadImage(
+    final Path image,
+    final String sourceSHA256)
+  {
+    try {
+      final var opened = UConfigurationImage.open(image);
+      if (!opened.sourceSHA256().equals(sourceSHA256)) {
+        LOG.warn(
+          "The configuration image {} is out of date; parsing the "
+          + "configuration file instead.", image);
+        return Optional.empty();
+      }
+      return Optional.of(opened.configuration());
+    } catch (final NoSuchFileException e) {
+      LOG.warn(
+        "The configuration image {} does not exist; parsing the "
+        + "configuration file instead.", image);
+      return Optional.empty();
+    } catch (final IOException | UException e) {
+      LOG.warn(
+        "The configuration image {} is unusable ({}); parsing the "
+        + "configuration file instead.", image, e.getMessage());
+      return Optional.empty();
     }
-    return document;
   }
 
-  private static final class LoggingErrorHandler
-    implements ErrorHandler
+  private static UConfigurationParser sharedParser()
+    throws UException
   {
-    private final AtomicBoolean failed;
+    return SharedParser.get();
+  }
 
-    private LoggingErrorHandler(
-      final AtomicBoolean inFailed)
-    {
-      this.failed = inFailed;
-    }
+  /**
+   * The holder of the shared parser. The JVM initializes the holder, and
+   * therefore compiles the schema, on first use and exactly once. The
+   * schema is a bundled resource, so a failure to compile it is permanent
+   * and is raised again on every use.
+   */
 
-    @Override
-    public void warning(
-      final SAXParseException exception)
-    {
-      LOG.warn(
-        "{}:{}: {}",
-        Integer.valueOf(exception.getLineNumber()),
-        Integer.valueOf(exception.getColumnNumber()),
-        exception.getMessage()
-      );
+  private static final class SharedParser
+  {
+    private static final UConfigurationParser PARSER;
+    private static final UException FAILURE;
+
+    static {
+      UConfigurationParser parser = null;
+      UException failure = null;
+      try {
+        parser = UConfigurationParser.create();
+      } catch (final UException e) {
+        failure = e;
+      }
+      PARSER = parser;
+      FAILURE = failure;
     }
 
-    @Override
-    public void error(
-      final SAXParseException exception)
+    private SharedParser()
     {
-      LOG.error(
-        "{}:{}: {}",
-        Integer.valueOf(exception.getLineNumber()),
-        Integer.valueOf(exception.getColumnNumber()),
-        exception.getMessage()
-      );
-      this.failed.set(true);
+
     }
 
-    @Override
-    public void fatalError(
-      final SAXParseException exception)
+    static UConfigurationParser get()
+      throws UException
     {
-      LOG.error(
-        "{}:{}: {}",
-        Integer.valueOf(exception.getLineNumber()),
-        Integer.valueOf(exception.getColumnNumber()),
-        exception.getMessage()
-      );
-      this.failed.set(true);
+      if (FAILURE != null) {
+        throw FAILURE;
+      }
+      return PARSER;
     }
   }
 }
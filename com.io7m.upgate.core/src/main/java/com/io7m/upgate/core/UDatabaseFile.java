@@ -0,0 +1,399 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * An editable, in-memory copy of a colon-separated database file such as
+ * passwd(5), group(5), shadow(5), or gshadow(5). Lines that are not entries
+ * (comments, blank lines, and lines with an unexpected number of fields) are
+ * preserved verbatim. Entries are indexed by name (the first field).
+ */
+
+final class UDatabaseFile
+{
+  private static final Logger LOG =
+    LoggerFactory.getLogger(UDatabaseFile.class);
+
+  private final Path file;
+  private final int fieldCount;
+  private final ArrayList<Line> lines;
+  private final HashMap<String, Line> byName;
+  private boolean modified;
+
+  private UDatabaseFile(
+    final Path inFile,
+    final int inFieldCount)
+  {
+    this.file =
+      Objects.requireNonNull(inFile, "file");
+    this.fieldCount =
+      inFieldCount;
+    this.lines =
+      new ArrayList<>();
+    this.byName =
+      new HashMap<>();
+    this.modified =
+      false;
+  }
+
+  /**
+   * Load the given database file.
+   *
+   * @param file       The file
+   * @param fieldCount The number of fields in each entry
+   *
+   * @return The loaded file
+   *
+   * @throws IOException On errors
+   */
+
+  static UDatabaseFile load(
+    final Path file,
+    final int fieldCount)
+    throws IOException
+  {
+    final var result = new UDatabaseFile(file, fieldCount);
+    final var text = Files.readString(file, UTF_8);
+
+    for (final var raw : text.split("\n")) {
+      final var fields = raw.split(":", -1);
+      final var line = new Line(raw);
+      if (!raw.isEmpty()
+          && raw.charAt(0) != '#'
+          && fields.length == fieldCount) {
+        line.fields = fields;
+        result.byName.putIfAbsent(fields[0], line);
+      }
+      result.lines.add(line);
+    }
+
+    /*
+     * Splitting discards trailing empty strings, except that an empty file
+     * yields a single empty string; don't write that back as a blank line.
+     */
+
+    final var last = result.lines.size() - 1;
+    if (last >= 0 && result.lines.get(last).raw.isEmpty()) {
+      result.lines.remove(last);
+    }
+    return result;
+  }
+
+  /**
+   * @return The file
+   */
+
+  Path file()
+  {
+    return this.file;
+  }
+
+  /**
+   * @return {@code true} if the file has been modified since loading
+   */
+
+  boolean isModified()
+  {
+    return this.modified;
+  }
+
+  /**
+   * @param name The entry name
+   *
+   * @return {@code true} if an entry with the given name exists
+   */
+
+  boolean contains(
+    final String name)
+  {
+    return this.byName.containsKey(name);
+  }
+
+  /**
+   * @param name  The entry name
+   * @param field The field index
+   *
+   * @return The value of the given field of the named entry, or {@code null}
+   */
+
+  String field(
+    final String name,
+    final int field)
+  {
+    final var line = this.byName.get(name);
+    if (line == null) {
+      return null;
+    }
+    return line.fields[field];
+  }
+
+  /**
+   * @param field The field index
+   *
+   * @return The distinct values of the given field across all entries
+   */
+
+  HashSet<String> fieldValues(
+    final int field)
+  {
+    final var values = new HashSet<String>(this.byName.size() * 2);
+    for (final var line : this.lines) {
+      if (line.fields != null) {
+        values.add(line.fields[field]);
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Set the value of a field of the named entry.
+   *
+   * @param name  The entry name
+   * @param field The field index
+   * @param value The new value
+   *
+   * @return {@code false} if there is no entry with the given name
+   */
+
+  boolean setField(
+    final String name,
+    final int field,
+    final String value)
+  {
+    if (field == 0) {
+      return this.rename(name, value);
+    }
+
+    final var line = this.byName.get(name);
+    if (line == null) {
+      return false;
+    }
+    line.fields[field] = value;
+    this.modified = true;
+    return true;
+  }
+
+  /**
+   * Rename the named entry.
+   *
+   * @param name    The entry name
+   * @param newName The new name
+   *
+   * @return {@code false} if there is no entry with the given name
+   */
+
+  boolean rename(
+    final String name,
+    final String newName)
+  {
+    final var line = this.byName.remove(name);
+    if (line == null) {
+      return false;
+    }
+    line.fields[0] = newName;
+    this.byName.put(newName, line);
+    this.modified = true;
+    return true;
+  }
+
+  /**
+   * Append an entry.
+   *
+   * @param fields The entry fields
+   */
+
+  void append(
+    final String... fields)
+  {
+    if (fields.length != this.fieldCount) {
+      throw new IllegalArgumentException(
+        "Expected %d fields".formatted(Integer.valueOf(this.fieldCount)));
+    }
+
+    final var line = new Line(null);
+    line.fields = fields.clone();
+    this.lines.add(line);
+    this.byName.put(fields[0], line);
+    this.modified = true;
+  }
+
+  /**
+   * Update the given field of every entry.
+   *
+   * @param field    The field index
+   * @param function A function from the existing value to the new value
+   */
+
+  void updateAll(
+    final int field,
+    final UnaryOperator<String> function)
+  {
+    for (final var line : this.lines) {
+      if (line.fields != null) {
+        final var existing = line.fields[field];
+        final var updated = function.apply(existing);
+        if (!Objects.equals(existing, updated)) {
+          line.fields[field] = updated;
+          this.modified = true;
+        }
+      }
+    }
+  }
+
+  /**
+   * Write the file back to disk atomically: the new contents are written to
+   * a temporary file in the same directory with the same permissions and
+   * ownership as the original, flushed to stable storage, and then renamed
+   * over the original.
+   *
+   * @throws IOException On errors
+   */
+
+  void write()
+    throws IOException
+  {
+    final var temporary =
+      this.file.resolveSibling(this.file.getFileName() + "+");
+
+    Files.deleteIfExists(temporary);
+    this.writeTemporary(temporary);
+    Files.move(temporary, this.file, ATOMIC_MOVE);
+    syncDirectory(this.file.toAbsolutePath().getParent());
+    this.modified = false;
+  }
+
+  private byte[] render()
+  {
+    final var text = new StringBuilder(this.lines.size() * 64);
+    for (final var line : this.lines) {
+      if (line.fields != null) {
+        text.append(String.join(":", line.fields));
+      } else {
+        text.append(line.raw);
+      }
+      text.append('\n');
+    }
+    return text.toString().getBytes(UTF_8);
+  }
+
+  private void writeTemporary(
+    final Path temporary)
+    throws IOException
+  {
+    final var posix =
+      Files.getFileAttributeView(this.file, PosixFileAttributeView.class);
+
+    /*
+     * The temporary file is created with the permissions of the original,
+     * and given the same ownership, before anything is written to it: the
+     * contents of the shadow files must never be world-readable.
+     */
+
+    final FileAttribute<?>[] attributes;
+    if (posix != null) {
+      attributes = new FileAttribute<?>[]{
+        PosixFilePermissions.asFileAttribute(
+          posix.readAttributes().permissions()),
+      };
+    } else {
+      attributes = new FileAttribute<?>[0];
+    }
+
+    final var options = Set.of(CREATE_NEW, WRITE);
+    try (var channel = FileChannel.open(temporary, options, attributes)) {
+      if (posix != null) {
+        copyOwnership(posix, temporary);
+      }
+
+      final var buffer = ByteBuffer.wrap(this.render());
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(true);
+    }
+  }
+
+  private static void copyOwnership(
+    final PosixFileAttributeView source,
+    final Path target)
+    throws IOException
+  {
+    final var existing =
+      source.readAttributes();
+    final var targetView =
+      Files.getFileAttributeView(target, PosixFileAttributeView.class);
+    final var created =
+      targetView.readAttributes();
+
+    if (!created.owner().equals(existing.owner())) {
+      targetView.setOwner(existing.owner());
+    }
+    if (!created.group().equals(existing.group())) {
+      targetView.setGroup(existing.group());
+    }
+  }
+
+  private static void syncDirectory(
+    final Path directory)
+  {
+    if (directory == null) {
+      return;
+    }
+    try (var channel = FileChannel.open(directory, READ)) {
+      channel.force(true);
+    } catch (final IOException e) {
+      LOG.debug("unable to sync directory {}: {}", directory, e.getMessage());
+    }
+  }
+
+  private static final class Line
+  {
+    private final String raw;
+    private String[] fields;
+
+    Line(
+      final String inRaw)
+    {
+      this.raw = inRaw;
+    }
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.core;
+
+/**
+ * The manner in which databases are read when they are read through
+ * getent(1). Databases read directly from files are always read in full.
+ */
+
+public enum UDatabaseLookup
+{
+  /**
+   * Enumerate every entry in each database.
+   */
+
+  ENUMERATE,
+
+  /**
+   * Look up only the names and IDs mentioned in the configuration, producing
+   * a partial snapshot of each database that contains exactly the entries
+   * needed to calculate the adjustments.
+   */
+
+  TARGETED,
+
+  /**
+   * Use targeted lookups if the configuration mentions few enough names and
+   * IDs that looking each of them up is likely to be cheaper than
+   * enumerating a large directory, and enumerate otherwise.
+   */
+
+  AUTOMATIC
+}
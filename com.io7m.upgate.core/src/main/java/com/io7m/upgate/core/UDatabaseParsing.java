@@ -0,0 +1,661 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.core;
+
+import com.io7m.upgate.core.UGroupDatabase.UGroupDatabaseEntry;
+import com.io7m.upgate.core.UUserDatabase.UUserDatabaseEntry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Functions to parse the passwd(5) and group(5) file formats in a single
+ * pass over the raw bytes, without regular expressions or intermediate
+ * per-line strings.
+ */
+
+final class UDatabaseParsing
+{
+  private static final int PASSWD_FIELDS = 7;
+  private static final int GROUP_FIELDS = 4;
+  private static final int STREAM_BUFFER_SIZE = 65536;
+
+  /**
+   * The default maximum time to allow getent(1) to run.
+   */
+
+  static final Duration DEFAULT_GETENT_TIMEOUT = Duration.ofSeconds(30L);
+
+  /**
+   * The maximum number of keys passed to a single getent(1) process.
+   */
+
+  static final int LOOKUP_BATCH_SIZE = 256;
+
+  /**
+   * The maximum number of keys for which {@link UDatabaseLookup#AUTOMATIC}
+   * selects targeted lookups.
+   */
+
+  static final int TARGETED_KEY_LIMIT = 512;
+
+  private static final int GETENT_KEY_NOT_FOUND = 2;
+
+  private UDatabaseParsing()
+  {
+
+  }
+
+  /**
+   * Map the given file into memory.
+   *
+   * @param file The file
+   *
+   * @return The file contents
+   *
+   * @throws IOException On errors
+   */
+
+  static ByteBuffer map(
+    final Path file)
+    throws IOException
+  {
+    try (var channel = FileChannel.open(file, READ)) {
+      final var size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException(
+          "%s: File is too large (%s bytes)".formatted(
+            file,
+            Long.toUnsignedString(size))
+        );
+      }
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0L, size);
+    }
+  }
+
+  /**
+   * A function that consumes the output of a process.
+   */
+
+  interface OutputConsumerType
+  {
+    /**
+     * Consume the output.
+     *
+     * @param stream The output stream of the process
+     *
+     * @throws IOException On errors
+     */
+
+    void consume(InputStream stream)
+      throws IOException;
+  }
+
+  /**
+   * A function that produces a value from a scanned entry.
+   *
+   * @param <T> The type of values
+   */
+
+  private interface EntryReaderType<T>
+  {
+    T read(Scanner scanner)
+      throws IOException;
+  }
+
+  /**
+   * Run getent(1) for the given database and keys, passing its output to
+   * {@code consumer} as it is produced. The consumer runs on the calling
+   * thread while the process is running, so the process can never block
+   * on a full pipe. If the process has not exited within {@code timeout},
+   * it is killed and an exception is raised.
+   *
+   * <p>If {@code keys} is empty, the database is enumerated. Otherwise,
+   * only the entries matching the given keys (names or numeric IDs) are
+   * produced, and keys that do not match any entry are ignored. The keys are
+   * passed to getent in batches of at most {@link #LOOKUP_BATCH_SIZE}, and
+   * the timeout applies to each batch.</p>
+   *
+   * @param transport The transport (empty to run getent locally)
+   * @param database  The database (such as "passwd")
+   * @param keys      The keys
+   * @param timeout   The maximum time to allow each getent process to run
+   * @param consumer  The output consumer
+   *
+   * @throws IOException          On errors, or if the timeout expires
+   * @throws InterruptedException On interruption
+   *
+   * @see UTransport
+   */
+
+  static void getent(
+    final List<String> transport,
+    final String database,
+    final List<String> keys,
+    final Duration timeout,
+    final OutputConsumerType consumer)
+    throws IOException, InterruptedException
+  {
+    Objects.requireNonNull(transport, "transport");
+    Objects.requireNonNull(database, "database");
+    Objects.requireNonNull(keys, "keys");
+    Objects.requireNonNull(timeout, "timeout");
+    Objects.requireNonNull(consumer, "consumer");
+
+    if (keys.isEmpty()) {
+      getentRun(
+        database,
+        UTransport.wrap(transport, List.of("getent", database)),
+        false,
+        timeout,
+        consumer
+      );
+      return;
+    }
+
+    /*
+     * The "--" prevents keys that begin with a dash from being taken as
+     * options.
+     */
+
+    for (int start = 0; start < keys.size(); start += LOOKUP_BATCH_SIZE) {
+      final var end = Math.min(keys.size(), start + LOOKUP_BATCH_SIZE);
+      final var command = new ArrayList<String>(3 + end - start);
+      command.add("getent");
+      command.add("--");
+      command.add(database);
+      command.addAll(keys.subList(start, end));
+      getentRun(
+        database,
+        UTransport.wrap(transport, command),
+        true,
+        timeout,
+        consumer
+      );
+    }
+  }
+
+  private static void getentRun(
+    final String database,
+    final List<String> command,
+    final boolean keyed,
+    final Duration timeout,
+    final OutputConsumerType consumer)
+    throws IOException, InterruptedException
+  {
+    final var deadline =
+      System.nanoTime() + timeout.toNanos();
+    final var proc =
+      new ProcessBuilder()
+        .command(command)
+        .redirectError(ProcessBuilder.Redirect.INHERIT)
+        .start();
+
+    /*
+     * Killing the process on timeout closes its end of the pipe, which
+     * causes the consumer to see the end of the stream and return.
+     */
+
+    final var timedOut = new AtomicBoolean(false);
+    proc.onExit()
+      .orTimeout(timeout.toNanos(), NANOSECONDS)
+      .whenComplete((p, e) -> {
+        if (e != null) {
+          timedOut.set(true);
+          proc.destroyForcibly();
+        }
+      });
+
+    try {
+      try (var stream = proc.getInputStream()) {
+        consumer.consume(stream);
+      } catch (final IOException e) {
+        if (timedOut.get()) {
+          throw timeoutError(database, timeout);
+        }
+        throw e;
+      }
+
+      final var remaining = Math.max(0L, deadline - System.nanoTime());
+      if (timedOut.get() || !proc.waitFor(remaining, NANOSECONDS)) {
+        throw timeoutError(database, timeout);
+      }
+
+      checkExit(database, proc.exitValue(), keyed);
+    } finally {
+      if (proc.isAlive()) {
+        proc.destroyForcibly();
+      }
+    }
+  }
+
+  private static void checkExit(
+    final String database,
+    final int exit,
+    final boolean keyed)
+    throws IOException
+  {
+    /*
+     * getent exits with status 2 if any of the given keys could not be
+     * found, which is expected when looking up entries that might not
+     * exist yet.
+     */
+
+    if (exit == 0 || (keyed && exit == GETENT_KEY_NOT_FOUND)) {
+      return;
+    }
+    throw new IOException(
+      "getent %s failed with exit code %d.".formatted(
+        database,
+        Integer.valueOf(exit))
+    );
+  }
+
+  private static IOException timeoutError(
+    final String database,
+    final Duration timeout)
+  {
+    return new IOException(
+      "getent %s did not complete within %s.".formatted(database, timeout)
+    );
+  }
+
+  /**
+   * Parse passwd(5) entries.
+   *
+   * @param data   The data
+   * @param source The source of the data, for error messages
+   *
+   * @return The entries
+   *
+   * @throws IOException On malformed entries
+   */
+
+  static List<UUserDatabaseEntry> parsePasswd(
+    final ByteBuffer data,
+    final String source)
+    throws IOException
+  {
+    final var entries = new ArrayList<UUserDatabaseEntry>();
+    parseAll(
+      data,
+      new Scanner(source, PASSWD_FIELDS),
+      UDatabaseParsing::passwdEntry,
+      entries::add
+    );
+    return entries;
+  }
+
+  /**
+   * Parse passwd(5) entries from a stream, passing each entry to
+   * {@code receiver} as soon as the line containing it has been read.
+   *
+   * @param stream   The stream
+   * @param source   The source of the data, for error messages
+   * @param receiver The entry receiver
+   *
+   * @throws IOException On errors or malformed entries
+   */
+
+  static void parsePasswd(
+    final InputStream stream,
+    final String source,
+    final Consumer<UUserDatabaseEntry> receiver)
+    throws IOException
+  {
+    parseStream(
+      stream,
+      new Scanner(source, PASSWD_FIELDS),
+      UDatabaseParsing::passwdEntry,
+      receiver
+    );
+  }
+
+  private static UUserDatabaseEntry passwdEntry(
+    final Scanner scanner)
+    throws IOException
+  {
+    return new UUserDatabaseEntry(
+      scanner.string(0),
+      scanner.unsigned(2),
+      scanner.unsigned(3),
+      scanner.string(6)
+    );
+  }
+
+  /**
+   * Parse group(5) entries.
+   *
+   * @param data   The data
+   * @param source The source of the data, for error messages
+   *
+   * @return The entries
+   *
+   * @throws IOException On malformed entries
+   */
+
+  static List<UGroupDatabaseEntry> parseGroup(
+    final ByteBuffer data,
+    final String source)
+    throws IOException
+  {
+    final var entries = new ArrayList<UGroupDatabaseEntry>();
+    parseAll(
+      data,
+      new Scanner(source, GROUP_FIELDS),
+      UDatabaseParsing::groupEntry,
+      entries::add
+    );
+    return entries;
+  }
+
+  /**
+   * Parse group(5) entries from a stream, passing each entry to
+   * {@code receiver} as soon as the line containing it has been read.
+   *
+   * @param stream   The stream
+   * @param source   The source of the data, for error messages
+   * @param receiver The entry receiver
+   *
+   * @throws IOException On errors or malformed entries
+   */
+
+  static void parseGroup(
+    final InputStream stream,
+    final String source,
+    final Consumer<UGroupDatabaseEntry> receiver)
+    throws IOException
+  {
+    parseStream(
+      stream,
+      new Scanner(source, GROUP_FIELDS),
+      UDatabaseParsing::groupEntry,
+      receiver
+    );
+  }
+
+  private static UGroupDatabaseEntry groupEntry(
+    final Scanner scanner)
+    throws IOException
+  {
+    return new UGroupDatabaseEntry(
+      scanner.string(0),
+      scanner.unsigned(2),
+      scanner.list(3)
+    );
+  }
+
+  private static <T> void parseAll(
+    final ByteBuffer data,
+    final Scanner scanner,
+    final EntryReaderType<T> reader,
+    final Consumer<T> receiver)
+    throws IOException
+  {
+    scanner.reset(data);
+    while (scanner.nextEntry()) {
+      receiver.accept(reader.read(scanner));
+    }
+  }
+
+  /**
+   * Read the stream in chunks, scanning the complete lines in each chunk
+   * in place. A partial line at the end of a chunk is moved to the start of
+   * the buffer and completed by the next read; the buffer grows only if a
+   * single line does not fit in it.
+   */
+
+  private static <T> void parseStream(
+    final InputStream stream,
+    final Scanner scanner,
+    final EntryReaderType<T> reader,
+    final Consumer<T> receiver)
+    throws IOException
+  {
+    var buffer = new byte[STREAM_BUFFER_SIZE];
+    var filled = 0;
+
+    while (true) {
+      if (filled == buffer.length) {
+        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+      }
+
+      final var r = stream.read(buffer, filled, buffer.length - filled);
+      if (r == -1) {
+        parseAll(ByteBuffer.wrap(buffer, 0, filled), scanner, reader, receiver);
+        return;
+      }
+
+      final var previous = filled;
+      filled += r;
+
+      var lineEnd = filled - 1;
+      while (lineEnd >= previous && buffer[lineEnd] != '\n') {
+        --lineEnd;
+      }
+      if (lineEnd < previous) {
+        continue;
+      }
+
+      final var complete = lineEnd + 1;
+      parseAll(ByteBuffer.wrap(buffer, 0, complete), scanner, reader, receiver);
+      System.arraycopy(buffer, complete, buffer, 0, filled - complete);
+      filled -= complete;
+    }
+  }
+
+  /**
+   * A scanner that locates the colon-separated fields of each line in place.
+   * Comments, blank lines, and NIS compatibility entries ("+" and "-") are
+   * skipped.
+   */
+
+  private static final class Scanner
+  {
+    private ByteBuffer data;
+    private final String source;
+    private final int fieldCount;
+    private final int[] fieldStarts;
+    private final int[] fieldEnds;
+    private char[] scratch;
+    private int position;
+    private int line;
+
+    Scanner(
+      final String inSource,
+      final int inFieldCount)
+    {
+      this.data = ByteBuffer.allocate(0);
+      this.source = inSource;
+      this.fieldCount = inFieldCount;
+      this.fieldStarts = new int[inFieldCount];
+      this.fieldEnds = new int[inFieldCount];
+      this.scratch = new char[64];
+      this.position = 0;
+      this.line = 0;
+    }
+
+    /**
+     * Continue scanning with the given data. Line numbers continue from the
+     * previous data.
+     */
+
+    void reset(
+      final ByteBuffer inData)
+    {
+      this.data = inData;
+      this.position = inData.position();
+    }
+
+    boolean nextEntry()
+      throws IOException
+    {
+      final var limit = this.data.limit();
+
+      while (this.position < limit) {
+        final var lineStart = this.position;
+        var lineEnd = lineStart;
+        while (lineEnd < limit && this.data.get(lineEnd) != '\n') {
+          ++lineEnd;
+        }
+        this.position = lineEnd + 1;
+        ++this.line;
+
+        if (lineEnd == lineStart) {
+          continue;
+        }
+
+        final var first = this.data.get(lineStart);
+        if (first == '#' || first == '+' || first == '-') {
+          continue;
+        }
+
+        var field = 0;
+        this.fieldStarts[0] = lineStart;
+        for (int index = lineStart; index < lineEnd; ++index) {
+          if (this.data.get(index) == ':') {
+            if (field + 1 == this.fieldCount) {
+              throw this.error("Too many fields");
+            }
+            this.fieldEnds[field] = index;
+            ++field;
+            this.fieldStarts[field] = index + 1;
+          }
+        }
+        this.fieldEnds[field] = lineEnd;
+
+        if (field + 1 != this.fieldCount) {
+          throw this.error(
+            "Expected %d fields but got %d".formatted(
+              Integer.valueOf(this.fieldCount),
+              Integer.valueOf(field + 1))
+          );
+        }
+        return true;
+      }
+      return false;
+    }
+
+    private IOException error(
+      final String message)
+    {
+      return new IOException(
+        "%s:%d: %s".formatted(
+          this.source,
+          Integer.valueOf(this.line),
+          message)
+      );
+    }
+
+    String string(
+      final int field)
+    {
+      return this.decode(this.fieldStarts[field], this.fieldEnds[field]);
+    }
+
+    private String decode(
+      final int start,
+      final int end)
+    {
+      final var length = end - start;
+      if (length == 0) {
+        return "";
+      }
+      if (this.scratch.length < length) {
+        this.scratch = new char[Math.max(length, this.scratch.length * 2)];
+      }
+
+      /*
+       * Names and shells are almost always ASCII, and can be widened
+       * directly. Anything else goes through the UTF-8 decoder.
+       */
+
+      for (int index = 0; index < length; ++index) {
+        final var b = this.data.get(start + index);
+        if (b < 0) {
+          return UTF_8.decode(this.data.slice(start, length)).toString();
+        }
+        this.scratch[index] = (char) b;
+      }
+      return String.valueOf(this.scratch, 0, length);
+    }
+
+    int unsigned(
+      final int field)
+      throws IOException
+    {
+      final var start = this.fieldStarts[field];
+      final var end = this.fieldEnds[field];
+      if (start == end) {
+        throw this.error("Empty numeric field %d".formatted(
+          Integer.valueOf(field + 1)));
+      }
+
+      long value = 0L;
+      for (int index = start; index < end; ++index) {
+        final var digit = this.data.get(index) - '0';
+        if (digit < 0 || digit > 9) {
+          throw this.error("Malformed numeric field %d".formatted(
+            Integer.valueOf(field + 1)));
+        }
+        value = (value * 10L) + digit;
+        if (value > 0xffff_ffffL) {
+          throw this.error("Numeric field %d is out of range".formatted(
+            Integer.valueOf(field + 1)));
+        }
+      }
+      return (int) value;
+    }
+
+    List<String> list(
+      final int field)
+    {
+      final var start = this.fieldStarts[field];
+      final var end = this.fieldEnds[field];
+      if (start == end) {
+        return List.of();
+      }
+
+      final var results = new ArrayList<String>();
+      var elementStart = start;
+      for (int index = start; index <= end; ++index) {
+        if (index == end || this.data.get(index) == ',') {
+          if (index > elementStart) {
+            results.add(this.decode(elementStart, index));
+          }
+          elementStart = index + 1;
+        }
+      }
+      return List.copyOf(results);
+    }
+  }
+}
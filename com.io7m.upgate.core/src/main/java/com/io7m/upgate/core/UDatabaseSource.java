@@ -0,0 +1,45 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.core;
+
+/**
+ * The source from which user and group databases are read.
+ */
+
+public enum UDatabaseSource
+{
+  /**
+   * Read databases using getent(1), and therefore through NSS.
+   */
+
+  GETENT,
+
+  /**
+   * Read the passwd(5) and group(5) files directly.
+   */
+
+  FILES,
+
+  /**
+   * Read the passwd(5) and group(5) files directly if nsswitch.conf(5)
+   * declares that the respective database is backed by nothing other than
+   * files, and use getent(1) otherwise.
+   */
+
+  AUTOMATIC
+}
@@ -19,11 +19,16 @@ package com.io7m.upgate.core;
 
 import com.io7m.seltzer.api.SStructuredError;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
 
 import static java.lang.Integer.toUnsignedString;
 import static java.util.Map.entry;
@@ -57,96 +62,217 @@ public final class UDelta
     final UGroupDatabase groupDatabase,
     final UConfiguration configuration)
     throws UException
+  {
+    final var adjustments = new ArrayList<UAdjustmentType>();
+    delta(userDatabase, groupDatabase, configuration, adjustments::add);
+    return List.copyOf(adjustments);
+  }
+
+  /**
+   * <p>Calculate the adjustments needed to make the system match the desired
+   * state, delivering each adjustment to {@code sink} as soon as it has been
+   * calculated. The adjustments are delivered in the same order as they
+   * appear in the list returned by
+   * {@link #delta(UUserDatabase, UGroupDatabase, UConfiguration)}. Only the
+   * group adjustments are held in memory together, because group creations
+   * must precede everything else; with a sink produced by
+   * {@link UAdjustmentExecutorType#sink()}, execution of the user
+   * adjustments proceeds alongside their calculation.</p>
+   *
+   * <p>Every configured user and group is checked for conflicts before any
+   * adjustments are delivered, so if this method raises an exception that
+   * was not raised by the sink, then nothing has been delivered. The sink
+   * is not finished.</p>
+   *
+   * @param userDatabase  A snapshot of the current user database
+   * @param groupDatabase A snapshot of the current group database
+   * @param configuration The desired configuration state
+   * @param sink          The sink
+   *
+   * @throws UException On errors, or if the sink raises an exception
+   */
+
+  public static void delta(
+    final UUserDatabase userDatabase,
+    final UGroupDatabase groupDatabase,
+    final UConfiguration configuration,
+    final UAdjustmentSinkType sink)
+    throws UException
+  {
+    Objects.requireNonNull(sink, "sink");
+    emit(userDatabase, groupDatabase, configuration, null, sink);
+  }
+
+  /**
+   * Calculate the adjustments needed to make the system match the desired
+   * state, partitioning the users and groups across the given pool. The
+   * result is identical to that of
+   * {@link #delta(UUserDatabase, UGroupDatabase, UConfiguration)}; small
+   * configurations are not partitioned at all.
+   *
+   * @param userDatabase  A snapshot of the current user database
+   * @param groupDatabase A snapshot of the current group database
+   * @param configuration The desired configuration state
+   * @param pool          The pool
+   *
+   * @return A list of adjustments
+   *
+   * @throws UException On errors
+   */
+
+  public static List<UAdjustmentType> delta(
+    final UUserDatabase userDatabase,
+    final UGroupDatabase groupDatabase,
+    final UConfiguration configuration,
+    final ForkJoinPool pool)
+    throws UException
+  {
+    Objects.requireNonNull(pool, "pool");
+
+    final var adjustments = new ArrayList<UAdjustmentType>();
+    emit(userDatabase, groupDatabase, configuration, pool, adjustments::add);
+    return List.copyOf(adjustments);
+  }
+
+  /**
+   * Calculate the adjustments and deliver them to {@code sink} in order.
+   * This is the only place that the order of adjustments is decided.
+   *
+   * @param pool The pool across which entries are partitioned, or
+   *             {@code null} to calculate and deliver each adjustment in
+   *             turn
+   */
+
+  private static void emit(
+    final UUserDatabase userDatabase,
+    final UGroupDatabase groupDatabase,
+    final UConfiguration configuration,
+    final ForkJoinPool pool,
+    final UAdjustmentSinkType sink)
+    throws UException
   {
     Objects.requireNonNull(userDatabase, "userDatabase");
     Objects.requireNonNull(groupDatabase, "groupDatabase");
     Objects.requireNonNull(configuration, "configuration");
 
-    final var adjustments =
-      new LinkedList<UAdjustmentType>();
     final var errors =
-      new LinkedList<SStructuredError<String>>();
+      new ArrayList<SStructuredError<String>>();
+
+    userCollisions(userDatabase, configuration, errors);
+    groupCollisions(groupDatabase, configuration, errors);
+    checkErrors(errors);
 
-    userAdjustments(
-      userDatabase,
-      configuration,
-      adjustments,
-      errors
+    /*
+     * Group creations come first, because users might need to be created
+     * with the groups as their primary groups. They are in the reverse
+     * order of the configuration.
+     */
+
+    final var groups = configuration.groups();
+    final var groupAdjustments =
+      new ArrayList<UAdjustmentType>(groups.size());
+
+    UDeltaPartitions.each(
+      pool,
+      groups,
+      group -> groupAdjustment(groupDatabase, group),
+      groupAdjustments::add
     );
-    groupAdjustments(
-      userDatabase,
-      groupDatabase,
-      configuration,
-      adjustments,
-      errors
+
+    for (int index = groupAdjustments.size() - 1; index >= 0; --index) {
+      final var adjustment = groupAdjustments.get(index);
+      if (adjustment instanceof UAdjustmentGroupCreate) {
+        sink.accept(adjustment);
+      }
+    }
+
+    /*
+     * Renaming a user also renames the user in every group it belongs to,
+     * so the existing memberships are compared using the new names.
+     */
+
+    final var renames = new HashMap<String, String>();
+    UDeltaPartitions.each(
+      pool,
+      configuration.users(),
+      user -> userAdjustment(userDatabase, user),
+      adjustment -> {
+        if (adjustment instanceof final UAdjustmentUserChangeName r) {
+          renames.put(r.oldName(), r.user().name());
+        }
+        sink.accept(adjustment);
+      }
     );
 
-    if (!errors.isEmpty()) {
-      final var first = errors.removeFirst();
-      throw new UException(
-        first.message(),
-        first.errorCode(),
-        first.attributes(),
-        first.remediatingAction(),
-        errors
-      );
+    for (final var adjustment : groupAdjustments) {
+      if (!(adjustment instanceof UAdjustmentGroupCreate)) {
+        sink.accept(adjustment);
+      }
     }
 
-    return List.copyOf(adjustments);
+    UDeltaPartitions.each(
+      pool,
+      groups,
+      group -> memberAdjustment(groupDatabase, renames, group),
+      sink
+    );
   }
 
-  private static void groupAdjustments(
-    final UUserDatabase userDatabase,
-    final UGroupDatabase groupDatabase,
-    final UConfiguration configuration,
-    final LinkedList<UAdjustmentType> adjustments,
-    final LinkedList<SStructuredError<String>> errors)
+  static void checkErrors(
+    final List<SStructuredError<String>> errors)
+    throws UException
   {
-    for (final var group : configuration.groups()) {
-      groupAdjustment(groupDatabase, adjustments, errors, group);
+    if (errors.isEmpty()) {
+      return;
     }
+
+    final var first = errors.get(0);
+    throw new UException(
+      first.message(),
+      first.errorCode(),
+      first.attributes(),
+      first.remediatingAction(),
+      errors.subList(1, errors.size())
+    );
   }
 
-  private static void groupAdjustment(
+  /**
+   * Calculate the adjustment for a group. A conflict between the existing
+   * groups with the group's name and ID yields no adjustment; conflicts
+   * have already been reported by
+   * {@link #groupCollisions(UGroupDatabase, UConfiguration, List)}.
+   */
+
+  private static UAdjustmentType groupAdjustment(
     final UGroupDatabase groupDatabase,
-    final LinkedList<UAdjustmentType> adjustments,
-    final LinkedList<SStructuredError<String>> errors,
     final UGroup group)
   {
-    final var existingByName =
-      groupDatabase.groupForName(group.name());
-    final var existingById =
-      groupDatabase.groupForId(group.id());
-
-    /*
-     * Prepend the group creation to the adjustments list, because
-     * users might need to be created with this group as their primary.
-     */
+    final var exist0 =
+      groupDatabase.groupForNameOrNull(group.name());
+    final var exist1 =
+      groupDatabase.groupForIdOrNull(group.id());
 
-    if (existingByName.isEmpty() && existingById.isEmpty()) {
-      adjustments.add(0, new UAdjustmentGroupCreate(group));
-      return;
+    if (exist0 == null && exist1 == null) {
+      return new UAdjustmentGroupCreate(group);
     }
 
-    if (existingByName.isPresent() && existingById.isEmpty()) {
-      adjustments.add(new UAdjustmentGroupChangeGID(group));
-      return;
+    if (exist1 == null) {
+      return new UAdjustmentGroupChangeGID(group);
     }
 
-    final var exist1 = existingById.get();
-    if (existingByName.isEmpty()) {
-      adjustments.add(
-        new UAdjustmentGroupChangeName(exist1.groupName(), group));
-      return;
+    if (exist0 == null) {
+      return new UAdjustmentGroupChangeName(exist1.groupName(), group);
     }
 
-    final var exist0 = existingByName.get();
-    if (Objects.equals(exist0.groupName(), exist1.groupName())
-        && exist0.gid() == exist1.gid()) {
-      return;
-    }
+    return null;
+  }
 
-    errors.add(new SStructuredError<>(
+  private static SStructuredError<String> groupConflict(
+    final UGroup group,
+    final UGroupDatabase.UGroupDatabaseEntry exist0,
+    final UGroupDatabase.UGroupDatabaseEntry exist1)
+  {
+    return new SStructuredError<>(
       "error-group-conflict",
       "Unsolvable group ID/Name conflict.",
       Map.ofEntries(
@@ -159,59 +285,252 @@ public final class UDelta
       ),
       Optional.of("Remove one of the conflicting groups."),
       Optional.empty()
-    ));
+    );
   }
 
-  private static void userAdjustments(
-    final UUserDatabase userDatabase,
-    final UConfiguration configuration,
-    final LinkedList<UAdjustmentType> adjustments,
-    final LinkedList<SStructuredError<String>> errors)
+  /**
+   * Calculate the membership adjustment for a group. These are added
+   * after all other adjustments, so that every member has been created or
+   * renamed and every group has been created or renamed by the time the
+   * membership is set.
+   */
+
+  private static UAdjustmentType memberAdjustment(
+    final UGroupDatabase groupDatabase,
+    final Map<String, String> renames,
+    final UGroup group)
   {
-    for (final var user : configuration.users()) {
-      userAdjustment(userDatabase, adjustments, errors, user);
+    var existing = groupDatabase.groupForNameOrNull(group.name());
+    if (existing == null) {
+      existing = groupDatabase.groupForIdOrNull(group.id());
+    }
+
+    final var current = new HashSet<String>();
+    if (existing != null) {
+      for (final var member : existing.members()) {
+        current.add(renames.getOrDefault(member, member));
+      }
+    }
+
+    final var wanted = group.users().keySet();
+    if (current.equals(wanted)) {
+      return null;
     }
+
+    final var members = new ArrayList<>(wanted);
+    Collections.sort(members);
+    return new UAdjustmentGroupSetMembers(group, members);
   }
 
-  private static void userAdjustment(
+  /**
+   * Find every collision between the configured users in a single pass
+   * before any adjustments are calculated: two configured users with the
+   * same ID or name, or two configured users that would both adjust the
+   * same existing user (such as one renaming the user that another is
+   * renumbering), and every configured user whose name and ID belong to two
+   * different existing users. Each collision would otherwise surface as a failed
+   * command part way through execution. Claims are made on the existing
+   * entries themselves rather than on their IDs, because a database may
+   * hold several entries with the same ID.
+   */
+
+  private static void userCollisions(
     final UUserDatabase userDatabase,
-    final LinkedList<UAdjustmentType> adjustments,
-    final LinkedList<SStructuredError<String>> errors,
-    final UUser user)
+    final UConfiguration configuration,
+    final List<SStructuredError<String>> errors)
   {
-    final var existingByName =
-      userDatabase.userForName(user.name());
-    final var existingById =
-      userDatabase.userForId(user.id());
+    final var users = configuration.users();
+    final var ids = new UIntSet(users.size());
+    final var names = new HashSet<String>(users.size() * 2);
+    final var claims = new IdentityHashMap<UUser, UUser>(users.size());
 
-    if (existingByName.isEmpty() && existingById.isEmpty()) {
-      adjustments.add(new UAdjustmentUserCreate(user));
-      return;
-    }
+    for (final var user : users) {
+      if (!ids.add(user.id())) {
+        errors.add(duplicate(
+          "Multiple users have the same ID.",
+          "User ID",
+          toUnsignedString(user.id())
+        ));
+      }
+      if (!names.add(user.name())) {
+        errors.add(duplicate(
+          "Multiple users have the same name.",
+          "User Name",
+          user.name()
+        ));
+      }
 
-    if (existingByName.isPresent() && existingById.isEmpty()) {
-      adjustments.add(new UAdjustmentUserChangeUID(user));
-      return;
+      final var exist0 = userDatabase.userForNameOrNull(user.name());
+      if (exist0 != null) {
+        userClaim(claims, exist0, user, errors);
+      }
+      final var exist1 = userDatabase.userForIdOrNull(user.id());
+      if (exist1 != null && exist1 != exist0) {
+        userClaim(claims, exist1, user, errors);
+        if (exist0 != null) {
+          errors.add(userConflict(user, exist0, exist1));
+        }
+      }
     }
+  }
 
-    final var exist1 = existingById.get();
-    if (existingByName.isEmpty()) {
-      adjustments.add(new UAdjustmentUserChangeName(exist1.name(), user));
+  private static void userClaim(
+    final Map<UUser, UUser> claims,
+    final UUser existing,
+    final UUser user,
+    final List<SStructuredError<String>> errors)
+  {
+    final var claimant = claims.putIfAbsent(existing, user);
+    if (claimant == null || claimant == user) {
       return;
     }
 
-    final var exist0 = existingByName.get();
-    if (Objects.equals(exist0.name(), exist1.name())
-        && exist0.id() == exist1.id()) {
+    errors.add(new SStructuredError<>(
+      "error-user-collision",
+      "Multiple users would adjust the same existing user.",
+      Map.ofEntries(
+        entry("Existing User Name", existing.name()),
+        entry("Existing User ID", toUnsignedString(existing.id())),
+        entry("Requested User (0) Name", claimant.name()),
+        entry("Requested User (0) ID", toUnsignedString(claimant.id())),
+        entry("Requested User (1) Name", user.name()),
+        entry("Requested User (1) ID", toUnsignedString(user.id()))
+      ),
+      Optional.of("Change one of the requested users."),
+      Optional.empty()
+    ));
+  }
+
+  /**
+   * Find every collision between the configured groups in a single pass.
+   *
+   * @see #userCollisions(UUserDatabase, UConfiguration, List)
+   */
+
+  private static void groupCollisions(
+    final UGroupDatabase groupDatabase,
+    final UConfiguration configuration,
+    final List<SStructuredError<String>> errors)
+  {
+    final var groups = configuration.groups();
+    final var ids = new UIntSet(groups.size());
+    final var names = new HashSet<String>(groups.size() * 2);
+    final var claims =
+      new IdentityHashMap<UGroupDatabase.UGroupDatabaseEntry, UGroup>(
+        groups.size());
 
-      if (!Objects.equals(exist0.shell(), user.shell())) {
-        adjustments.add(new UAdjustmentUserChangeShell(user));
-        return;
+    for (final var group : groups) {
+      if (!ids.add(group.id())) {
+        errors.add(duplicate(
+          "Multiple groups have the same ID.",
+          "Group ID",
+          toUnsignedString(group.id())
+        ));
+      }
+      if (!names.add(group.name())) {
+        errors.add(duplicate(
+          "Multiple groups have the same name.",
+          "Group Name",
+          group.name()
+        ));
       }
+
+      final var exist0 = groupDatabase.groupForNameOrNull(group.name());
+      if (exist0 != null) {
+        groupClaim(claims, exist0, group, errors);
+      }
+      final var exist1 = groupDatabase.groupForIdOrNull(group.id());
+      if (exist1 != null && exist1 != exist0) {
+        groupClaim(claims, exist1, group, errors);
+        if (exist0 != null) {
+          errors.add(groupConflict(group, exist0, exist1));
+        }
+      }
+    }
+  }
+
+  private static void groupClaim(
+    final Map<UGroupDatabase.UGroupDatabaseEntry, UGroup> claims,
+    final UGroupDatabase.UGroupDatabaseEntry existing,
+    final UGroup group,
+    final List<SStructuredError<String>> errors)
+  {
+    final var claimant = claims.putIfAbsent(existing, group);
+    if (claimant == null || claimant == group) {
       return;
     }
 
     errors.add(new SStructuredError<>(
+      "error-group-collision",
+      "Multiple groups would adjust the same existing group.",
+      Map.ofEntries(
+        entry("Existing Group Name", existing.groupName()),
+        entry("Existing Group ID", toUnsignedString(existing.gid())),
+        entry("Requested Group (0) Name", claimant.name()),
+        entry("Requested Group (0) ID", toUnsignedString(claimant.id())),
+        entry("Requested Group (1) Name", group.name()),
+        entry("Requested Group (1) ID", toUnsignedString(group.id()))
+      ),
+      Optional.of("Change one of the requested groups."),
+      Optional.empty()
+    ));
+  }
+
+  private static SStructuredError<String> duplicate(
+    final String message,
+    final String attribute,
+    final String value)
+  {
+    return new SStructuredError<>(
+      "error-duplicate",
+      message,
+      Map.of(attribute, value),
+      Optional.of("Remove one of the duplicates from the configuration."),
+      Optional.empty()
+    );
+  }
+
+  /**
+   * Calculate the adjustment for a user. A conflict between the existing
+   * users with the user's name and ID yields no adjustment; conflicts have
+   * already been reported by
+   * {@link #userCollisions(UUserDatabase, UConfiguration, List)}.
+   */
+
+  private static UAdjustmentType userAdjustment(
+    final UUserDatabase userDatabase,
+    final UUser user)
+  {
+    final var exist0 =
+      userDatabase.userForNameOrNull(user.name());
+    final var exist1 =
+      userDatabase.userForIdOrNull(user.id());
+
+    if (exist0 == null && exist1 == null) {
+      return new UAdjustmentUserCreate(user);
+    }
+
+    if (exist1 == null) {
+      return new UAdjustmentUserChangeUID(user);
+    }
+
+    if (exist0 == null) {
+      return new UAdjustmentUserChangeName(exist1.name(), user);
+    }
+
+    if (exist0 == exist1
+        && !Objects.equals(exist0.shell(), user.shell())) {
+      return new UAdjustmentUserChangeShell(user);
+    }
+    return null;
+  }
+
+  private static SStructuredError<String> userConflict(
+    final UUser user,
+    final UUser exist0,
+    final UUser exist1)
+  {
+    return new SStructuredError<>(
       "error-user-conflict",
       "Unsolvable user ID/Name conflict.",
       Map.ofEntries(
@@ -224,6 +543,6 @@ public final class UDelta
       ),
       Optional.of("Remove one of the conflicting users."),
       Optional.empty()
-    ));
+    );
   }
 }
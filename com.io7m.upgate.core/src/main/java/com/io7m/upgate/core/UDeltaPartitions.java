@@ -0,0 +1,160 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Functions to calculate the adjustment for each entry of a list,
+ * optionally partitioning the list across a fork/join pool. The
+ * calculation for each entry must depend only on the entry and on
+ * immutable state. The results of partitions are concatenated in list
+ * order, so the adjustments are delivered in the same order however the
+ * list was partitioned.
+ */
+
+final class UDeltaPartitions
+{
+  /**
+   * The number of entries below which a partition is not split further.
+   */
+
+  static final int THRESHOLD = 2048;
+
+  private UDeltaPartitions()
+  {
+
+  }
+
+  /**
+   * Calculate the adjustment for each entry, and deliver the adjustments to
+   * {@code sink} in the order of the entries. Without a pool, or for lists
+   * no longer than {@link #THRESHOLD}, each adjustment is delivered as soon
+   * as it has been calculated. Otherwise, the list is partitioned across
+   * the pool and the adjustments are delivered once all partitions have
+   * completed. The sink is only ever called from the calling thread.
+   *
+   * @param pool    The pool, or {@code null} to calculate sequentially
+   * @param entries The entries
+   * @param delta   The calculation for a single entry
+   * @param sink    The sink
+   * @param <T>     The type of entries
+   *
+   * @throws UException If the sink raises an exception
+   */
+
+  static <T> void each(
+    final ForkJoinPool pool,
+    final List<T> entries,
+    final EntryDeltaType<T> delta,
+    final UAdjustmentSinkType sink)
+    throws UException
+  {
+    Objects.requireNonNull(entries, "entries");
+    Objects.requireNonNull(delta, "delta");
+    Objects.requireNonNull(sink, "sink");
+
+    if (pool == null || entries.size() <= THRESHOLD) {
+      for (final var entry : entries) {
+        final var adjustment = delta.delta(entry);
+        if (adjustment != null) {
+          sink.accept(adjustment);
+        }
+      }
+      return;
+    }
+
+    final var adjustments =
+      pool.invoke(new Task<>(entries, 0, entries.size(), delta));
+    for (final var adjustment : adjustments) {
+      sink.accept(adjustment);
+    }
+  }
+
+  /**
+   * The calculation of the adjustment for a single entry.
+   *
+   * @param <T> The type of entries
+   */
+
+  interface EntryDeltaType<T>
+  {
+    /**
+     * Calculate the adjustment for a single entry.
+     *
+     * @param entry The entry
+     *
+     * @return The adjustment, or {@code null} if none is needed
+     */
+
+    UAdjustmentType delta(T entry);
+  }
+
+  private static final class Task<T>
+    extends RecursiveTask<ArrayList<UAdjustmentType>>
+  {
+    private final List<T> entries;
+    private final int from;
+    private final int to;
+    private final EntryDeltaType<T> delta;
+
+    Task(
+      final List<T> inEntries,
+      final int inFrom,
+      final int inTo,
+      final EntryDeltaType<T> inDelta)
+    {
+      this.entries = inEntries;
+      this.from = inFrom;
+      this.to = inTo;
+      this.delta = inDelta;
+    }
+
+    @Override
+    protected ArrayList<UAdjustmentType> compute()
+    {
+      if (this.to - this.from <= THRESHOLD) {
+        final var adjustments =
+          new ArrayList<UAdjustmentType>(this.to - this.from);
+        for (int index = this.from; index < this.to; ++index) {
+          final var adjustment = this.delta.delta(this.entries.get(index));
+          if (adjustment != null) {
+            adjustments.add(adjustment);
+          }
+        }
+        return adjustments;
+      }
+
+      final var middle = (this.from + this.to) >>> 1;
+      final var left =
+        new Task<>(this.entries, this.from, middle, this.delta);
+      final var right =
+        new Task<>(this.entries, middle, this.to, this.delta);
+
+      left.fork();
+      final var rightResult = right.compute();
+      final var result = left.join();
+      result.addAll(rightResult);
+      return result;
+    }
+  }
+}
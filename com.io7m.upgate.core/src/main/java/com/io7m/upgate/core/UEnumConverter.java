@@ -0,0 +1,103 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.core;
+
+import com.io7m.quarrel.core.QException;
+import com.io7m.quarrel.core.QValueConverterType;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * A value converter for enumeration types used in command-line parameters.
+ *
+ * @param <T> The enumeration type
+ */
+
+final class UEnumConverter<T extends Enum<T>>
+  implements QValueConverterType<T>
+{
+  private final Class<T> enumClass;
+
+  /**
+   * A value converter for enumeration types.
+   *
+   * @param inEnumClass The enumeration class
+   */
+
+  UEnumConverter(
+    final Class<T> inEnumClass)
+  {
+    this.enumClass =
+      Objects.requireNonNull(inEnumClass, "enumClass");
+  }
+
+  @Override
+  public T convertFromString(
+    final String text)
+    throws QException
+  {
+    for (final var constant : this.enumClass.getEnumConstants()) {
+      if (constant.name().equalsIgnoreCase(text)) {
+        return constant;
+      }
+    }
+
+    throw new QException(
+      "Unrecognized value.",
+      "error-parameter-value",
+      Map.ofEntries(
+        Map.entry("Value", text),
+        Map.entry("Syntax", this.syntax())
+      ),
+      Optional.empty(),
+      List.of()
+    );
+  }
+
+  @Override
+  public String convertToString(
+    final T value)
+  {
+    return value.name();
+  }
+
+  @Override
+  public T exampleValue()
+  {
+    return this.enumClass.getEnumConstants()[0];
+  }
+
+  @Override
+  public String syntax()
+  {
+    return Arrays.stream(this.enumClass.getEnumConstants())
+      .map(Enum::name)
+      .collect(Collectors.joining(" | "));
+  }
+
+  @Override
+  public Class<T> convertedClass()
+  {
+    return this.enumClass;
+  }
+}
@@ -18,30 +18,241 @@
 package com.io7m.upgate.core;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.concurrent.TimeUnit;
 
 /**
- * A snapshot of the group database.
- *
- * @param entries The entries
+ * A snapshot of the group database. The snapshot is indexed by group name and
+ * by group ID on construction; if the database contains more than one entry
+ * with the same name or ID, lookups return the first such entry.
  */
 
-public record UGroupDatabase(
-  List<UGroupDatabaseEntry> entries)
+public final class UGroupDatabase
 {
+  private static final int STREAM_EXPECTED_SIZE = 1024;
+
+  private final ArrayList<UGroupDatabaseEntry> entries;
+  private final Map<String, UGroupDatabaseEntry> byName;
+  private final UIntMap<UGroupDatabaseEntry> byId;
+
   /**
    * A snapshot of the group database.
    *
-   * @param entries The entries
+   * @param inEntries The entries
    */
 
-  public UGroupDatabase
+  public UGroupDatabase(
+    final List<UGroupDatabaseEntry> inEntries)
   {
-    Objects.requireNonNull(entries, "entries");
+    this(Objects.requireNonNull(inEntries, "entries").size());
+    for (final var entry : inEntries) {
+      this.add(entry);
+    }
+  }
+
+  private UGroupDatabase(
+    final int expected)
+  {
+    this.entries = new ArrayList<>(expected);
+    this.byName = new HashMap<>(Math.max(16, (expected * 4) / 3 + 1));
+    this.byId = new UIntMap<>(expected);
+  }
+
+  private void add(
+    final UGroupDatabaseEntry entry)
+  {
+    this.entries.add(Objects.requireNonNull(entry, "entry"));
+    this.byName.putIfAbsent(entry.groupName(), entry);
+    this.byId.putIfAbsent(entry.gid(), entry);
+  }
+
+  /**
+   * @return The entries
+   */
+
+  public List<UGroupDatabaseEntry> entries()
+  {
+    return Collections.unmodifiableList(this.entries);
+  }
+
+  /**
+   * Read the group database from the current system using the given
+   * source.
+   *
+   * @param source The database source
+   *
+   * @return The group database
+   *
+   * @throws IOException          On errors
+   * @throws InterruptedException On interruption
+   */
+
+  public static UGroupDatabase get(
+    final UDatabaseSource source)
+    throws IOException, InterruptedException
+  {
+    return get(source, UDatabaseParsing.DEFAULT_GETENT_TIMEOUT);
+  }
+
+  /**
+   * Read the group database from the current system using the given
+   * source.
+   *
+   * @param source  The database source
+   * @param timeout The maximum time to allow getent(1) to run, if it is used
+   *
+   * @return The group database
+   *
+   * @throws IOException          On errors
+   * @throws InterruptedException On interruption
+   */
+
+  public static UGroupDatabase get(
+    final UDatabaseSource source,
+    final Duration timeout)
+    throws IOException, InterruptedException
+  {
+    return get(source, UDatabaseLookup.ENUMERATE, List.of(), timeout);
+  }
+
+  /**
+   * Read the group database from the current system using the given
+   * source. If the database is read using getent(1), {@code lookup}
+   * determines whether the database is enumerated or whether only the
+   * names and IDs of the given groups are looked up. In the latter case,
+   * the returned snapshot contains only the entries matching those names
+   * and IDs.
+   *
+   * @param source  The database source
+   * @param lookup  The lookup strategy for getent(1)
+   * @param groups  The groups that will be compared against the snapshot
+   * @param timeout The maximum time to allow getent(1) to run, if it is used
+   *
+   * @return The group database
+   *
+   * @throws IOException          On errors
+   * @throws InterruptedException On interruption
+   */
+
+  public static UGroupDatabase get(
+    final UDatabaseSource source,
+    final UDatabaseLookup lookup,
+    final List<UGroup> groups,
+    final Duration timeout)
+    throws IOException, InterruptedException
+  {
+    Objects.requireNonNull(source, "source");
+    Objects.requireNonNull(lookup, "lookup");
+    Objects.requireNonNull(groups, "groups");
+    Objects.requireNonNull(timeout, "timeout");
+
+    return switch (source) {
+      case GETENT -> getent(List.of(), lookup, groups, timeout);
+      case FILES -> fromFiles(Path.of("/etc/group"));
+      case AUTOMATIC -> {
+        if (UNameServiceSwitch.isFilesOnly(
+          Path.of("/etc/nsswitch.conf"), "group")) {
+          yield fromFiles(Path.of("/etc/group"));
+        }
+        yield getent(List.of(), lookup, groups, timeout);
+      }
+    };
+  }
+
+  /**
+   * Read the group database using getent(1) run through the given
+   * transport.
+   *
+   * @param transport The transport (empty to run getent locally)
+   * @param lookup    The lookup strategy
+   * @param groups    The groups that will be compared against the snapshot
+   * @param timeout   The maximum time to allow each getent process to run
+   *
+   * @return The group database
+   *
+   * @throws IOException          On errors
+   * @throws InterruptedException On interruption
+   *
+   * @see UTransport
+   */
+
+  static UGroupDatabase getent(
+    final List<String> transport,
+    final UDatabaseLookup lookup,
+    final List<UGroup> groups,
+    final Duration timeout)
+    throws IOException, InterruptedException
+  {
+    return switch (lookup) {
+      case ENUMERATE -> enumerate(transport, timeout);
+      case TARGETED -> lookup(transport, groups, timeout);
+      case AUTOMATIC -> {
+        if (groups.size() * 2 <= UDatabaseParsing.TARGETED_KEY_LIMIT) {
+          yield lookup(transport, groups, timeout);
+        }
+        yield enumerate(transport, timeout);
+      }
+    };
+  }
+
+  /**
+   * Read the group database directly from the given group(5) file. The
+   * file is memory-mapped and parsed in a single pass. Entries provided by
+   * NSS sources other than files are not visible to this method; use
+   * {@link #get()} for those.
+   *
+   * @param file The group file
+   *
+   * @return The group database
+   *
+   * @throws IOException On errors
+   */
+
+  public static UGroupDatabase fromFiles(
+    final Path file)
+    throws IOException
+  {
+    Objects.requireNonNull(file, "file");
+
+    return new UGroupDatabase(
+      UDatabaseParsing.parseGroup(UDatabaseParsing.map(file), file.toString())
+    );
+  }
+
+  /**
+   * Read the group(5) formatted group database from the given stream.
+   * Entries are parsed and indexed as they are read, so the stream is never
+   * buffered in full.
+   *
+   * @param stream The stream
+   * @param source The source of the data, for error messages
+   *
+   * @return The group database
+   *
+   * @throws IOException On errors
+   */
+
+  public static UGroupDatabase fromStream(
+    final InputStream stream,
+    final String source)
+    throws IOException
+  {
+    Objects.requireNonNull(stream, "stream");
+    Objects.requireNonNull(source, "source");
+
+    final var database = new UGroupDatabase(STREAM_EXPECTED_SIZE);
+    UDatabaseParsing.parseGroup(stream, source, database::add);
+    return database;
   }
 
   /**
@@ -56,35 +267,102 @@ public record UGroupDatabase(
   public static UGroupDatabase get()
     throws IOException, InterruptedException
   {
-    final var proc0 =
-      new ProcessBuilder()
-        .command(List.of("getent", "group"))
-        .start();
+    return get(UDatabaseParsing.DEFAULT_GETENT_TIMEOUT);
+  }
+
+  /**
+   * Read the group database from the current system using getent(1).
+   * Entries are parsed and indexed as getent produces them.
+   *
+   * @param timeout The maximum time to allow getent(1) to run
+   *
+   * @return The group database
+   *
+   * @throws IOException          On errors, or if the timeout expires
+   * @throws InterruptedException On interruption
+   */
+
+  public static UGroupDatabase get(
+    final Duration timeout)
+    throws IOException, InterruptedException
+  {
+    return enumerate(List.of(), timeout);
+  }
+
+  private static UGroupDatabase enumerate(
+    final List<String> transport,
+    final Duration timeout)
+    throws IOException, InterruptedException
+  {
+    final var database = new UGroupDatabase(STREAM_EXPECTED_SIZE);
+    UDatabaseParsing.getent(
+      transport,
+      "group",
+      List.of(),
+      timeout,
+      stream -> UDatabaseParsing.parseGroup(
+        stream, "getent group", database::add)
+    );
+    return database;
+  }
+
+  /**
+   * Look up the names and IDs of the given groups using getent(1),
+   * producing a partial snapshot of the group database that contains
+   * only the matching entries. This is sufficient for {@link UDelta} to
+   * calculate adjustments for the given groups, and avoids enumerating
+   * the entire database.
+   *
+   * @param groups  The groups
+   * @param timeout The maximum time to allow each getent(1) process to run
+   *
+   * @return The partial group database
+   *
+   * @throws IOException          On errors, or if the timeout expires
+   * @throws InterruptedException On interruption
+   */
+
+  public static UGroupDatabase lookup(
+    final List<UGroup> groups,
+    final Duration timeout)
+    throws IOException, InterruptedException
+  {
+    return lookup(List.of(), groups, timeout);
+  }
+
+  private static UGroupDatabase lookup(
+    final List<String> transport,
+    final List<UGroup> groups,
+    final Duration timeout)
+    throws IOException, InterruptedException
+  {
+    Objects.requireNonNull(groups, "groups");
+    Objects.requireNonNull(timeout, "timeout");
 
-    proc0.waitFor(1L, TimeUnit.SECONDS);
-    final var exit = proc0.exitValue();
-    if (exit != 0) {
-      throw new IOException("getent command failed.");
+    final var keys = new LinkedHashSet<String>();
+    for (final var group : groups) {
+      keys.add(group.name());
+      keys.add(Integer.toUnsignedString(group.id()));
     }
 
-    final var entries = new ArrayList<UGroupDatabaseEntry>();
-    try (var reader = proc0.inputReader()) {
-      while (true) {
-        final var line = reader.readLine();
-        if (line == null) {
-          break;
+    /*
+     * An entry found by both its name and its ID is produced twice.
+     */
+
+    final var database = new UGroupDatabase(groups.size());
+    final var seen = new HashSet<UGroupDatabaseEntry>(groups.size());
+    UDatabaseParsing.getent(
+      transport,
+      "group",
+      List.copyOf(keys),
+      timeout,
+      stream -> UDatabaseParsing.parseGroup(stream, "getent group", e -> {
+        if (seen.add(e)) {
+          database.add(e);
         }
-        final var segments = List.of(line.split(":"));
-        entries.add(
-          new UGroupDatabaseEntry(
-            segments.get(0),
-            Integer.parseUnsignedInt(segments.get(2)),
-            List.of(segments.get(1).split(","))
-          )
-        );
-      }
-    }
-    return new UGroupDatabase(List.copyOf(entries));
+      })
+    );
+    return database;
   }
 
   /**
@@ -98,9 +376,7 @@ public record UGroupDatabase(
   public Optional<UGroupDatabaseEntry> groupForName(
     final String name)
   {
-    return this.entries.stream()
-      .filter(g -> Objects.equals(g.groupName, name))
-      .findFirst();
+    return Optional.ofNullable(this.byName.get(name));
   }
 
   /**
@@ -114,9 +390,61 @@ public record UGroupDatabase(
   public Optional<UGroupDatabaseEntry> groupForId(
     final int id)
   {
-    return this.entries.stream()
-      .filter(g -> g.gid == id)
-      .findFirst();
+    return Optional.ofNullable(this.byId.get(id));
+  }
+
+  /**
+   * Find the group with the given name without allocating.
+   *
+   * @param name The name
+   *
+   * @return The group, or {@code null}
+   */
+
+  UGroupDatabaseEntry groupForNameOrNull(
+    final String name)
+  {
+    return this.byName.get(name);
+  }
+
+  /**
+   * Find the group with the given ID without allocating.
+   *
+   * @param id The id
+   *
+   * @return The group, or {@code null}
+   */
+
+  UGroupDatabaseEntry groupForIdOrNull(
+    final int id)
+  {
+    return this.byId.get(id);
+  }
+
+  @Override
+  public boolean equals(
+    final Object o)
+  {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || !this.getClass().equals(o.getClass())) {
+      return false;
+    }
+    final var that = (UGroupDatabase) o;
+    return this.entries.equals(that.entries);
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return this.entries.hashCode();
+  }
+
+  @Override
+  public String toString()
+  {
+    return "UGroupDatabase[entries=%s]".formatted(this.entries);
   }
 
   /**
@@ -0,0 +1,174 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.core;
+
+import java.util.Objects;
+
+/**
+ * A map from unboxed 32-bit integer keys to values, using open addressing
+ * with linear probing. Used to index user and group databases by ID.
+ *
+ * @param <T> The type of values
+ */
+
+final class UIntMap<T>
+{
+  static final int MINIMUM_CAPACITY = 16;
+
+  private int[] keys;
+  private Object[] values;
+  private int size;
+
+  /**
+   * Create a map with room for at least {@code expected} entries before
+   * resizing.
+   *
+   * @param expected The expected number of entries
+   */
+
+  UIntMap(
+    final int expected)
+  {
+    final var capacity =
+      capacityFor(Math.max(expected, MINIMUM_CAPACITY / 2));
+
+    this.keys = new int[capacity];
+    this.values = new Object[capacity];
+    this.size = 0;
+  }
+
+  static int capacityFor(
+    final int expected)
+  {
+    /*
+     * Keep the load factor at or below 0.5, rounded up to a power of two
+     * so that slots can be selected with a mask.
+     */
+
+    final var required = (long) expected * 2L;
+    if (required > (1L << 30)) {
+      throw new IllegalArgumentException(
+        "Too many entries: " + expected);
+    }
+    return Math.max(
+      MINIMUM_CAPACITY,
+      Integer.highestOneBit((int) required - 1) << 1
+    );
+  }
+
+  static int mix(
+    final int key)
+  {
+    final var h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * @return The number of entries in the map
+   */
+
+  int size()
+  {
+    return this.size;
+  }
+
+  /**
+   * Associate {@code value} with {@code key} if no value is already
+   * associated with {@code key}.
+   *
+   * @param key   The key
+   * @param value The value
+   *
+   * @return The existing value, or {@code null} if there was none
+   */
+
+  @SuppressWarnings("unchecked")
+  T putIfAbsent(
+    final int key,
+    final T value)
+  {
+    Objects.requireNonNull(value, "value");
+
+    final var mask = this.keys.length - 1;
+    var slot = mix(key) & mask;
+    while (true) {
+      final var existing = this.values[slot];
+      if (existing == null) {
+        this.keys[slot] = key;
+        this.values[slot] = value;
+        ++this.size;
+        if (this.size * 2 > this.keys.length) {
+          this.resize();
+        }
+        return null;
+      }
+      if (this.keys[slot] == key) {
+        return (T) existing;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /**
+   * @param key The key
+   *
+   * @return The value associated with {@code key}, or {@code null}
+   */
+
+  @SuppressWarnings("unchecked")
+  T get(
+    final int key)
+  {
+    final var mask = this.keys.length - 1;
+    var slot = mix(key) & mask;
+    while (true) {
+      final var existing = this.values[slot];
+      if (existing == null) {
+        return null;
+      }
+      if (this.keys[slot] == key) {
+        return (T) existing;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private void resize()
+  {
+    final var oldKeys = this.keys;
+    final var oldValues = this.values;
+    final var capacity = oldKeys.length * 2;
+    final var mask = capacity - 1;
+
+    this.keys = new int[capacity];
+    this.values = new Object[capacity];
+
+    for (int index = 0; index < oldKeys.length; ++index) {
+      final var value = oldValues[index];
+      if (value != null) {
+        final var key = oldKeys[index];
+        var slot = mix(key) & mask;
+        while (this.values[slot] != null) {
+          slot = (slot + 1) & mask;
+        }
+        this.keys[slot] = key;
+        this.values[slot] = value;
+      }
+    }
+  }
+}
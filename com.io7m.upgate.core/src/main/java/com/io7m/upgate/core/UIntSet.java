@@ -0,0 +1,131 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.core;
+
+/**
+ * A set of unboxed 32-bit integers, using open addressing with linear
+ * probing. Used to find UID and GID collisions without boxing.
+ *
+ * @see UIntMap
+ */
+
+final class UIntSet
+{
+  private int[] keys;
+  private boolean[] used;
+  private int size;
+
+  /**
+   * Create a set with room for at least {@code expected} elements before
+   * resizing.
+   *
+   * @param expected The expected number of elements
+   */
+
+  UIntSet(
+    final int expected)
+  {
+    final var capacity =
+      UIntMap.capacityFor(Math.max(expected, UIntMap.MINIMUM_CAPACITY / 2));
+
+    this.keys = new int[capacity];
+    this.used = new boolean[capacity];
+    this.size = 0;
+  }
+
+  /**
+   * @return The number of elements in the set
+   */
+
+  int size()
+  {
+    return this.size;
+  }
+
+  /**
+   * Add {@code key} to the set.
+   *
+   * @param key The key
+   *
+   * @return {@code true} if {@code key} was not already present
+   */
+
+  boolean add(
+    final int key)
+  {
+    final var mask = this.keys.length - 1;
+    var slot = UIntMap.mix(key) & mask;
+    while (this.used[slot]) {
+      if (this.keys[slot] == key) {
+        return false;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    this.keys[slot] = key;
+    this.used[slot] = true;
+    ++this.size;
+    if (this.size * 2 > this.keys.length) {
+      this.resize();
+    }
+    return true;
+  }
+
+  /**
+   * @param key The key
+   *
+   * @return {@code true} if {@code key} is present
+   */
+
+  boolean contains(
+    final int key)
+  {
+    final var mask = this.keys.length - 1;
+    var slot = UIntMap.mix(key) & mask;
+    while (this.used[slot]) {
+      if (this.keys[slot] == key) {
+        return true;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return false;
+  }
+
+  private void resize()
+  {
+    final var oldKeys = this.keys;
+    final var oldUsed = this.used;
+    final var capacity = oldKeys.length * 2;
+    final var mask = capacity - 1;
+
+    this.keys = new int[capacity];
+    this.used = new boolean[capacity];
+
+    for (int index = 0; index < oldKeys.length; ++index) {
+      if (oldUsed[index]) {
+        final var key = oldKeys[index];
+        var slot = UIntMap.mix(key) & mask;
+        while (this.used[slot]) {
+          slot = (slot + 1) & mask;
+        }
+        this.keys[slot] = key;
+        this.used[slot] = true;
+      }
+    }
+  }
+}
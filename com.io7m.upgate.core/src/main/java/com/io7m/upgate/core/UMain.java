@@ -20,6 +20,7 @@ package com.io7m.upgate.core;
 import com.io7m.quarrel.core.QApplication;
 import com.io7m.quarrel.core.QApplicationMetadata;
 import com.io7m.quarrel.core.QApplicationType;
+import com.io7m.quarrel.core.QValueConverterDirectory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -64,8 +65,24 @@ public final class UMain implements Runnable
 
     final var builder =
       QApplication.builder(metadata);
+    builder.setValueConverters(
+      QValueConverterDirectory.core()
+        .with(
+          UDatabaseSource.class,
+          new UEnumConverter<>(UDatabaseSource.class))
+        .with(
+          UDatabaseLookup.class,
+          new UEnumConverter<>(UDatabaseLookup.class))
+        .with(
+          UMetricsFormat.class,
+          new UEnumConverter<>(UMetricsFormat.class))
+    );
     builder.addCommand(new UCmdApply());
+    builder.addCommand(new UCmdApplyTargets());
+    builder.addCommand(new UCmdCompile());
+    builder.addCommand(new UCmdPlan());
     builder.addCommand(new UCmdSchema());
+    builder.addCommand(new UCmdWatch());
 
     this.application = builder.build();
     this.exitCode = 0;
@@ -0,0 +1,430 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.core;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * <p>Metrics collected during a single apply: the time spent in each phase,
+ * the number of entries read from each source, the number of adjustments of
+ * each type, and the latency of each external command executed.</p>
+ *
+ * <p>Metrics can be written as JSON, or in the Prometheus text exposition
+ * format for the node exporter's textfile collector. Instances are safe to
+ * use from multiple threads.</p>
+ */
+
+public final class UMetrics
+{
+  private static final double NANOS_PER_SECOND = 1_000_000_000.0;
+
+  private final Map<String, Long> phases;
+  private final Map<String, Integer> entries;
+  private final Map<String, Integer> adjustments;
+  private final Map<String, CommandStatistics> commands;
+  private Instant time;
+  private boolean success;
+
+  /**
+   * Create an empty set of metrics.
+   */
+
+  public UMetrics()
+  {
+    this.phases = new LinkedHashMap<>();
+    this.entries = new LinkedHashMap<>();
+    this.adjustments = new TreeMap<>();
+    this.commands = new TreeMap<>();
+    this.time = Instant.now();
+    this.success = false;
+  }
+
+  /**
+   * Start timing a phase. The phase ends when the returned timer is closed,
+   * and the time spent is added to any time already recorded for a phase
+   * with the same name.
+   *
+   * @param name The phase name
+   *
+   * @return A timer
+   */
+
+  public Timer phase(
+    final String name)
+  {
+    return new Timer(name, System.nanoTime());
+  }
+
+  /**
+   * Record the number of entries read from the given source.
+   *
+   * @param source The source (such as "passwd")
+   * @param count  The number of entries
+   */
+
+  public synchronized void entriesRead(
+    final String source,
+    final int count)
+  {
+    this.entries.put(Objects.requireNonNull(source, "source"), count);
+  }
+
+  /**
+   * Record the adjustments that were calculated.
+   *
+   * @param values The adjustments
+   */
+
+  public synchronized void adjustmentsCalculated(
+    final List<UAdjustmentType> values)
+  {
+    for (final var adjustment : values) {
+      this.adjustmentCalculated(adjustment);
+    }
+  }
+
+  /**
+   * Record an adjustment that was calculated.
+   *
+   * @param adjustment The adjustment
+   */
+
+  public synchronized void adjustmentCalculated(
+    final UAdjustmentType adjustment)
+  {
+    this.adjustments.merge(typeName(adjustment), 1, Integer::sum);
+  }
+
+  /**
+   * Record the completion of an external command.
+   *
+   * @param command The command (such as "useradd")
+   * @param nanos   The time taken in nanoseconds
+   */
+
+  public synchronized void commandCompleted(
+    final String command,
+    final long nanos)
+  {
+    this.commands.computeIfAbsent(
+      Objects.requireNonNull(command, "command"),
+      k -> new CommandStatistics()
+    ).add(nanos);
+  }
+
+  /**
+   * Record the outcome of the apply.
+   *
+   * @param inTime    The time the apply finished
+   * @param inSuccess {@code true} if the apply succeeded
+   */
+
+  public synchronized void finished(
+    final Instant inTime,
+    final boolean inSuccess)
+  {
+    this.time = Objects.requireNonNull(inTime, "time");
+    this.success = inSuccess;
+  }
+
+  private synchronized void phaseCompleted(
+    final String name,
+    final long nanos)
+  {
+    this.phases.merge(name, Long.valueOf(nanos), Long::sum);
+  }
+
+  private static String typeName(
+    final UAdjustmentType adjustment)
+  {
+    final var name = adjustment.getClass().getSimpleName();
+    return name.startsWith("UAdjustment")
+      ? name.substring("UAdjustment".length())
+      : name;
+  }
+
+  private static String seconds(
+    final long nanos)
+  {
+    return Double.toString(nanos / NANOS_PER_SECOND);
+  }
+
+  /**
+   * Write the metrics to the given file in the given format. The file is
+   * replaced atomically so that readers never observe a partial file.
+   *
+   * @param file   The output file
+   * @param format The format
+   *
+   * @throws IOException On errors
+   */
+
+  public void write(
+    final Path file,
+    final UMetricsFormat format)
+    throws IOException
+  {
+    final var text = switch (format) {
+      case JSON -> this.toJSON();
+      case PROMETHEUS -> this.toPrometheus();
+    };
+
+    final var absolute = file.toAbsolutePath();
+    final var temporary =
+      absolute.resolveSibling(absolute.getFileName() + ".tmp");
+    Files.writeString(temporary, text, UTF_8);
+    Files.move(temporary, absolute, ATOMIC_MOVE, REPLACE_EXISTING);
+  }
+
+  /**
+   * @return The metrics in the Prometheus text exposition format
+   */
+
+  public synchronized String toPrometheus()
+  {
+    final var out = new StringBuilder(1024);
+
+    family(out, "upgate_apply_success", "gauge",
+           "Whether the last apply succeeded.");
+    out.append("upgate_apply_success ")
+      .append(this.success ? 1 : 0)
+      .append('\n');
+
+    family(out, "upgate_apply_timestamp_seconds", "gauge",
+           "The time at which the last apply finished.");
+    out.append("upgate_apply_timestamp_seconds ")
+      .append(this.time.getEpochSecond())
+      .append('\n');
+
+    family(out, "upgate_phase_duration_seconds", "gauge",
+           "The time spent in each phase of the last apply.");
+    for (final var e : this.phases.entrySet()) {
+      sample(out, "upgate_phase_duration_seconds", "phase", e.getKey(),
+             seconds(e.getValue().longValue()));
+    }
+
+    family(out, "upgate_entries_read", "gauge",
+           "The number of entries read from each source.");
+    for (final var e : this.entries.entrySet()) {
+      sample(out, "upgate_entries_read", "source", e.getKey(),
+             e.getValue().toString());
+    }
+
+    family(out, "upgate_adjustments", "gauge",
+           "The number of adjustments of each type.");
+    for (final var e : this.adjustments.entrySet()) {
+      sample(out, "upgate_adjustments", "type", e.getKey(),
+             e.getValue().toString());
+    }
+
+    family(out, "upgate_command_duration_seconds", "summary",
+           "The time taken by each external command.");
+    for (final var e : this.commands.entrySet()) {
+      final var stats = e.getValue();
+      sample(out, "upgate_command_duration_seconds_sum",
+             "command", e.getKey(), seconds(stats.totalNanos));
+      sample(out, "upgate_command_duration_seconds_count",
+             "command", e.getKey(), Long.toString(stats.count));
+    }
+
+    family(out, "upgate_command_duration_seconds_max", "gauge",
+           "The longest time taken by each external command.");
+    for (final var e : this.commands.entrySet()) {
+      sample(out, "upgate_command_duration_seconds_max",
+             "command", e.getKey(), seconds(e.getValue().maxNanos));
+    }
+    return out.toString();
+  }
+
+  private static void family(
+    final StringBuilder out,
+    final String name,
+    final String type,
+    final String help)
+  {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void sample(
+    final StringBuilder out,
+    final String name,
+    final String label,
+    final String labelValue,
+    final String value)
+  {
+    out.append(name)
+      .append('{')
+      .append(label)
+      .append("=\"");
+
+    for (int index = 0; index < labelValue.length(); ++index) {
+      final var c = labelValue.charAt(index);
+      switch (c) {
+        case '\\' -> out.append("\\\\");
+        case '"' -> out.append("\\\"");
+        case '\n' -> out.append("\\n");
+        default -> out.append(c);
+      }
+    }
+
+    out.append("\"} ")
+      .append(value)
+      .append('\n');
+  }
+
+  /**
+   * @return The metrics as a JSON object
+   */
+
+  public synchronized String toJSON()
+  {
+    final var out = new StringBuilder(1024);
+    out.append("{\n");
+    out.append("  \"success\": ").append(this.success).append(",\n");
+    out.append("  \"timestamp\": ");
+    jsonString(out, this.time.toString());
+    out.append(",\n");
+
+    jsonObject(out, "phases", this.phases,
+               v -> seconds(v.longValue()));
+    out.append(",\n");
+    jsonObject(out, "entries", this.entries, Object::toString);
+    out.append(",\n");
+    jsonObject(out, "adjustments", this.adjustments, Object::toString);
+    out.append(",\n");
+    jsonObject(out, "commands", this.commands, stats ->
+      "{ \"count\": %d, \"sum\": %s, \"max\": %s }".formatted(
+        Long.valueOf(stats.count),
+        seconds(stats.totalNanos),
+        seconds(stats.maxNanos)
+      ));
+    out.append("\n}\n");
+    return out.toString();
+  }
+
+  private static <T> void jsonObject(
+    final StringBuilder out,
+    final String name,
+    final Map<String, T> values,
+    final Function<T, String> format)
+  {
+    out.append("  ");
+    jsonString(out, name);
+    out.append(": {");
+
+    var first = true;
+    for (final var e : values.entrySet()) {
+      out.append(first ? "\n    " : ",\n    ");
+      first = false;
+      jsonString(out, e.getKey());
+      out.append(": ");
+      out.append(format.apply(e.getValue()));
+    }
+    out.append(first ? "}" : "\n  }");
+  }
+
+  private static void jsonString(
+    final StringBuilder out,
+    final String text)
+  {
+    out.append('"');
+    for (int index = 0; index < text.length(); ++index) {
+      final var c = text.charAt(index);
+      switch (c) {
+        case '\\' -> out.append("\\\\");
+        case '"' -> out.append("\\\"");
+        default -> {
+          if (c < 0x20) {
+            out.append("\\u%04x".formatted(Integer.valueOf(c)));
+          } else {
+            out.append(c);
+          }
+        }
+      }
+    }
+    out.append('"');
+  }
+
+  /**
+   * A timer for a phase.
+   */
+
+  public final class Timer implements AutoCloseable
+  {
+    private final String name;
+    private final long start;
+    private boolean closed;
+
+    private Timer(
+      final String inName,
+      final long inStart)
+    {
+      this.name = Objects.requireNonNull(inName, "name");
+      this.start = inStart;
+      this.closed = false;
+    }
+
+    /**
+     * End the phase.
+     */
+
+    @Override
+    public void close()
+    {
+      if (!this.closed) {
+        this.closed = true;
+        UMetrics.this.phaseCompleted(
+          this.name, System.nanoTime() - this.start);
+      }
+    }
+  }
+
+  private static final class CommandStatistics
+  {
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+
+    CommandStatistics()
+    {
+
+    }
+
+    void add(
+      final long nanos)
+    {
+      ++this.count;
+      this.totalNanos += nanos;
+      this.maxNanos = Math.max(this.maxNanos, nanos);
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Objects;
+
+/**
+ * Functions to inspect nsswitch.conf(5).
+ */
+
+final class UNameServiceSwitch
+{
+  private static final Logger LOG =
+    LoggerFactory.getLogger(UNameServiceSwitch.class);
+
+  private UNameServiceSwitch()
+  {
+
+  }
+
+  /**
+   * Determine if the given database is backed only by the "files" service.
+   * If the configuration file cannot be read, or does not mention the
+   * database, the answer is conservatively {@code false}.
+   *
+   * @param file     The nsswitch.conf file
+   * @param database The database name (such as "passwd")
+   *
+   * @return {@code true} if the database is backed only by files
+   */
+
+  static boolean isFilesOnly(
+    final Path file,
+    final String database)
+  {
+    Objects.requireNonNull(file, "file");
+    Objects.requireNonNull(database, "database");
+
+    final String text;
+    try {
+      text = Files.readString(file);
+    } catch (final IOException e) {
+      LOG.debug("unable to read {}: {}", file, e.getMessage());
+      return false;
+    }
+
+    for (final var rawLine : text.lines().toList()) {
+      final var comment = rawLine.indexOf('#');
+      final var line =
+        (comment >= 0 ? rawLine.substring(0, comment) : rawLine).trim();
+
+      final var colon = line.indexOf(':');
+      if (colon < 0) {
+        continue;
+      }
+      if (!line.substring(0, colon).trim().equals(database)) {
+        continue;
+      }
+
+      var services = 0;
+      for (final var token : line.substring(colon + 1).trim().split("\\s+")) {
+        if (token.isEmpty() || token.startsWith("[")) {
+          continue;
+        }
+        if (!token.equals("files")) {
+          return false;
+        }
+        ++services;
+      }
+      return services > 0;
+    }
+    return false;
+  }
+}
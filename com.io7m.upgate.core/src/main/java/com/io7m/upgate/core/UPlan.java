@@ -0,0 +1,336 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Map.entry;
+
+/**
+ * <p>A precomputed plan: the adjustments calculated by
+ * {@link UDelta#delta(UUserDatabase, UGroupDatabase, UConfiguration)} for a
+ * configuration, along with fingerprints of the database entries that the
+ * calculation observed. A plan can be computed on one machine, reviewed,
+ * and then executed on another without parsing the configuration or
+ * calculating the delta again.</p>
+ *
+ * <p>The fingerprints cover only the entries that the delta calculation
+ * examines: for each configured user and group, the existing entry with the
+ * same name and the existing entry with the same ID. A plan therefore
+ * remains valid if unrelated entries are added or removed, and the
+ * fingerprints can be checked against databases produced by targeted
+ * lookups. If any of the observed entries have changed, executing the plan
+ * could produce a different result than calculating the delta again, and
+ * so the plan is rejected.</p>
+ *
+ * @param configuration The configuration for which the plan was computed
+ * @param usersSHA256   The fingerprint of the observed user entries
+ * @param groupsSHA256  The fingerprint of the observed group entries
+ * @param adjustments   The adjustments
+ */
+
+public record UPlan(
+  UConfiguration configuration,
+  String usersSHA256,
+  String groupsSHA256,
+  List<UAdjustmentType> adjustments)
+{
+  /**
+   * A precomputed plan.
+   *
+   * @param configuration The configuration for which the plan was computed
+   * @param usersSHA256   The fingerprint of the observed user entries
+   * @param groupsSHA256  The fingerprint of the observed group entries
+   * @param adjustments   The adjustments
+   */
+
+  public UPlan
+  {
+    Objects.requireNonNull(configuration, "configuration");
+    Objects.requireNonNull(usersSHA256, "usersSHA256");
+    Objects.requireNonNull(groupsSHA256, "groupsSHA256");
+    adjustments = List.copyOf(adjustments);
+  }
+
+  /**
+   * Calculate a plan for the given configuration.
+   *
+   * @param userDatabase  A snapshot of the current user database
+   * @param groupDatabase A snapshot of the current group database
+   * @param configuration The desired configuration state
+   *
+   * @return A plan
+   *
+   * @throws UException On errors
+   */
+
+  public static UPlan create(
+    final UUserDatabase userDatabase,
+    final UGroupDatabase groupDatabase,
+    final UConfiguration configuration)
+    throws UException
+  {
+    return new UPlan(
+      configuration,
+      fingerprintUsers(userDatabase, configuration),
+      fingerprintGroups(groupDatabase, configuration),
+      UDelta.delta(userDatabase, groupDatabase, configuration)
+    );
+  }
+
+  /**
+   * Calculate a plan for the given configuration, calculating the delta
+   * in parallel using the given pool.
+   *
+   * @param userDatabase  A snapshot of the current user database
+   * @param groupDatabase A snapshot of the current group database
+   * @param configuration The desired configuration state
+   * @param pool          The pool
+   *
+   * @return A plan
+   *
+   * @throws UException On errors
+   *
+   * @see UDelta#delta(UUserDatabase, UGroupDatabase, UConfiguration,
+   * ForkJoinPool)
+   */
+
+  public static UPlan create(
+    final UUserDatabase userDatabase,
+    final UGroupDatabase groupDatabase,
+    final UConfiguration configuration,
+    final ForkJoinPool pool)
+    throws UException
+  {
+    return new UPlan(
+      configuration,
+      fingerprintUsers(userDatabase, configuration),
+      fingerprintGroups(groupDatabase, configuration),
+      UDelta.delta(userDatabase, groupDatabase, configuration, pool)
+    );
+  }
+
+  /**
+   * Check that the entries observed when the plan was calculated are
+   * unchanged in the given databases.
+   *
+   * @param userDatabase  A snapshot of the current user database
+   * @param groupDatabase A snapshot of the current group database
+   *
+   * @throws UException If the databases have changed
+   */
+
+  public void verify(
+    final UUserDatabase userDatabase,
+    final UGroupDatabase groupDatabase)
+    throws UException
+  {
+    final var users =
+      fingerprintUsers(userDatabase, this.configuration);
+    final var groups =
+      fingerprintGroups(groupDatabase, this.configuration);
+
+    if (users.equals(this.usersSHA256) && groups.equals(this.groupsSHA256)) {
+      return;
+    }
+
+    throw new UException(
+      "The databases have changed since the plan was calculated.",
+      "error-plan-stale",
+      Map.ofEntries(
+        entry("Planned Users SHA-256", this.usersSHA256),
+        entry("Current Users SHA-256", users),
+        entry("Planned Groups SHA-256", this.groupsSHA256),
+        entry("Current Groups SHA-256", groups)
+      ),
+      Optional.of("Calculate the plan again."),
+      List.of()
+    );
+  }
+
+  private static MessageDigest sha256()
+  {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String fingerprintUsers(
+    final UUserDatabase database,
+    final UConfiguration configuration)
+  {
+    final var digest = sha256();
+    final var output = new DataOutputStream(
+      new DigestOutputStream(OutputStream.nullOutputStream(), digest));
+
+    try {
+      for (final var user : configuration.users()) {
+        writeObservedUser(output, database.userForNameOrNull(user.name()));
+        writeObservedUser(output, database.userForIdOrNull(user.id()));
+      }
+      output.flush();
+    } catch (final IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  private static void writeObservedUser(
+    final DataOutputStream output,
+    final UUser user)
+    throws IOException
+  {
+    if (user == null) {
+      output.writeBoolean(false);
+      return;
+    }
+    output.writeBoolean(true);
+    UPlanFormat.writeUser(output, user);
+  }
+
+  private static String fingerprintGroups(
+    final UGroupDatabase database,
+    final UConfiguration configuration)
+  {
+    final var digest = sha256();
+    final var output = new DataOutputStream(
+      new DigestOutputStream(OutputStream.nullOutputStream(), digest));
+
+    try {
+      for (final var group : configuration.groups()) {
+        writeObservedGroup(output, database.groupForNameOrNull(group.name()));
+        writeObservedGroup(output, database.groupForIdOrNull(group.id()));
+      }
+      output.flush();
+    } catch (final IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  private static void writeObservedGroup(
+    final DataOutputStream output,
+    final UGroupDatabase.UGroupDatabaseEntry group)
+    throws IOException
+  {
+    if (group == null) {
+      output.writeBoolean(false);
+      return;
+    }
+    output.writeBoolean(true);
+    output.writeInt(group.gid());
+    output.writeUTF(group.groupName());
+    UPlanFormat.writeStrings(output, group.members());
+  }
+
+  /**
+   * Load a plan from the given file.
+   *
+   * @param file The file
+   *
+   * @return The plan
+   *
+   * @throws IOException On I/O errors
+   * @throws UException  If the file is not a valid plan
+   */
+
+  public static UPlan load(
+    final Path file)
+    throws IOException, UException
+  {
+    try (var stream = new BufferedInputStream(Files.newInputStream(file))) {
+      return read(stream);
+    }
+  }
+
+  /**
+   * Save the plan to the given file. The file is replaced atomically.
+   *
+   * @param file The file
+   *
+   * @throws IOException On errors
+   */
+
+  public void save(
+    final Path file)
+    throws IOException
+  {
+    final var absolute = file.toAbsolutePath();
+    final var temporary =
+      absolute.resolveSibling(absolute.getFileName() + ".tmp");
+    try (var stream =
+           new BufferedOutputStream(Files.newOutputStream(temporary))) {
+      this.write(stream);
+    }
+    Files.move(temporary, absolute, ATOMIC_MOVE, REPLACE_EXISTING);
+  }
+
+  /**
+   * Write the plan to the given stream.
+   *
+   * @param stream The stream
+   *
+   * @throws IOException On errors
+   */
+
+  public void write(
+    final OutputStream stream)
+    throws IOException
+  {
+    UPlanFormat.write(stream, this);
+  }
+
+  /**
+   * Read a plan from the given stream. The stream must contain exactly one
+   * plan.
+   *
+   * @param stream The stream
+   *
+   * @return The plan
+   *
+   * @throws IOException On I/O errors
+   * @throws UException  If the stream does not contain a valid plan
+   */
+
+  public static UPlan read(
+    final InputStream stream)
+    throws IOException, UException
+  {
+    return UPlanFormat.read(stream);
+  }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.core;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * <p>The binary encoding of plans.</p>
+ *
+ * <p>A plan consists of a magic number and version, the two 32-byte
+ * SHA-256 fingerprints, the configured users and groups, and then the
+ * adjustments, each preceded by a one-byte tag. Integers are big-endian
+ * and strings are in the modified UTF-8 encoding of
+ * {@link java.io.DataOutput#writeUTF(String)}.</p>
+ *
+ * @see UPlan
+ */
+
+final class UPlanFormat
+{
+  private static final int MAGIC = 0x55504c4e;
+  private static final int VERSION = 1;
+  private static final int DIGEST_SIZE = 32;
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private static final byte TAG_GROUP_CHANGE_GID = 1;
+  private static final byte TAG_GROUP_CHANGE_NAME = 2;
+  private static final byte TAG_GROUP_CREATE = 3;
+  private static final byte TAG_GROUP_SET_MEMBERS = 4;
+  private static final byte TAG_USER_CHANGE_UID = 5;
+  private static final byte TAG_USER_CHANGE_NAME = 6;
+  private static final byte TAG_USER_CREATE = 7;
+  private static final byte TAG_USER_CHANGE_SHELL = 8;
+
+  private UPlanFormat()
+  {
+
+  }
+
+  /**
+   * Write a plan to the given stream.
+   *
+   * @param stream The stream
+   * @param plan   The plan
+   *
+   * @throws IOException On errors
+   */
+
+  static void write(
+    final OutputStream stream,
+    final UPlan plan)
+    throws IOException
+  {
+    final var output = new DataOutputStream(stream);
+    final var hex = HexFormat.of();
+    output.writeInt(MAGIC);
+    output.writeInt(VERSION);
+    output.write(hex.parseHex(plan.usersSHA256()));
+    output.write(hex.parseHex(plan.groupsSHA256()));
+
+    final var users = plan.configuration().users();
+    output.writeInt(users.size());
+    for (final var user : users) {
+      writeUser(output, user);
+    }
+    final var groups = plan.configuration().groups();
+    output.writeInt(groups.size());
+    for (final var group : groups) {
+      writeGroup(output, group);
+    }
+
+    output.writeInt(plan.adjustments().size());
+    for (final var adjustment : plan.adjustments()) {
+      writeAdjustment(output, adjustment);
+    }
+    output.flush();
+  }
+
+  static void writeUser(
+    final DataOutputStream output,
+    final UUser user)
+    throws IOException
+  {
+    output.writeInt(user.id());
+    output.writeInt(user.groupId());
+    output.writeUTF(user.name());
+    output.writeUTF(user.shell());
+  }
+
+  private static void writeGroup(
+    final DataOutputStream output,
+    final UGroup group)
+    throws IOException
+  {
+    output.writeInt(group.id());
+    output.writeUTF(group.name());
+    output.writeInt(group.users().size());
+    for (final var user : group.users().entrySet()) {
+      output.writeUTF(user.getKey());
+      writeUser(output, user.getValue());
+    }
+  }
+
+  static void writeStrings(
+    final DataOutputStream output,
+    final List<String> strings)
+    throws IOException
+  {
+    output.writeInt(strings.size());
+    for (final var string : strings) {
+      output.writeUTF(string);
+    }
+  }
+
+  private static void writeAdjustment(
+    final DataOutputStream output,
+    final UAdjustmentType adjustment)
+    throws IOException
+  {
+    if (adjustment instanceof final UAdjustmentGroupChangeGID u) {
+      output.writeByte(TAG_GROUP_CHANGE_GID);
+      writeGroup(output, u.group());
+    } else if (adjustment instanceof final UAdjustmentGroupChangeName u) {
+      output.writeByte(TAG_GROUP_CHANGE_NAME);
+      output.writeUTF(u.oldName());
+      writeGroup(output, u.group());
+    } else if (adjustment instanceof final UAdjustmentGroupCreate u) {
+      output.writeByte(TAG_GROUP_CREATE);
+      writeGroup(output, u.group());
+    } else if (adjustment instanceof final UAdjustmentGroupSetMembers u) {
+      output.writeByte(TAG_GROUP_SET_MEMBERS);
+      writeGroup(output, u.group());
+      writeStrings(output, u.members());
+    } else {
+      writeUserAdjustment(output, adjustment);
+    }
+  }
+
+  private static void writeUserAdjustment(
+    final DataOutputStream output,
+    final UAdjustmentType adjustment)
+    throws IOException
+  {
+    if (adjustment instanceof final UAdjustmentUserChangeUID u) {
+      output.writeByte(TAG_USER_CHANGE_UID);
+      writeUser(output, u.user());
+    } else if (adjustment instanceof final UAdjustmentUserChangeName u) {
+      output.writeByte(TAG_USER_CHANGE_NAME);
+      output.writeUTF(u.oldName());
+      writeUser(output, u.user());
+    } else if (adjustment instanceof final UAdjustmentUserCreate u) {
+      output.writeByte(TAG_USER_CREATE);
+      writeUser(output, u.user());
+    } else if (adjustment instanceof final UAdjustmentUserChangeShell u) {
+      output.writeByte(TAG_USER_CHANGE_SHELL);
+      writeUser(output, u.user());
+    } else {
+      throw new IllegalStateException(
+        "Unrecognized adjustment type: " + adjustment.getClass());
+    }
+  }
+
+  /**
+   * Read a plan from the given stream. The stream must contain exactly one
+   * plan.
+   *
+   * @param stream The stream
+   *
+   * @return The plan
+   *
+   * @throws IOException On I/O errors
+   * @throws UException  If the stream does not contain a valid plan
+   */
+
+  static UPlan read(
+    final InputStream stream)
+    throws IOException, UException
+  {
+    final var input = new DataInputStream(stream);
+    if (input.readInt() != MAGIC) {
+      throw malformed("The file is not a plan.");
+    }
+    final var version = input.readInt();
+    if (version != VERSION) {
+      throw malformed(
+        "Unsupported plan version %d.".formatted(Integer.valueOf(version)));
+    }
+
+    final var users = readDigest(input);
+    final var groups = readDigest(input);
+
+    final var userCount = readCount(input);
+    final var configurationUsers = new ArrayList<UUser>(capacity(userCount));
+    for (int index = 0; index < userCount; ++index) {
+      configurationUsers.add(readUser(input));
+    }
+    final var groupCount = readCount(input);
+    final var configurationGroups =
+      new ArrayList<UGroup>(capacity(groupCount));
+    for (int index = 0; index < groupCount; ++index) {
+      configurationGroups.add(readGroup(input));
+    }
+
+    final var adjustmentCount = readCount(input);
+    final var adjustments =
+      new ArrayList<UAdjustmentType>(capacity(adjustmentCount));
+    for (int index = 0; index < adjustmentCount; ++index) {
+      adjustments.add(readAdjustment(input));
+    }
+
+    if (input.read() != -1) {
+      throw malformed("Trailing data after the plan.");
+    }
+
+    return new UPlan(
+      new UConfiguration(
+        List.copyOf(configurationUsers),
+        List.copyOf(configurationGroups)),
+      users,
+      groups,
+      adjustments
+    );
+  }
+
+  private static String readDigest(
+    final DataInputStream input)
+    throws IOException
+  {
+    final var digest = new byte[DIGEST_SIZE];
+    input.readFully(digest);
+    return HexFormat.of().formatHex(digest);
+  }
+
+  private static int capacity(
+    final int count)
+  {
+    return Math.min(count, INITIAL_CAPACITY);
+  }
+
+  private static int readCount(
+    final DataInputStream input)
+    throws IOException, UException
+  {
+    final var count = input.readInt();
+    if (count < 0) {
+      throw malformed("Negative count %d.".formatted(Integer.valueOf(count)));
+    }
+    return count;
+  }
+
+  private static UUser readUser(
+    final DataInputStream input)
+    throws IOException
+  {
+    final var id = input.readInt();
+    final var groupId = input.readInt();
+    final var name = input.readUTF();
+    final var shell = input.readUTF();
+    return new UUser(id, groupId, name, shell);
+  }
+
+  private static UGroup readGroup(
+    final DataInputStream input)
+    throws IOException, UException
+  {
+    final var id = input.readInt();
+    final var name = input.readUTF();
+    final var count = readCount(input);
+    final var users = new HashMap<String, UUser>(capacity(count) * 2);
+    for (int index = 0; index < count; ++index) {
+      final var key = input.readUTF();
+      users.put(key, readUser(input));
+    }
+    return new UGroup(id, name, Map.copyOf(users));
+  }
+
+  private static List<String> readStrings(
+    final DataInputStream input)
+    throws IOException, UException
+  {
+    final var count = readCount(input);
+    final var strings = new ArrayList<String>(capacity(count));
+    for (int index = 0; index < count; ++index) {
+      strings.add(input.readUTF());
+    }
+    return List.copyOf(strings);
+  }
+
+  private static UAdjustmentType readAdjustment(
+    final DataInputStream input)
+    throws IOException, UException
+  {
+    final var tag = input.readByte();
+    return switch (tag) {
+      case TAG_GROUP_CHANGE_GID ->
+        new UAdjustmentGroupChangeGID(readGroup(input));
+      case TAG_GROUP_CHANGE_NAME ->
+        new UAdjustmentGroupChangeName(input.readUTF(), readGroup(input));
+      case TAG_GROUP_CREATE ->
+        new UAdjustmentGroupCreate(readGroup(input));
+      case TAG_GROUP_SET_MEMBERS ->
+        new UAdjustmentGroupSetMembers(readGroup(input), readStrings(input));
+      case TAG_USER_CHANGE_UID ->
+        new UAdjustmentUserChangeUID(readUser(input));
+      case TAG_USER_CHANGE_NAME ->
+        new UAdjustmentUserChangeName(input.readUTF(), readUser(input));
+      case TAG_USER_CREATE ->
+        new UAdjustmentUserCreate(readUser(input));
+      case TAG_USER_CHANGE_SHELL ->
+        new UAdjustmentUserChangeShell(readUser(input));
+      default -> throw malformed(
+        "Unrecognized adjustment %d.".formatted(Integer.valueOf(tag)));
+    };
+  }
+
+  private static UException malformed(
+    final String message)
+  {
+    return new UException(
+      message,
+      "error-plan-malformed",
+      Map.of(),
+      Optional.empty(),
+      List.of()
+    );
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.core;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * <p>A target reached through a transport command such as ssh(1). Every
+ * command that would be executed on the local system, including getent(1),
+ * is instead executed by appending it, quoted as a single POSIX shell
+ * command line, to the transport command. For example, a transport of
+ * {@code ssh -- host} runs {@code ssh -- host "'getent' 'passwd'"}, and a
+ * transport of {@code docker exec container sh -c} runs commands inside a
+ * container.</p>
+ *
+ * <p>Each target opens one transport connection per command. Batching
+ * user creations reduces the number of connections considerably.</p>
+ *
+ * @param name      The target name
+ * @param transport The transport command prefix
+ * @param lookup    The lookup strategy for reading databases
+ * @param timeout   The maximum time to allow each getent(1) to run
+ * @param batched   {@code true} if adjustments should be batched in the
+ *                  manner of {@link UAdjustmentExecutor#ofSystemBatched()}
+ */
+
+public record UTargetRemote(
+  String name,
+  List<String> transport,
+  UDatabaseLookup lookup,
+  Duration timeout,
+  boolean batched)
+  implements UTargetType
+{
+  /**
+   * A target reached through a transport command.
+   */
+
+  public UTargetRemote
+  {
+    Objects.requireNonNull(name, "name");
+    Objects.requireNonNull(lookup, "lookup");
+    Objects.requireNonNull(timeout, "timeout");
+    transport = List.copyOf(transport);
+    if (transport.isEmpty()) {
+      throw new IllegalArgumentException("Transport must not be empty.");
+    }
+  }
+
+  /**
+   * A target reached over ssh(1) in batch mode, so that ssh fails rather
+   * than prompting for credentials.
+   *
+   * @param host The host
+   *
+   * @return A target
+   */
+
+  public static UTargetRemote ssh(
+    final String host)
+  {
+    return ssh(
+      host,
+      UDatabaseLookup.AUTOMATIC,
+      UDatabaseParsing.DEFAULT_GETENT_TIMEOUT,
+      false
+    );
+  }
+
+  /**
+   * A target reached over ssh(1) in batch mode, so that ssh fails rather
+   * than prompting for credentials.
+   *
+   * @param host    The host
+   * @param lookup  The lookup strategy for reading databases
+   * @param timeout The maximum time to allow each getent(1) to run
+   * @param batched {@code true} if adjustments should be batched
+   *
+   * @return A target
+   */
+
+  public static UTargetRemote ssh(
+    final String host,
+    final UDatabaseLookup lookup,
+    final Duration timeout,
+    final boolean batched)
+  {
+    return new UTargetRemote(
+      host,
+      List.of("ssh", "-o", "BatchMode=yes", "--", host),
+      lookup,
+      timeout,
+      batched
+    );
+  }
+
+  @Override
+  public UUserDatabase userDatabase(
+    final UConfiguration configuration)
+    throws IOException, InterruptedException
+  {
+    return UUserDatabase.getent(
+      this.transport,
+      this.lookup,
+      configuration.users(),
+      this.timeout
+    );
+  }
+
+  @Override
+  public UGroupDatabase groupDatabase(
+    final UConfiguration configuration)
+    throws IOException, InterruptedException
+  {
+    return UGroupDatabase.getent(
+      this.transport,
+      this.lookup,
+      configuration.groups(),
+      this.timeout
+    );
+  }
+
+  @Override
+  public UAdjustmentExecutorType executor()
+  {
+    return UAdjustmentExecutor.ofTransport(this.transport, this.batched);
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.core;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * The result of applying a configuration to a single target.
+ *
+ * @param target      The target
+ * @param adjustments The adjustments calculated for the target, or an empty
+ *                    list if they could not be calculated
+ * @param failure     The failure, if the target could not be read or the
+ *                    adjustments could not be calculated or executed
+ */
+
+public record UTargetResult(
+  UTargetType target,
+  List<UAdjustmentType> adjustments,
+  Optional<Exception> failure)
+{
+  /**
+   * The result of applying a configuration to a single target.
+   */
+
+  public UTargetResult
+  {
+    Objects.requireNonNull(target, "target");
+    Objects.requireNonNull(failure, "failure");
+    adjustments = List.copyOf(adjustments);
+  }
+
+  /**
+   * @return {@code true} if the configuration was applied successfully
+   */
+
+  public boolean succeeded()
+  {
+    return this.failure.isEmpty();
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.core;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Objects;
+
+/**
+ * A target consisting of a root directory on the local system, such as a
+ * chroot or a container's root filesystem. The databases are read from the
+ * passwd(5) and group(5) files under the root, and adjustments are applied
+ * by modifying the files under the root directly.
+ *
+ * @param root The root directory
+ *
+ * @see UAdjustmentExecutor#ofFiles(Path)
+ */
+
+public record UTargetRoot(Path root)
+  implements UTargetType
+{
+  /**
+   * A target consisting of a root directory on the local system.
+   */
+
+  public UTargetRoot
+  {
+    Objects.requireNonNull(root, "root");
+  }
+
+  @Override
+  public String name()
+  {
+    return this.root.toString();
+  }
+
+  @Override
+  public UUserDatabase userDatabase(
+    final UConfiguration configuration)
+    throws IOException
+  {
+    return UUserDatabase.fromFiles(this.root.resolve("etc/passwd"));
+  }
+
+  @Override
+  public UGroupDatabase groupDatabase(
+    final UConfiguration configuration)
+    throws IOException
+  {
+    return UGroupDatabase.fromFiles(this.root.resolve("etc/group"));
+  }
+
+  @Override
+  public UAdjustmentExecutorType executor()
+  {
+    return UAdjustmentExecutor.ofFiles(this.root);
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.core;
+
+import java.io.IOException;
+
+/**
+ * A target against which a configuration can be applied: a system, or a
+ * part of one such as a container's root directory, with its own user and
+ * group databases. Implementations must be safe to use from multiple
+ * threads, although each target is only used by one thread at a time.
+ *
+ * @see UApplyTargets
+ */
+
+public interface UTargetType
+{
+  /**
+   * @return A name for the target, for diagnostics
+   */
+
+  String name();
+
+  /**
+   * Read the target's user database. The returned snapshot must contain at
+   * least the entries matching the names and IDs of the users in
+   * {@code configuration}.
+   *
+   * @param configuration The configuration that will be applied
+   *
+   * @return The user database
+   *
+   * @throws IOException          On errors
+   * @throws InterruptedException On interruption
+   */
+
+  UUserDatabase userDatabase(UConfiguration configuration)
+    throws IOException, InterruptedException;
+
+  /**
+   * Read the target's group database. The returned snapshot must contain at
+   * least the entries matching the names and IDs of the groups in
+   * {@code configuration}.
+   *
+   * @param configuration The configuration that will be applied
+   *
+   * @return The group database
+   *
+   * @throws IOException          On errors
+   * @throws InterruptedException On interruption
+   */
+
+  UGroupDatabase groupDatabase(UConfiguration configuration)
+    throws IOException, InterruptedException;
+
+  /**
+   * @return An executor that applies adjustments to the target
+   */
+
+  UAdjustmentExecutorType executor();
+}
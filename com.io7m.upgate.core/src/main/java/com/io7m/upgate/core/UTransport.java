@@ -0,0 +1,77 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Functions to run commands through a transport command such as ssh(1).
+ * A transport is a command prefix to which a single argument, a shell
+ * command line, is appended. An empty transport runs commands locally.
+ */
+
+final class UTransport
+{
+  private UTransport()
+  {
+
+  }
+
+  /**
+   * Wrap the given command so that it runs through the given transport.
+   * Each argument of the command is quoted for the POSIX shell, so that
+   * the command arrives at the other end of the transport unchanged.
+   *
+   * @param transport The transport command prefix
+   * @param command   The command
+   *
+   * @return The command to execute locally
+   */
+
+  static List<String> wrap(
+    final List<String> transport,
+    final List<String> command)
+  {
+    if (transport.isEmpty()) {
+      return command;
+    }
+
+    final var result = new ArrayList<String>(transport.size() + 1);
+    result.addAll(transport);
+    result.add(
+      command.stream()
+        .map(UTransport::quote)
+        .collect(Collectors.joining(" "))
+    );
+    return List.copyOf(result);
+  }
+
+  /**
+   * @param text The text
+   *
+   * @return The text quoted for the POSIX shell
+   */
+
+  static String quote(
+    final String text)
+  {
+    return "'" + text.replace("'", "'\\''") + "'";
+  }
+}
@@ -18,30 +18,243 @@
 package com.io7m.upgate.core;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.concurrent.TimeUnit;
 
 /**
- * A snapshot of the user database.
- *
- * @param entries The entries
+ * A snapshot of the user database. The snapshot is indexed by user name and
+ * by user ID on construction; if the database contains more than one entry
+ * with the same name or ID, lookups return the first such entry.
  */
 
-public record UUserDatabase(
-  List<UUserDatabaseEntry> entries)
+public final class UUserDatabase
 {
+  private static final int STREAM_EXPECTED_SIZE = 1024;
+
+  private final ArrayList<UUserDatabaseEntry> entries;
+  private final Map<String, UUser> byName;
+  private final UIntMap<UUser> byId;
+
   /**
    * A snapshot of the user database.
    *
-   * @param entries The entries
+   * @param inEntries The entries
    */
 
-  public UUserDatabase
+  public UUserDatabase(
+    final List<UUserDatabaseEntry> inEntries)
   {
-    Objects.requireNonNull(entries, "entries");
+    this(Objects.requireNonNull(inEntries, "entries").size());
+    for (final var entry : inEntries) {
+      this.add(entry);
+    }
+  }
+
+  private UUserDatabase(
+    final int expected)
+  {
+    this.entries = new ArrayList<>(expected);
+    this.byName = new HashMap<>(Math.max(16, (expected * 4) / 3 + 1));
+    this.byId = new UIntMap<>(expected);
+  }
+
+  private void add(
+    final UUserDatabaseEntry entry)
+  {
+    this.entries.add(Objects.requireNonNull(entry, "entry"));
+    final var user =
+      new UUser(entry.uid(), entry.gid(), entry.userName(), entry.shell());
+    this.byName.putIfAbsent(user.name(), user);
+    this.byId.putIfAbsent(user.id(), user);
+  }
+
+  /**
+   * @return The entries
+   */
+
+  public List<UUserDatabaseEntry> entries()
+  {
+    return Collections.unmodifiableList(this.entries);
+  }
+
+  /**
+   * Read the user database from the current system using the given
+   * source.
+   *
+   * @param source The database source
+   *
+   * @return The user database
+   *
+   * @throws IOException          On errors
+   * @throws InterruptedException On interruption
+   */
+
+  public static UUserDatabase get(
+    final UDatabaseSource source)
+    throws IOException, InterruptedException
+  {
+    return get(source, UDatabaseParsing.DEFAULT_GETENT_TIMEOUT);
+  }
+
+  /**
+   * Read the user database from the current system using the given
+   * source.
+   *
+   * @param source  The database source
+   * @param timeout The maximum time to allow getent(1) to run, if it is used
+   *
+   * @return The user database
+   *
+   * @throws IOException          On errors
+   * @throws InterruptedException On interruption
+   */
+
+  public static UUserDatabase get(
+    final UDatabaseSource source,
+    final Duration timeout)
+    throws IOException, InterruptedException
+  {
+    return get(source, UDatabaseLookup.ENUMERATE, List.of(), timeout);
+  }
+
+  /**
+   * Read the user database from the current system using the given
+   * source. If the database is read using getent(1), {@code lookup}
+   * determines whether the database is enumerated or whether only the
+   * names and IDs of the given users are looked up. In the latter case,
+   * the returned snapshot contains only the entries matching those names
+   * and IDs.
+   *
+   * @param source  The database source
+   * @param lookup  The lookup strategy for getent(1)
+   * @param users   The users that will be compared against the snapshot
+   * @param timeout The maximum time to allow getent(1) to run, if it is used
+   *
+   * @return The user database
+   *
+   * @throws IOException          On errors
+   * @throws InterruptedException On interruption
+   */
+
+  public static UUserDatabase get(
+    final UDatabaseSource source,
+    final UDatabaseLookup lookup,
+    final List<UUser> users,
+    final Duration timeout)
+    throws IOException, InterruptedException
+  {
+    Objects.requireNonNull(source, "source");
+    Objects.requireNonNull(lookup, "lookup");
+    Objects.requireNonNull(users, "users");
+    Objects.requireNonNull(timeout, "timeout");
+
+    return switch (source) {
+      case GETENT -> getent(List.of(), lookup, users, timeout);
+      case FILES -> fromFiles(Path.of("/etc/passwd"));
+      case AUTOMATIC -> {
+        if (UNameServiceSwitch.isFilesOnly(
+          Path.of("/etc/nsswitch.conf"), "passwd")) {
+          yield fromFiles(Path.of("/etc/passwd"));
+        }
+        yield getent(List.of(), lookup, users, timeout);
+      }
+    };
+  }
+
+  /**
+   * Read the user database using getent(1) run through the given
+   * transport.
+   *
+   * @param transport The transport (empty to run getent locally)
+   * @param lookup    The lookup strategy
+   * @param users     The users that will be compared against the snapshot
+   * @param timeout   The maximum time to allow each getent process to run
+   *
+   * @return The user database
+   *
+   * @throws IOException          On errors
+   * @throws InterruptedException On interruption
+   *
+   * @see UTransport
+   */
+
+  static UUserDatabase getent(
+    final List<String> transport,
+    final UDatabaseLookup lookup,
+    final List<UUser> users,
+    final Duration timeout)
+    throws IOException, InterruptedException
+  {
+    return switch (lookup) {
+      case ENUMERATE -> enumerate(transport, timeout);
+      case TARGETED -> lookup(transport, users, timeout);
+      case AUTOMATIC -> {
+        if (users.size() * 2 <= UDatabaseParsing.TARGETED_KEY_LIMIT) {
+          yield lookup(transport, users, timeout);
+        }
+        yield enumerate(transport, timeout);
+      }
+    };
+  }
+
+  /**
+   * Read the user database directly from the given passwd(5) file. The
+   * file is memory-mapped and parsed in a single pass. Entries provided by
+   * NSS sources other than files are not visible to this method; use
+   * {@link #get()} for those.
+   *
+   * @param file The passwd file
+   *
+   * @return The user database
+   *
+   * @throws IOException On errors
+   */
+
+  public static UUserDatabase fromFiles(
+    final Path file)
+    throws IOException
+  {
+    Objects.requireNonNull(file, "file");
+
+    return new UUserDatabase(
+      UDatabaseParsing.parsePasswd(UDatabaseParsing.map(file), file.toString())
+    );
+  }
+
+  /**
+   * Read the passwd(5) formatted user database from the given stream.
+   * Entries are parsed and indexed as they are read, so the stream is never
+   * buffered in full.
+   *
+   * @param stream The stream
+   * @param source The source of the data, for error messages
+   *
+   * @return The user database
+   *
+   * @throws IOException On errors
+   */
+
+  public static UUserDatabase fromStream(
+    final InputStream stream,
+    final String source)
+    throws IOException
+  {
+    Objects.requireNonNull(stream, "stream");
+    Objects.requireNonNull(source, "source");
+
+    final var database = new UUserDatabase(STREAM_EXPECTED_SIZE);
+    UDatabaseParsing.parsePasswd(stream, source, database::add);
+    return database;
   }
 
   /**
@@ -56,36 +269,102 @@ public record UUserDatabase(
   public static UUserDatabase get()
     throws IOException, InterruptedException
   {
-    final var proc0 =
-      new ProcessBuilder()
-        .command(List.of("getent", "passwd"))
-        .start();
+    return get(UDatabaseParsing.DEFAULT_GETENT_TIMEOUT);
+  }
+
+  /**
+   * Read the user database from the current system using getent(1).
+   * Entries are parsed and indexed as getent produces them.
+   *
+   * @param timeout The maximum time to allow getent(1) to run
+   *
+   * @return The user database
+   *
+   * @throws IOException          On errors, or if the timeout expires
+   * @throws InterruptedException On interruption
+   */
+
+  public static UUserDatabase get(
+    final Duration timeout)
+    throws IOException, InterruptedException
+  {
+    return enumerate(List.of(), timeout);
+  }
+
+  private static UUserDatabase enumerate(
+    final List<String> transport,
+    final Duration timeout)
+    throws IOException, InterruptedException
+  {
+    final var database = new UUserDatabase(STREAM_EXPECTED_SIZE);
+    UDatabaseParsing.getent(
+      transport,
+      "passwd",
+      List.of(),
+      timeout,
+      stream -> UDatabaseParsing.parsePasswd(
+        stream, "getent passwd", database::add)
+    );
+    return database;
+  }
+
+  /**
+   * Look up the names and IDs of the given users using getent(1),
+   * producing a partial snapshot of the user database that contains
+   * only the matching entries. This is sufficient for {@link UDelta} to
+   * calculate adjustments for the given users, and avoids enumerating
+   * the entire database.
+   *
+   * @param users   The users
+   * @param timeout The maximum time to allow each getent(1) process to run
+   *
+   * @return The partial user database
+   *
+   * @throws IOException          On errors, or if the timeout expires
+   * @throws InterruptedException On interruption
+   */
+
+  public static UUserDatabase lookup(
+    final List<UUser> users,
+    final Duration timeout)
+    throws IOException, InterruptedException
+  {
+    return lookup(List.of(), users, timeout);
+  }
+
+  private static UUserDatabase lookup(
+    final List<String> transport,
+    final List<UUser> users,
+    final Duration timeout)
+    throws IOException, InterruptedException
+  {
+    Objects.requireNonNull(users, "users");
+    Objects.requireNonNull(timeout, "timeout");
 
-    proc0.waitFor(1L, TimeUnit.SECONDS);
-    final var exit = proc0.exitValue();
-    if (exit != 0) {
-      throw new IOException("getent command failed.");
+    final var keys = new LinkedHashSet<String>();
+    for (final var user : users) {
+      keys.add(user.name());
+      keys.add(Integer.toUnsignedString(user.id()));
     }
 
-    final var entries = new ArrayList<UUserDatabaseEntry>();
-    try (var reader = proc0.inputReader()) {
-      while (true) {
-        final var line = reader.readLine();
-        if (line == null) {
-          break;
+    /*
+     * An entry found by both its name and its ID is produced twice.
+     */
+
+    final var database = new UUserDatabase(users.size());
+    final var seen = new HashSet<UUserDatabaseEntry>(users.size());
+    UDatabaseParsing.getent(
+      transport,
+      "passwd",
+      List.copyOf(keys),
+      timeout,
+      stream -> UDatabaseParsing.parsePasswd(stream, "getent passwd", e -> {
+        if (seen.add(e)) {
+          database.add(e);
         }
-        final var segments = List.of(line.split(":"));
-        entries.add(
-          new UUserDatabaseEntry(
-            segments.get(0),
-            Integer.parseUnsignedInt(segments.get(2)),
-            Integer.parseUnsignedInt(segments.get(3)),
-            segments.get(segments.size() - 1)
-          )
-        );
-      }
-    }
-    return new UUserDatabase(List.copyOf(entries));
+      })
+    );
+    return database;
   }
 
   /**
@@ -99,16 +378,7 @@ public record UUserDatabase(
   public Optional<UUser> userForName(
     final String name)
   {
-    return this.entries.stream()
-      .filter(u -> Objects.equals(u.userName, name))
-      .findFirst()
-      .map(entry -> {
-        return new UUser(
-          entry.uid(),
-          entry.gid(),
-          entry.userName(),
-          entry.shell());
-      });
+    return Optional.ofNullable(this.byName.get(name));
   }
 
   /**
@@ -122,16 +392,61 @@ public record UUserDatabase(
   public Optional<UUser> userForId(
     final int id)
   {
-    return this.entries.stream()
-      .filter(u -> u.uid() == id)
-      .findFirst()
-      .map(entry -> {
-        return new UUser(
-          entry.uid(),
-          entry.gid(),
-          entry.userName(),
-          entry.shell());
-      });
+    return Optional.ofNullable(this.byId.get(id));
+  }
+
+  /**
+   * Find the user with the given name without allocating.
+   *
+   * @param name The name
+   *
+   * @return The user, or {@code null}
+   */
+
+  UUser userForNameOrNull(
+    final String name)
+  {
+    return this.byName.get(name);
+  }
+
+  /**
+   * Find the user with the given ID without allocating.
+   *
+   * @param id The id
+   *
+   * @return The user, or {@code null}
+   */
+
+  UUser userForIdOrNull(
+    final int id)
+  {
+    return this.byId.get(id);
+  }
+
+  @Override
+  public boolean equals(
+    final Object o)
+  {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || !this.getClass().equals(o.getClass())) {
+      return false;
+    }
+    final var that = (UUserDatabase) o;
+    return this.entries.equals(that.entries);
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return this.entries.hashCode();
+  }
+
+  @Override
+  public String toString()
+  {
+    return "UUserDatabase[entries=%s]".formatted(this.entries);
   }
 
   /**
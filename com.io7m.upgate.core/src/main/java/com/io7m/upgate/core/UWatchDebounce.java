@@ -0,0 +1,166 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.upgate.core;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalLong;
+
+/**
+ * <p>The debounce and filter decisions made by the "watch" command, kept
+ * apart from the watch service so that they can be driven with synthetic
+ * events and times.</p>
+ *
+ * <p>Only events for the configuration file, the passwd database, or the
+ * group database are relevant. A relevant event marks the corresponding
+ * part as changed and restarts the debounce period; events for other files
+ * are ignored entirely, so a busy directory cannot postpone
+ * reconciliation. Changes are ready once the debounce period has passed
+ * without further relevant events. Times are in nanoseconds as returned by
+ * {@link System#nanoTime()}.</p>
+ */
+
+public final class UWatchDebounce
+{
+  private final Path configurationFile;
+  private final long periodNanos;
+  private boolean configuration;
+  private boolean databases;
+  private long deadline;
+
+  /**
+   * The changes observed during a debounce period.
+   *
+   * @param configuration {@code true} if the configuration file changed
+   * @param databases     {@code true} if the passwd or group database
+   *                      changed
+   */
+
+  public record Changes(
+    boolean configuration,
+    boolean databases)
+  {
+
+  }
+
+  /**
+   * Create a debouncer.
+   *
+   * @param inConfigurationFile The absolute path of the configuration file
+   * @param inPeriod            The period of quiet required after a change
+   */
+
+  public UWatchDebounce(
+    final Path inConfigurationFile,
+    final Duration inPeriod)
+  {
+    this.configurationFile =
+      Objects.requireNonNull(inConfigurationFile, "configurationFile");
+    this.periodNanos =
+      Objects.requireNonNull(inPeriod, "period").toNanos();
+  }
+
+  /**
+   * Record an event for a file.
+   *
+   * @param path The absolute path of the file
+   * @param time The time of the event
+   *
+   * @return {@code true} if the event concerned a watched file
+   */
+
+  public boolean onEvent(
+    final Path path,
+    final long time)
+  {
+    Objects.requireNonNull(path, "path");
+
+    var relevant = false;
+    if (path.equals(this.configurationFile)) {
+      this.configuration = true;
+      relevant = true;
+    }
+    if (path.equals(UCmdApply.PASSWD) || path.equals(UCmdApply.GROUP)) {
+      this.databases = true;
+      relevant = true;
+    }
+    if (relevant) {
+      this.deadline = time + this.periodNanos;
+    }
+    return relevant;
+  }
+
+  /**
+   * Record that events were lost. Anything may have changed, so
+   * everything is marked as changed.
+   *
+   * @param time The time at which the loss was noticed
+   */
+
+  public void onOverflow(
+    final long time)
+  {
+    this.configuration = true;
+    this.databases = true;
+    this.deadline = time + this.periodNanos;
+  }
+
+  /**
+   * @param time The current time
+   *
+   * @return The time to wait for further events, or nothing if no changes
+   * are pending and the wait is unbounded
+   */
+
+  public OptionalLong waitTime(
+    final long time)
+  {
+    if (!this.isPending()) {
+      return OptionalLong.empty();
+    }
+    return OptionalLong.of(Math.max(0L, this.deadline - time));
+  }
+
+  /**
+   * Take the pending changes if the debounce period has passed. Taking the
+   * changes clears them.
+   *
+   * @param time The current time
+   *
+   * @return The changes, if they are ready
+   */
+
+  public Optional<Changes> take(
+    final long time)
+  {
+    if (!this.isPending() || this.deadline - time > 0L) {
+      return Optional.empty();
+    }
+
+    final var changes = new Changes(this.configuration, this.databases);
+    this.configuration = false;
+    this.databases = false;
+    return Optional.of(changes);
+  }
+
+  private boolean isPending()
+  {
+    return this.configuration || this.databases;
+  }
+}
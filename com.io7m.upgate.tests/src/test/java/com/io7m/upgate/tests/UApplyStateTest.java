@@ -0,0 +1,170 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.tests;
+
+import com.io7m.upgate.core.UApplyState;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public final class UApplyStateTest
+{
+  private static final Instant PAST =
+    Instant.parse("2020-01-01T00:00:00Z");
+
+  private Path directory;
+  private Path config;
+  private Path passwd;
+  private Path stateFile;
+
+  @BeforeEach
+  public void setup()
+    throws IOException
+  {
+    this.directory = UTestDirectories.createTempDirectory();
+    this.config = this.directory.resolve("config.xml");
+    this.passwd = this.directory.resolve("passwd");
+    this.stateFile = this.directory.resolve("state.properties");
+
+    Files.writeString(this.config, "<Configuration/>");
+    Files.writeString(this.passwd, "root:x:0:0:root:/root:/bin/sh\n");
+    Files.setLastModifiedTime(this.config, FileTime.from(PAST));
+    Files.setLastModifiedTime(this.passwd, FileTime.from(PAST));
+  }
+
+  @AfterEach
+  public void tearDown()
+    throws IOException
+  {
+    UTestDirectories.deleteDirectory(this.directory);
+  }
+
+  private UApplyState capture()
+    throws IOException
+  {
+    return new UApplyState(
+      Instant.now(),
+      List.of(
+        UApplyState.captureFile(this.config),
+        UApplyState.captureFile(this.passwd)
+      )
+    );
+  }
+
+  @Test
+  public void testRoundTrip()
+    throws IOException
+  {
+    final var state = this.capture();
+    state.save(this.stateFile);
+    assertEquals(Optional.of(state), UApplyState.load(this.stateFile));
+  }
+
+  @Test
+  public void testMissingOrMalformed()
+    throws IOException
+  {
+    assertEquals(Optional.empty(), UApplyState.load(this.stateFile));
+
+    Files.writeString(this.stateFile, "version=1\nfiles=1\n");
+    assertEquals(Optional.empty(), UApplyState.load(this.stateFile));
+  }
+
+  @Test
+  public void testUpToDate()
+    throws IOException
+  {
+    final var state = this.capture();
+    final var files = List.of(this.config, this.passwd);
+    assertTrue(state.isUpToDate(files));
+    assertFalse(state.isUpToDate(List.of(this.config)));
+    assertFalse(state.isUpToDate(List.of(this.passwd, this.config)));
+  }
+
+  @Test
+  public void testChangedSize()
+    throws IOException
+  {
+    final var state = this.capture();
+    Files.writeString(this.passwd, "root:x:0:0:root:/root:/bin/bash\n");
+    assertFalse(state.isUpToDate(List.of(this.config, this.passwd)));
+  }
+
+  @Test
+  public void testChangedContentSameSize()
+    throws IOException
+  {
+    final var state = this.capture();
+
+    /*
+     * The file changes without changing size, and the modification time
+     * moves forward.
+     */
+
+    Files.writeString(this.passwd, "root:x:0:0:root:/root:/bin/ksh\n");
+    assertFalse(state.isUpToDate(List.of(this.config, this.passwd)));
+  }
+
+  @Test
+  public void testTouchedButUnchanged()
+    throws IOException
+  {
+    final var state = this.capture();
+    Files.setLastModifiedTime(this.passwd, FileTime.from(Instant.now()));
+    assertTrue(state.isUpToDate(List.of(this.config, this.passwd)));
+  }
+
+  @Test
+  public void testRacy()
+    throws IOException
+  {
+    /*
+     * A file modified at the same moment the state was captured is always
+     * compared by content, even if its size and modification time match.
+     */
+
+    final var state = new UApplyState(
+      PAST,
+      List.of(UApplyState.captureFile(this.passwd))
+    );
+    Files.writeString(this.passwd, "root:x:0:0:root:/root:/bin/ksh\n");
+    Files.setLastModifiedTime(this.passwd, FileTime.from(PAST));
+    assertFalse(state.isUpToDate(List.of(this.passwd)));
+  }
+
+  @Test
+  public void testDeleted()
+    throws IOException
+  {
+    final var state = this.capture();
+    Files.delete(this.passwd);
+    assertFalse(state.isUpToDate(List.of(this.config, this.passwd)));
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.tests;
+
+import com.io7m.upgate.core.UApplyTargets;
+import com.io7m.upgate.core.UConfiguration;
+import com.io7m.upgate.core.UDatabaseLookup;
+import com.io7m.upgate.core.UGroup;
+import com.io7m.upgate.core.UTargetRemote;
+import com.io7m.upgate.core.UTargetRoot;
+import com.io7m.upgate.core.UUser;
+import com.io7m.upgate.core.UUserDatabase;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public final class UApplyTargetsTest
+{
+  private static final String SHELL = "/sbin/nologin";
+
+  private Path directory;
+
+  @BeforeEach
+  public void setup()
+    throws IOException
+  {
+    this.directory = UTestDirectories.createTempDirectory();
+  }
+
+  @AfterEach
+  public void tearDown()
+    throws IOException
+  {
+    UTestDirectories.deleteDirectory(this.directory);
+  }
+
+  private Path root(
+    final String name,
+    final String passwd,
+    final String group)
+    throws IOException
+  {
+    final var root = this.directory.resolve(name);
+    final var etc = root.resolve("etc");
+    Files.createDirectories(etc);
+    Files.writeString(etc.resolve("passwd"), passwd);
+    Files.writeString(etc.resolve("group"), group);
+    return root;
+  }
+
+  private static UConfiguration configuration()
+  {
+    final var user = new UUser(2000, 3000, "y", SHELL);
+    return new UConfiguration(
+      List.of(user),
+      List.of(new UGroup(3000, "g", Map.of("y", user)))
+    );
+  }
+
+  @Test
+  public void testRoots()
+    throws Exception
+  {
+    final var roots = new ArrayList<UTargetRoot>();
+    for (int index = 0; index < 8; ++index) {
+      roots.add(new UTargetRoot(this.root(
+        "r" + index,
+        "root:x:0:0:root:/root:/bin/bash\n",
+        "root:x:0:\n"
+      )));
+    }
+
+    /*
+     * One root already matches the configuration, and one is missing its
+     * passwd file.
+     */
+
+    roots.add(new UTargetRoot(this.root(
+      "current",
+      "root:x:0:0:root:/root:/bin/bash\ny:x:2000:3000::/home/y:/sbin/nologin\n",
+      "root:x:0:\ng:x:3000:y\n"
+    )));
+    final var broken = this.directory.resolve("broken");
+    Files.createDirectories(broken.resolve("etc"));
+    roots.add(new UTargetRoot(broken));
+
+    final var results =
+      UApplyTargets.apply(configuration(), roots, 4);
+
+    assertEquals(roots.size(), results.size());
+    for (int index = 0; index < 8; ++index) {
+      final var result = results.get(index);
+      assertEquals(roots.get(index), result.target());
+      assertTrue(result.succeeded());
+      assertEquals(3, result.adjustments().size());
+
+      final var etc = roots.get(index).root().resolve("etc");
+      assertEquals(
+        List.of(
+          "root:x:0:0:root:/root:/bin/bash",
+          "y:x:2000:3000::/home/y:/sbin/nologin"),
+        Files.readAllLines(etc.resolve("passwd")));
+      assertEquals(
+        List.of("root:x:0:", "g:x:3000:y"),
+        Files.readAllLines(etc.resolve("group")));
+    }
+
+    assertTrue(results.get(8).succeeded());
+    assertEquals(List.of(), results.get(8).adjustments());
+
+    assertFalse(results.get(9).succeeded());
+    assertTrue(results.get(9).failure().isPresent());
+  }
+
+  @Test
+  @EnabledOnOs(OS.LINUX)
+  public void testRemoteThroughShell()
+    throws Exception
+  {
+    final var timeout = Duration.ofSeconds(30L);
+    final var local =
+      new UTargetRemote(
+        "local",
+        List.of("sh", "-c"),
+        UDatabaseLookup.ENUMERATE,
+        timeout,
+        false
+      );
+
+    final var configuration = configuration();
+    assertEquals(
+      UUserDatabase.get(timeout),
+      local.userDatabase(configuration));
+
+    /*
+     * A name that must be quoted to survive the shell.
+     */
+
+    final var targeted =
+      new UTargetRemote(
+        "local",
+        List.of("sh", "-c"),
+        UDatabaseLookup.TARGETED,
+        timeout,
+        false
+      );
+
+    final var quoted =
+      new UConfiguration(
+        List.of(new UUser(0, 0, "root", "/bin/sh"),
+                new UUser(0x7fff_fff0, 0, "it's $(false)", SHELL)),
+        List.of()
+      );
+
+    final var users = targeted.userDatabase(quoted);
+    assertEquals(1, users.entries().size());
+    assertEquals(Optional.empty(), users.userForName("it's $(false)"));
+  }
+}
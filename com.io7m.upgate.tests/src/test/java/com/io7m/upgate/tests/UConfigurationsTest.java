@@ -16,7 +16,10 @@
 
 package com.io7m.upgate.tests;
 
+import com.io7m.upgate.core.UConfiguration;
+import com.io7m.upgate.core.UConfigurationParser;
 import com.io7m.upgate.core.UConfigurations;
+import com.io7m.upgate.core.UException;
 import com.io7m.upgate.core.UUser;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -25,9 +28,16 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestFactory;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.stream.Stream;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
@@ -73,6 +83,25 @@ public final class UConfigurationsTest
       });
   }
 
+  @Test
+  public void testGroupMemberMissing()
+    throws Exception
+  {
+    final var file =
+      UTestDirectories.resourceOf(
+        UConfigurationsTest.class,
+        this.directory,
+        "error-group-member-missing.xml");
+
+    final var ex = assertThrows(UException.class, () -> {
+      UConfigurations.parse(file);
+    });
+
+    assertEquals("error-group-member-nonexistent", ex.errorCode());
+    assertEquals("_nexus", ex.attributes().get("User"));
+    assertEquals("_registry", ex.attributes().get("Group"));
+  }
+
   @Test
   public void testConfig0()
     throws Exception
@@ -120,4 +149,224 @@ public final class UConfigurationsTest
       new UUser(1007, 1007, "_gtyrell", SHELL),
       groups.get(6).users().get("_gtyrell"));
   }
+
+  @Test
+  public void testParserConcurrent()
+    throws Exception
+  {
+    final var file =
+      UTestDirectories.resourceOf(
+        UConfigurationsTest.class,
+        this.directory,
+        "config0.xml");
+
+    final var parser =
+      UConfigurationParser.create();
+    final var expected =
+      parser.parse(file);
+
+    final var executor = Executors.newFixedThreadPool(8);
+    try {
+      final var futures = new ArrayList<Future<UConfiguration>>();
+      for (int index = 0; index < 64; ++index) {
+        futures.add(executor.submit(() -> parser.parse(file)));
+      }
+      for (final var future : futures) {
+        assertEquals(expected, future.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testCompiledImage()
+    throws Exception
+  {
+    final var file =
+      UTestDirectories.resourceOf(
+        UConfigurationsTest.class,
+        this.directory,
+        "config0.xml");
+    final var image =
+      this.directory.resolve("config0.img");
+
+    final var compiled =
+      UConfigurations.compile(file, image);
+
+    assertEquals(UConfigurations.parse(file), compiled);
+    assertEquals(compiled, UConfigurations.parseWithImage(file, image));
+  }
+
+  @Test
+  public void testCompiledImageStale()
+    throws Exception
+  {
+    final var file =
+      UTestDirectories.resourceOf(
+        UConfigurationsTest.class,
+        this.directory,
+        "config0.xml");
+    final var image =
+      this.directory.resolve("config0.img");
+
+    UConfigurations.compile(file, image);
+    Files.writeString(
+      file,
+      Files.readString(file, UTF_8).replace("1007", "1008"),
+      UTF_8);
+
+    final var loaded =
+      UConfigurations.parseWithImage(file, image);
+
+    assertEquals(UConfigurations.parse(file), loaded);
+    assertEquals(1008, loaded.users().get(6).id());
+  }
+
+  @Test
+  public void testCompiledImageCorrupt()
+    throws Exception
+  {
+    final var file =
+      UTestDirectories.resourceOf(
+        UConfigurationsTest.class,
+        this.directory,
+        "config0.xml");
+    final var image =
+      this.directory.resolve("config0.img");
+
+    UConfigurations.compile(file, image);
+    final var bytes = Files.readAllBytes(image);
+    Files.write(image, Arrays.copyOf(bytes, bytes.length - 7));
+
+    assertEquals(
+      UConfigurations.parse(file),
+      UConfigurations.parseWithImage(file, image));
+    assertEquals(
+      UConfigurations.parse(file),
+      UConfigurations.parseWithImage(file, this.directory.resolve("none")));
+  }
+
+  @Test
+  public void testFragmentsMerged()
+    throws Exception
+  {
+    this.fragment(
+      "a.xml",
+      """
+        <User ID="1001" GID="1001" Name="_registry" Shell="/sbin/nologin"/>
+        <User ID="1002" GID="1002" Name="_nexus" Shell="/sbin/nologin"/>
+        """,
+      """
+        <Group ID="1001" Name="_registry">
+          <GroupMember User="_registry"/>
+        </Group>
+        <Group ID="1002" Name="_nexus">
+          <GroupMember User="_nexus"/>
+        </Group>
+        """);
+    this.fragment(
+      "b.xml",
+      """
+        <User ID="1002" GID="1002" Name="_nexus" Shell="/sbin/nologin"/>
+        <User ID="1003" GID="1003" Name="_jenkins" Shell="/sbin/nologin"/>
+        """,
+      """
+        <Group ID="1002" Name="_nexus">
+          <GroupMember User="_nexus"/>
+        </Group>
+        <Group ID="1003" Name="_jenkins">
+          <GroupMember User="_jenkins"/>
+          <GroupMember User="_nexus"/>
+        </Group>
+        """);
+    Files.writeString(this.directory.resolve("README"), "Not a fragment.");
+
+    final var configuration =
+      UConfigurations.parseDirectory(this.directory, ForkJoinPool.commonPool());
+
+    final var users = configuration.users();
+    assertEquals(3, users.size());
+    assertEquals(new UUser(1001, 1001, "_registry", SHELL), users.get(0));
+    assertEquals(new UUser(1002, 1002, "_nexus", SHELL), users.get(1));
+    assertEquals(new UUser(1003, 1003, "_jenkins", SHELL), users.get(2));
+
+    final var groups = configuration.groups();
+    assertEquals(3, groups.size());
+    assertEquals("_registry", groups.get(0).name());
+    assertEquals("_nexus", groups.get(1).name());
+    assertEquals("_jenkins", groups.get(2).name());
+    assertEquals(
+      new UUser(1002, 1002, "_nexus", SHELL),
+      groups.get(2).users().get("_nexus"));
+  }
+
+  @Test
+  public void testFragmentsConflictsAllReported()
+    throws Exception
+  {
+    this.fragment(
+      "a.xml",
+      """
+        <User ID="2000" GID="3000" Name="_x" Shell="/sbin/nologin"/>
+        """,
+      """
+        <Group ID="3000" Name="_g"/>
+        """);
+    this.fragment(
+      "b.xml",
+      """
+        <User ID="2001" GID="3001" Name="_x" Shell="/sbin/nologin"/>
+        <User ID="2000" GID="3001" Name="_y" Shell="/sbin/nologin"/>
+        """,
+      """
+        <Group ID="3001" Name="_g"/>
+        """);
+
+    final var ex = assertThrows(UException.class, () -> {
+      UConfigurations.parseDirectory(
+        this.directory, ForkJoinPool.commonPool());
+    });
+
+    assertEquals("error-fragment-user-conflict", ex.errorCode());
+    assertEquals("2001", ex.attributes().get("User (1) ID"));
+    assertEquals(2, ex.errors().size());
+    assertEquals(
+      "error-fragment-user-conflict",
+      ex.errors().get(0).errorCode());
+    assertEquals("_y", ex.errors().get(0).attributes().get("User (1) Name"));
+    assertEquals(
+      "error-fragment-group-conflict",
+      ex.errors().get(1).errorCode());
+  }
+
+  @Test
+  public void testFragmentsEmpty()
+  {
+    final var ex = assertThrows(UException.class, () -> {
+      UConfigurations.parseDirectory(
+        this.directory, ForkJoinPool.commonPool());
+    });
+    assertEquals("error-configuration-directory-empty", ex.errorCode());
+  }
+
+  private void fragment(
+    final String name,
+    final String users,
+    final String groups)
+    throws IOException
+  {
+    Files.writeString(
+      this.directory.resolve(name),
+      """
+        <?xml version="1.0" encoding="UTF-8" ?>
+        <Configuration xmlns="urn:com.io7m.upgate:1">
+          <Users>
+        %s  </Users>
+          <Groups>
+        %s  </Groups>
+        </Configuration>
+        """.formatted(users, groups),
+      UTF_8);
+  }
 }
@@ -0,0 +1,382 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.tests;
+
+import com.io7m.upgate.core.UGroup;
+import com.io7m.upgate.core.UGroupDatabase;
+import com.io7m.upgate.core.UUser;
+import com.io7m.upgate.core.UUserDatabase;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public final class UDatabaseTest
+{
+  private static final String SHELL = "/sbin/nologin";
+  private Path directory;
+
+  @BeforeEach
+  public void setup()
+    throws IOException
+  {
+    this.directory = UTestDirectories.createTempDirectory();
+  }
+
+  @AfterEach
+  public void tearDown()
+    throws IOException
+  {
+    UTestDirectories.deleteDirectory(this.directory);
+  }
+
+  @Test
+  public void testUserLookups()
+  {
+    final var entries =
+      new ArrayList<UUserDatabase.UUserDatabaseEntry>();
+
+    for (int index = 0; index < 10_000; ++index) {
+      entries.add(new UUserDatabase.UUserDatabaseEntry(
+        "u" + index,
+        index * 3,
+        index,
+        SHELL
+      ));
+    }
+
+    final var database = new UUserDatabase(entries);
+    for (int index = 0; index < 10_000; ++index) {
+      final var expected =
+        new UUser(index * 3, index, "u" + index, SHELL);
+      assertEquals(
+        Optional.of(expected),
+        database.userForName("u" + index));
+      assertEquals(
+        Optional.of(expected),
+        database.userForId(index * 3));
+    }
+
+    assertEquals(Optional.empty(), database.userForName("nonexistent"));
+    assertEquals(Optional.empty(), database.userForId(1));
+    assertEquals(Optional.empty(), database.userForId(-1));
+  }
+
+  @Test
+  public void testUserLookupsFirstWins()
+  {
+    final var database =
+      new UUserDatabase(List.of(
+        new UUserDatabase.UUserDatabaseEntry("root", 0, 0, "/bin/sh"),
+        new UUserDatabase.UUserDatabaseEntry("toor", 0, 0, "/bin/csh"),
+        new UUserDatabase.UUserDatabaseEntry("root", 1, 1, "/bin/ksh")
+      ));
+
+    assertEquals(
+      Optional.of(new UUser(0, 0, "root", "/bin/sh")),
+      database.userForName("root"));
+    assertEquals(
+      Optional.of(new UUser(0, 0, "root", "/bin/sh")),
+      database.userForId(0));
+    assertEquals(
+      Optional.of(new UUser(1, 1, "root", "/bin/ksh")),
+      database.userForId(1));
+  }
+
+  @Test
+  public void testGroupLookups()
+  {
+    final var entries =
+      new ArrayList<UGroupDatabase.UGroupDatabaseEntry>();
+
+    for (int index = 0; index < 10_000; ++index) {
+      entries.add(new UGroupDatabase.UGroupDatabaseEntry(
+        "g" + index,
+        0x80000000 + index,
+        List.of()
+      ));
+    }
+
+    final var database = new UGroupDatabase(entries);
+    for (int index = 0; index < 10_000; ++index) {
+      final var expected = entries.get(index);
+      assertEquals(
+        Optional.of(expected),
+        database.groupForName("g" + index));
+      assertEquals(
+        Optional.of(expected),
+        database.groupForId(0x80000000 + index));
+    }
+
+    assertEquals(Optional.empty(), database.groupForName("nonexistent"));
+    assertEquals(Optional.empty(), database.groupForId(0));
+  }
+
+  @Test
+  public void testUserFromFiles()
+    throws IOException
+  {
+    final var file = this.directory.resolve("passwd");
+    Files.writeString(file, String.join("\n",
+      "# A comment",
+      "root:x:0:0:root:/root:/bin/bash",
+      "",
+      "+nisuser::::::",
+      "nobody:x:4294967294:65534:Nobody:/nonexistent:",
+      "_registry:x:1001:1001::/home/_registry:/sbin/nologin"
+    ));
+
+    final var database = UUserDatabase.fromFiles(file);
+    assertEquals(
+      List.of(
+        new UUserDatabase.UUserDatabaseEntry("root", 0, 0, "/bin/bash"),
+        new UUserDatabase.UUserDatabaseEntry("nobody", -2, 65534, ""),
+        new UUserDatabase.UUserDatabaseEntry(
+          "_registry", 1001, 1001, SHELL)
+      ),
+      database.entries()
+    );
+  }
+
+  @Test
+  public void testGroupFromFiles()
+    throws IOException
+  {
+    final var file = this.directory.resolve("group");
+    Files.writeString(file, String.join("\n",
+      "root:x:0:",
+      "wheel:x:10:root,_registry",
+      "empty:x:1001:",
+      ""
+    ));
+
+    final var database = UGroupDatabase.fromFiles(file);
+    assertEquals(
+      List.of(
+        new UGroupDatabase.UGroupDatabaseEntry("root", 0, List.of()),
+        new UGroupDatabase.UGroupDatabaseEntry(
+          "wheel", 10, List.of("root", "_registry")),
+        new UGroupDatabase.UGroupDatabaseEntry("empty", 1001, List.of())
+      ),
+      database.entries()
+    );
+  }
+
+  @Test
+  public void testFromFilesMalformed()
+    throws IOException
+  {
+    final var passwd = this.directory.resolve("passwd");
+    Files.writeString(passwd, "root:x:0:0:root:/root:/bin/bash\nbad:x:1\n");
+    final var ex0 = assertThrows(IOException.class, () -> {
+      UUserDatabase.fromFiles(passwd);
+    });
+    assertTrue(ex0.getMessage().contains(":2:"));
+
+    final var group = this.directory.resolve("group");
+    Files.writeString(group, "root:x:zero:\n");
+    assertThrows(IOException.class, () -> {
+      UGroupDatabase.fromFiles(group);
+    });
+
+    Files.writeString(group, "root:x:4294967296:\n");
+    assertThrows(IOException.class, () -> {
+      UGroupDatabase.fromFiles(group);
+    });
+  }
+
+  @Test
+  public void testFromFilesLarge()
+    throws IOException
+  {
+    final var passwd = this.directory.resolve("passwd");
+    final var group = this.directory.resolve("group");
+
+    try (var writer = Files.newBufferedWriter(passwd)) {
+      for (int index = 0; index < 100_000; ++index) {
+        writer.write("u%d:x:%d:%d:User:/home/u%d:%s\n".formatted(
+          index, index, index, index, index % 2 == 0 ? SHELL : ""
+        ));
+      }
+    }
+    try (var writer = Files.newBufferedWriter(group)) {
+      for (int index = 0; index < 100_000; ++index) {
+        writer.write("g%d:x:%d:%s\n".formatted(
+          index, index, index % 2 == 0 ? "" : "u0,u" + index
+        ));
+      }
+    }
+
+    final var users = UUserDatabase.fromFiles(passwd);
+    assertEquals(100_000, users.entries().size());
+    assertEquals(
+      Optional.of(new UUser(99_998, 99_998, "u99998", SHELL)),
+      users.userForName("u99998"));
+    assertEquals(
+      Optional.of(new UUser(99_999, 99_999, "u99999", "")),
+      users.userForId(99_999));
+
+    final var groups = UGroupDatabase.fromFiles(group);
+    assertEquals(100_000, groups.entries().size());
+    assertEquals(
+      List.of(),
+      groups.groupForId(99_998).orElseThrow().members());
+    assertEquals(
+      List.of("u0", "u99999"),
+      groups.groupForId(99_999).orElseThrow().members());
+  }
+  /**
+   * A stream that returns at most a few bytes per read, so that entries are
+   * split across many reads.
+   */
+
+  private static InputStream trickle(
+    final String text)
+  {
+    return new FilterInputStream(
+      new ByteArrayInputStream(text.getBytes(UTF_8))) {
+      @Override
+      public int read(
+        final byte[] b,
+        final int off,
+        final int len)
+        throws IOException
+      {
+        return super.read(b, off, Math.min(len, 7));
+      }
+    };
+  }
+
+  @Test
+  public void testUserFromStream()
+    throws IOException
+  {
+    final var longShell = "/" + "x".repeat(200_000);
+    final var text = String.join("\n",
+      "# A comment",
+      "root:x:0:0:root:/root:/bin/bash",
+      "long:x:1:1::/:" + longShell,
+      "",
+      "nobody:x:4294967294:65534:Nobody:/nonexistent:"
+    );
+
+    final var expected =
+      List.of(
+        new UUserDatabase.UUserDatabaseEntry("root", 0, 0, "/bin/bash"),
+        new UUserDatabase.UUserDatabaseEntry("long", 1, 1, longShell),
+        new UUserDatabase.UUserDatabaseEntry("nobody", -2, 65534, "")
+      );
+
+    assertEquals(
+      expected,
+      UUserDatabase.fromStream(trickle(text), "passwd").entries());
+    assertEquals(
+      expected,
+      UUserDatabase.fromStream(
+        new ByteArrayInputStream(text.getBytes(UTF_8)), "passwd")
+        .entries());
+
+    final var database = UUserDatabase.fromStream(trickle(text), "passwd");
+    assertEquals(
+      Optional.of(new UUser(1, 1, "long", longShell)),
+      database.userForName("long"));
+    assertEquals(
+      Optional.of(new UUser(0, 0, "root", "/bin/bash")),
+      database.userForId(0));
+  }
+
+  @Test
+  public void testGroupFromStream()
+    throws IOException
+  {
+    final var builder = new StringBuilder();
+    for (int index = 0; index < 10_000; ++index) {
+      builder.append("g%d:x:%d:u0,u%d\n".formatted(index, index, index));
+    }
+
+    final var database =
+      UGroupDatabase.fromStream(trickle(builder.toString()), "group");
+    assertEquals(10_000, database.entries().size());
+    assertEquals(
+      List.of("u0", "u9999"),
+      database.groupForName("g9999").orElseThrow().members());
+  }
+
+  @Test
+  public void testFromStreamMalformed()
+  {
+    final var text =
+      "root:x:0:0:root:/root:/bin/bash\n".repeat(10_000) + "bad:x:1\n";
+
+    final var ex = assertThrows(IOException.class, () -> {
+      UUserDatabase.fromStream(trickle(text), "passwd");
+    });
+    assertTrue(ex.getMessage().contains("passwd:10001:"));
+  }
+  @Test
+  @EnabledOnOs(OS.LINUX)
+  public void testLookupTargeted()
+    throws Exception
+  {
+    final var timeout = Duration.ofSeconds(30L);
+    final var root =
+      UUserDatabase.get(timeout).userForId(0).orElseThrow();
+    final var rootGroup =
+      UGroupDatabase.get(timeout).groupForId(0).orElseThrow();
+
+    final var users =
+      UUserDatabase.lookup(
+        List.of(
+          root,
+          new UUser(0x7fff_fff0, 0, "_upgate_nonexistent", SHELL)
+        ),
+        timeout
+      );
+
+    assertEquals(1, users.entries().size());
+    assertEquals(Optional.of(root), users.userForName(root.name()));
+    assertEquals(Optional.of(root), users.userForId(0));
+    assertEquals(Optional.empty(), users.userForName("_upgate_nonexistent"));
+
+    final var groups =
+      UGroupDatabase.lookup(
+        List.of(new UGroup(0, rootGroup.groupName(), Map.of())),
+        timeout
+      );
+
+    assertEquals(List.of(rootGroup), groups.entries());
+  }
+}
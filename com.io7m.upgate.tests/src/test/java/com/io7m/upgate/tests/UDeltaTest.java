@@ -20,6 +20,8 @@ package com.io7m.upgate.tests;
 import com.io7m.upgate.core.UAdjustmentGroupChangeGID;
 import com.io7m.upgate.core.UAdjustmentGroupChangeName;
 import com.io7m.upgate.core.UAdjustmentGroupCreate;
+import com.io7m.upgate.core.UAdjustmentGroupSetMembers;
+import com.io7m.upgate.core.UAdjustmentType;
 import com.io7m.upgate.core.UAdjustmentUserChangeName;
 import com.io7m.upgate.core.UAdjustmentUserChangeUID;
 import com.io7m.upgate.core.UAdjustmentUserCreate;
@@ -33,8 +35,10 @@ import com.io7m.upgate.core.UUserDatabase;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
@@ -95,6 +99,110 @@ public final class UDeltaTest
     assertEquals("error-user-conflict", ex.errorCode());
   }
 
+  @Test
+  public void testUserCollision()
+    throws UException
+  {
+    final var configuration =
+      new UConfiguration(
+        List.of(
+          new UUser(1001, 3000, "x", SHELL),
+          new UUser(1000, 3000, "y", SHELL)
+        ),
+        List.of());
+    final var users =
+      new UUserDatabase(List.of(
+        new UUserDatabase.UUserDatabaseEntry(
+          "x",
+          1000,
+          3000, SHELL
+        )
+      ));
+    final var groups =
+      new UGroupDatabase(List.of());
+
+    final var ex = assertThrows(UException.class, () -> {
+      UDelta.delta(users, groups, configuration);
+    });
+    assertEquals("error-user-collision", ex.errorCode());
+    assertEquals(List.of(), ex.errors());
+  }
+
+  @Test
+  public void testDuplicateIdsInDatabase()
+    throws UException
+  {
+    final var configuration =
+      new UConfiguration(
+        List.of(
+          new UUser(1000, 3000, "x", SHELL),
+          new UUser(2000, 3000, "y", SHELL)
+        ),
+        List.of(
+          new UGroup(3000, "g", Map.of()),
+          new UGroup(4000, "h", Map.of())
+        ));
+    final var users =
+      new UUserDatabase(List.of(
+        new UUserDatabase.UUserDatabaseEntry("x", 1000, 3000, SHELL),
+        new UUserDatabase.UUserDatabaseEntry("y", 1000, 3000, SHELL)
+      ));
+    final var groups =
+      new UGroupDatabase(List.of(
+        new UGroupDatabase.UGroupDatabaseEntry("g", 3000, List.of()),
+        new UGroupDatabase.UGroupDatabaseEntry("h", 3000, List.of())
+      ));
+
+    final var delta =
+      UDelta.delta(users, groups, configuration);
+
+    assertEquals(
+      List.of(
+        new UAdjustmentUserChangeUID(configuration.users().get(1)),
+        new UAdjustmentGroupChangeGID(configuration.groups().get(1))
+      ),
+      delta);
+  }
+
+  @Test
+  public void testCollisionsAllReported()
+    throws UException
+  {
+    final var configuration =
+      new UConfiguration(
+        List.of(
+          new UUser(1000, 3000, "x", SHELL),
+          new UUser(1000, 3000, "y", SHELL),
+          new UUser(1001, 3000, "y", SHELL)
+        ),
+        List.of(
+          new UGroup(3000, "g", Map.of()),
+          new UGroup(3000, "h", Map.of())
+        ));
+    final var users =
+      new UUserDatabase(List.of());
+    final var groups =
+      new UGroupDatabase(List.of());
+
+    final var ex = assertThrows(UException.class, () -> {
+      UDelta.delta(users, groups, configuration);
+    });
+    assertEquals("error-duplicate", ex.errorCode());
+    assertEquals(
+      Map.of("User ID", "1000"),
+      ex.attributes()
+    );
+    assertEquals(2, ex.errors().size());
+    assertEquals(
+      Map.of("User Name", "y"),
+      ex.errors().get(0).attributes()
+    );
+    assertEquals(
+      Map.of("Group ID", "3000"),
+      ex.errors().get(1).attributes()
+    );
+  }
+
   @Test
   public void testUserNoChanges()
     throws UException
@@ -332,4 +440,188 @@ public final class UDeltaTest
 
     assertEquals(List.of(), delta);
   }
+
+  @Test
+  public void testGroupMembers()
+    throws UException
+  {
+    final var a = new UUser(1000, 2000, "a", SHELL);
+    final var b = new UUser(1001, 2000, "b", SHELL);
+    final var c = new UUser(1002, 2000, "c", SHELL);
+
+    final var configuration =
+      new UConfiguration(
+        List.of(a, b, c),
+        List.of(
+          new UGroup(2000, "g", Map.of("c", c, "a", a)),
+          new UGroup(2001, "h", Map.of("b", b)),
+          new UGroup(2002, "k", Map.of("a", a))
+        ));
+    final var users =
+      new UUserDatabase(List.of(
+        new UUserDatabase.UUserDatabaseEntry("a", 1000, 2000, SHELL),
+        new UUserDatabase.UUserDatabaseEntry("x", 1001, 2000, SHELL),
+        new UUserDatabase.UUserDatabaseEntry("c", 1002, 2000, SHELL)
+      ));
+    final var groups =
+      new UGroupDatabase(List.of(
+        new UGroupDatabase.UGroupDatabaseEntry("g", 2000, List.of("a", "x")),
+        new UGroupDatabase.UGroupDatabaseEntry("h", 2001, List.of("x"))
+      ));
+
+    final var delta =
+      UDelta.delta(users, groups, configuration);
+
+    final var k = new UGroup(2002, "k", Map.of("a", a));
+    assertEquals(
+      List.of(
+        new UAdjustmentGroupCreate(k),
+        new UAdjustmentUserChangeName("x", b),
+        new UAdjustmentGroupSetMembers(
+          new UGroup(2000, "g", Map.of("c", c, "a", a)),
+          List.of("a", "c")),
+        new UAdjustmentGroupSetMembers(k, List.of("a"))
+      ),
+      delta
+    );
+  }
+
+  private static UConfiguration largeConfiguration(
+    final int userCount,
+    final int groupCount)
+  {
+    final var users = new ArrayList<UUser>(userCount);
+    for (int index = 0; index < userCount; ++index) {
+      users.add(new UUser(10000 + index, 5000, "u" + index, SHELL));
+    }
+    final var groups = new ArrayList<UGroup>(groupCount);
+    for (int index = 0; index < groupCount; ++index) {
+      final var user = users.get(index);
+      groups.add(
+        new UGroup(5000 + index, "g" + index, Map.of(user.name(), user)));
+    }
+    return new UConfiguration(List.copyOf(users), List.copyOf(groups));
+  }
+
+  private static UUserDatabase largeUsers(
+    final int userCount)
+  {
+    final var entries = new ArrayList<UUserDatabase.UUserDatabaseEntry>();
+    for (int index = 0; index < userCount; ++index) {
+      final var name = "u" + index;
+      final var id = 10000 + index;
+      switch (index % 4) {
+        case 1 -> entries.add(new UUserDatabase.UUserDatabaseEntry(
+          name, 900000 + index, 5000, SHELL));
+        case 2 -> entries.add(new UUserDatabase.UUserDatabaseEntry(
+          "old" + index, id, 5000, SHELL));
+        case 3 -> entries.add(new UUserDatabase.UUserDatabaseEntry(
+          name, id, 5000, index % 8 == 3 ? "/bin/sh" : SHELL));
+        default -> {
+        }
+      }
+    }
+    return new UUserDatabase(entries);
+  }
+
+  private static UGroupDatabase largeGroups(
+    final int groupCount)
+  {
+    final var entries = new ArrayList<UGroupDatabase.UGroupDatabaseEntry>();
+    for (int index = 0; index < groupCount; ++index) {
+      final var name = "g" + index;
+      switch (index % 3) {
+        case 1 -> entries.add(new UGroupDatabase.UGroupDatabaseEntry(
+          name, 900000 + index, List.of()));
+        case 2 -> entries.add(new UGroupDatabase.UGroupDatabaseEntry(
+          name, 5000 + index, List.of("old" + index)));
+        default -> {
+        }
+      }
+    }
+    return new UGroupDatabase(entries);
+  }
+
+  @Test
+  public void testParallelMatchesSequential()
+    throws UException
+  {
+    final var configuration = largeConfiguration(20000, 6000);
+    final var users = largeUsers(20000);
+    final var groups = largeGroups(6000);
+
+    final var expected =
+      UDelta.delta(users, groups, configuration);
+
+    final var pool = new ForkJoinPool(4);
+    try {
+      assertEquals(
+        expected,
+        UDelta.delta(users, groups, configuration, pool)
+      );
+    } finally {
+      pool.shutdown();
+    }
+
+    assertEquals(
+      UAdjustmentGroupCreate.class,
+      expected.get(0).getClass()
+    );
+    assertEquals(
+      UAdjustmentGroupSetMembers.class,
+      expected.get(expected.size() - 1).getClass()
+    );
+  }
+
+  @Test
+  public void testParallelErrorsMatchSequential()
+    throws UException
+  {
+    final var configuration = largeConfiguration(20000, 0);
+    final var entries = new ArrayList<UUserDatabase.UUserDatabaseEntry>();
+    for (int index = 0; index < 20000; index += 1000) {
+      entries.add(new UUserDatabase.UUserDatabaseEntry(
+        "u" + index, 900000 + index, 5000, SHELL));
+      entries.add(new UUserDatabase.UUserDatabaseEntry(
+        "y" + index, 10000 + index, 5000, SHELL));
+    }
+    final var users = new UUserDatabase(entries);
+    final var groups = new UGroupDatabase(List.of());
+
+    final var expected = assertThrows(UException.class, () -> {
+      UDelta.delta(users, groups, configuration);
+    });
+
+    final var pool = new ForkJoinPool(4);
+    try {
+      final var received = assertThrows(UException.class, () -> {
+        UDelta.delta(users, groups, configuration, pool);
+      });
+      assertEquals(expected.attributes(), received.attributes());
+      assertEquals(expected.errors(), received.errors());
+      assertEquals(19, received.errors().size());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testStreamingNothingDeliveredOnError()
+    throws UException
+  {
+    final var configuration = largeConfiguration(5000, 0);
+    final var users =
+      new UUserDatabase(List.of(
+        new UUserDatabase.UUserDatabaseEntry("u4999", 1, 5000, SHELL),
+        new UUserDatabase.UUserDatabaseEntry("y", 14999, 5000, SHELL)
+      ));
+    final var groups = new UGroupDatabase(List.of());
+
+    final var delivered = new ArrayList<UAdjustmentType>();
+    final var ex = assertThrows(UException.class, () -> {
+      UDelta.delta(users, groups, configuration, delivered::add);
+    });
+    assertEquals("error-user-conflict", ex.errorCode());
+    assertEquals(List.of(), delivered);
+  }
 }
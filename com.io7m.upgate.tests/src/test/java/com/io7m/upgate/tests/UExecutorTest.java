@@ -21,6 +21,7 @@ import com.io7m.upgate.core.UAdjustmentExecutor;
 import com.io7m.upgate.core.UAdjustmentGroupChangeGID;
 import com.io7m.upgate.core.UAdjustmentGroupChangeName;
 import com.io7m.upgate.core.UAdjustmentGroupCreate;
+import com.io7m.upgate.core.UAdjustmentGroupSetMembers;
 import com.io7m.upgate.core.UAdjustmentType;
 import com.io7m.upgate.core.UAdjustmentUserChangeName;
 import com.io7m.upgate.core.UAdjustmentUserChangeShell;
@@ -34,6 +35,8 @@ import org.junit.jupiter.api.Test;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -46,13 +49,23 @@ public final class UExecutorTest
   private static List<String> execute(
     final List<UAdjustmentType> adjustments)
     throws UException
+  {
+    return execute(adjustments, false);
+  }
+
+  private static List<String> execute(
+    final List<UAdjustmentType> adjustments,
+    final boolean batched)
+    throws UException
   {
     final var stringWriter =
       new StringWriter();
     final var writer =
       new PrintWriter(stringWriter);
     final var executor =
-      UAdjustmentExecutor.ofDryRun(writer);
+      batched
+        ? UAdjustmentExecutor.ofDryRunBatched(writer)
+        : UAdjustmentExecutor.ofDryRun(writer);
 
     executor.execute(adjustments);
 
@@ -181,4 +194,215 @@ public final class UExecutorTest
       lines.get(0)
     );
   }
+
+  /**
+   * Users created in a batch have an empty home directory field, whereas
+   * useradd records /home/<name>.
+   */
+
+  @Test
+  public void testUserCreateBatchedHomeEmpty()
+    throws UException
+  {
+    final var lines =
+      execute(List.of(
+        new UAdjustmentUserCreate(new UUser(1001, 1001, "user0", SHELL)),
+        new UAdjustmentUserCreate(new UUser(1002, 1001, "user1", SHELL))
+      ), true);
+
+    for (final var entry : List.of(lines.get(1), lines.get(2))) {
+      final var fields = entry.split(":", -1);
+      assertEquals(7, fields.length);
+      assertEquals("", fields[5]);
+    }
+  }
+
+  @Test
+  public void testUserCreateBatched()
+    throws UException
+  {
+    final var lines =
+      execute(List.of(
+        new UAdjustmentGroupCreate(new UGroup(1001, "g", Map.of())),
+        new UAdjustmentUserCreate(new UUser(1001, 1001, "user0", SHELL)),
+        new UAdjustmentUserCreate(new UUser(1002, 1001, "user1", SHELL)),
+        new UAdjustmentUserChangeShell(new UUser(1003, 1001, "user2", SHELL)),
+        new UAdjustmentUserCreate(new UUser(1004, 1001, "user3", SHELL))
+      ), true);
+
+    assertEquals(
+      List.of(
+        "groupadd --gid 1001 g",
+        "newusers --crypt-method NONE <<'EOF'",
+        "user0:!:1001:1001:::/sbin/nologin",
+        "user1:!:1002:1001:::/sbin/nologin",
+        "EOF",
+        "usermod --shell /sbin/nologin user2",
+        "useradd --uid 1004 --gid 1001 --no-create-home user3"
+      ),
+      lines
+    );
+  }
+
+  @Test
+  public void testUserCreateBatchedUnsafe()
+    throws UException
+  {
+    final var lines =
+      execute(List.of(
+        new UAdjustmentUserCreate(new UUser(1001, 1001, "user0", SHELL)),
+        new UAdjustmentUserCreate(new UUser(1002, 1001, "user:1", SHELL)),
+        new UAdjustmentUserCreate(new UUser(1003, 1001, "user2", SHELL))
+      ), true);
+
+    assertEquals(
+      List.of(
+        "useradd --uid 1001 --gid 1001 --no-create-home user0",
+        "useradd --uid 1002 --gid 1001 --no-create-home user:1",
+        "useradd --uid 1003 --gid 1001 --no-create-home user2"
+      ),
+      lines
+    );
+  }
+
+  @Test
+  public void testGroupSetMembers()
+    throws UException
+  {
+    final var lines =
+      execute(List.of(
+        new UAdjustmentGroupSetMembers(
+          new UGroup(1001, "x", Map.of()),
+          List.of("user0", "user1", "user2")),
+        new UAdjustmentGroupSetMembers(
+          new UGroup(1002, "y", Map.of()),
+          List.of())
+      ));
+
+    assertEquals(
+      List.of(
+        "gpasswd --members user0,user1,user2 x",
+        "gpasswd --members  y"
+      ),
+      lines
+    );
+  }
+
+  @Test
+  public void testRooted()
+    throws UException
+  {
+    final var stringWriter =
+      new StringWriter();
+    final var writer =
+      new PrintWriter(stringWriter);
+    final var executor =
+      UAdjustmentExecutor.ofDryRunBatched(writer, Path.of("/srv/image"));
+
+    executor.execute(List.of(
+      new UAdjustmentGroupCreate(new UGroup(1001, "g", Map.of())),
+      new UAdjustmentUserCreate(new UUser(1001, 1001, "user0", SHELL)),
+      new UAdjustmentUserCreate(new UUser(1002, 1001, "user1", SHELL)),
+      new UAdjustmentUserChangeShell(new UUser(1003, 1001, "user2", SHELL)),
+      new UAdjustmentGroupSetMembers(
+        new UGroup(1001, "g", Map.of()),
+        List.of("user0"))
+    ));
+    writer.flush();
+
+    assertEquals(
+      List.of(
+        "groupadd --prefix /srv/image --gid 1001 g",
+        "newusers --root /srv/image --crypt-method NONE <<'EOF'",
+        "user0:!:1001:1001:::/sbin/nologin",
+        "user1:!:1002:1001:::/sbin/nologin",
+        "EOF",
+        "usermod --prefix /srv/image --shell /sbin/nologin user2",
+        "gpasswd --root /srv/image --members user0 g"
+      ),
+      stringWriter.toString().lines().toList()
+    );
+  }
+
+  @Test
+  public void testRootedSystemRoot()
+    throws UException
+  {
+    final var stringWriter =
+      new StringWriter();
+    final var writer =
+      new PrintWriter(stringWriter);
+    final var executor =
+      UAdjustmentExecutor.ofDryRun(writer, Path.of("/"));
+
+    executor.execute(List.of(
+      new UAdjustmentUserCreate(new UUser(1001, 1001, "user0", SHELL))
+    ));
+    writer.flush();
+
+    assertEquals(
+      List.of("useradd --uid 1001 --gid 1001 --no-create-home user0"),
+      stringWriter.toString().lines().toList()
+    );
+  }
+
+  @Test
+  public void testSinkStreams()
+    throws UException
+  {
+    final var stringWriter =
+      new StringWriter();
+    final var writer =
+      new PrintWriter(stringWriter);
+    final var sink =
+      UAdjustmentExecutor.ofDryRunBatched(writer).sink();
+
+    sink.accept(new UAdjustmentGroupCreate(new UGroup(1001, "g", Map.of())));
+    writer.flush();
+    assertEquals(List.of("groupadd --gid 1001 g"), lines(stringWriter));
+
+    sink.accept(
+      new UAdjustmentUserCreate(new UUser(1001, 1001, "user0", SHELL)));
+    sink.accept(
+      new UAdjustmentUserCreate(new UUser(1002, 1001, "user1", SHELL)));
+    writer.flush();
+    assertEquals(1, lines(stringWriter).size());
+
+    sink.finish();
+    writer.flush();
+    assertEquals(
+      List.of(
+        "groupadd --gid 1001 g",
+        "newusers --crypt-method NONE <<'EOF'",
+        "user0:!:1001:1001:::/sbin/nologin",
+        "user1:!:1002:1001:::/sbin/nologin",
+        "EOF"
+      ),
+      lines(stringWriter)
+    );
+  }
+
+  @Test
+  public void testUserCreateBatchedLimit()
+    throws UException
+  {
+    final var adjustments = new ArrayList<UAdjustmentType>();
+    for (int index = 0; index < 1500; ++index) {
+      adjustments.add(new UAdjustmentUserCreate(
+        new UUser(10000 + index, 1001, "user" + index, SHELL)));
+    }
+
+    final var lines = execute(adjustments, true);
+    assertEquals(
+      2,
+      lines.stream().filter(line -> line.startsWith("newusers")).count()
+    );
+    assertEquals(1500 + 4, lines.size());
+  }
+
+  private static List<String> lines(
+    final StringWriter writer)
+  {
+    return writer.toString().lines().toList();
+  }
 }
@@ -0,0 +1,241 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.tests;
+
+import com.io7m.upgate.core.UAdjustmentExecutor;
+import com.io7m.upgate.core.UAdjustmentGroupChangeGID;
+import com.io7m.upgate.core.UAdjustmentGroupChangeName;
+import com.io7m.upgate.core.UAdjustmentGroupCreate;
+import com.io7m.upgate.core.UAdjustmentGroupSetMembers;
+import com.io7m.upgate.core.UAdjustmentUserChangeName;
+import com.io7m.upgate.core.UAdjustmentUserChangeShell;
+import com.io7m.upgate.core.UAdjustmentUserChangeUID;
+import com.io7m.upgate.core.UAdjustmentUserCreate;
+import com.io7m.upgate.core.UException;
+import com.io7m.upgate.core.UGroup;
+import com.io7m.upgate.core.UUser;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public final class UFilesExecutorTest
+{
+  private static final String SHELL = "/sbin/nologin";
+
+  private Path directory;
+  private Path etc;
+
+  @BeforeEach
+  public void setup()
+    throws IOException
+  {
+    this.directory = UTestDirectories.createTempDirectory();
+    this.etc = this.directory.resolve("etc");
+    Files.createDirectories(this.etc);
+
+    Files.writeString(this.etc.resolve("passwd"), String.join("\n",
+      "root:x:0:0:root:/root:/bin/bash",
+      "# A comment that must be preserved",
+      "y:x:2000:3000::/home/y:/bin/sh",
+      ""
+    ));
+    Files.writeString(this.etc.resolve("group"), String.join("\n",
+      "root:x:0:",
+      "g:x:3000:y,root",
+      ""
+    ));
+    Files.writeString(this.etc.resolve("shadow"), String.join("\n",
+      "root:*:19000:0:99999:7:::",
+      "y:!:19000:0:99999:7:::",
+      ""
+    ));
+    Files.writeString(this.etc.resolve("gshadow"), String.join("\n",
+      "root:*::",
+      "g:!:y:y,root",
+      ""
+    ));
+  }
+
+  @AfterEach
+  public void tearDown()
+    throws IOException
+  {
+    UTestDirectories.deleteDirectory(this.directory);
+  }
+
+  private List<String> lines(
+    final String name)
+    throws IOException
+  {
+    return Files.readAllLines(this.etc.resolve(name));
+  }
+
+  @Test
+  public void testNoChanges()
+    throws Exception
+  {
+    final var before = this.lines("passwd");
+    UAdjustmentExecutor.ofFiles(this.directory).execute(List.of());
+    assertEquals(before, this.lines("passwd"));
+    assertFalse(Files.exists(this.etc.resolve("passwd.lock")));
+  }
+
+  @Test
+  public void testCreate()
+    throws Exception
+  {
+    UAdjustmentExecutor.ofFiles(this.directory)
+      .execute(List.of(
+        new UAdjustmentGroupCreate(new UGroup(3001, "h", Map.of())),
+        new UAdjustmentUserCreate(new UUser(2001, 3001, "z", SHELL))
+      ));
+
+    final var passwd = this.lines("passwd");
+    assertEquals(4, passwd.size());
+    assertEquals("# A comment that must be preserved", passwd.get(1));
+    assertEquals("z:x:2001:3001::/home/z:/sbin/nologin", passwd.get(3));
+
+    final var group = this.lines("group");
+    assertEquals("h:x:3001:", group.get(2));
+    assertEquals("h:!::", this.lines("gshadow").get(2));
+    assertTrue(this.lines("shadow").get(2).startsWith("z:!:"));
+
+    for (final var name : List.of("passwd", "group", "shadow", "gshadow")) {
+      assertFalse(Files.exists(this.etc.resolve(name + ".lock")));
+      assertFalse(Files.exists(this.etc.resolve(name + "+")));
+    }
+  }
+
+  @Test
+  public void testChanges()
+    throws Exception
+  {
+    UAdjustmentExecutor.ofFiles(this.directory)
+      .execute(List.of(
+        new UAdjustmentGroupChangeGID(new UGroup(3005, "g", Map.of())),
+        new UAdjustmentGroupChangeName("g", new UGroup(3005, "k", Map.of())),
+        new UAdjustmentUserChangeName("y", new UUser(2000, 3005, "x", SHELL)),
+        new UAdjustmentUserChangeUID(new UUser(2002, 3005, "x", SHELL)),
+        new UAdjustmentUserChangeShell(new UUser(2002, 3005, "x", SHELL))
+      ));
+
+    assertEquals(
+      List.of(
+        "root:x:0:0:root:/root:/bin/bash",
+        "# A comment that must be preserved",
+        "x:x:2002:3005::/home/y:/sbin/nologin"
+      ),
+      this.lines("passwd"));
+    assertEquals(
+      List.of("root:x:0:", "k:x:3005:x,root"),
+      this.lines("group"));
+    assertEquals(
+      List.of("root:*::", "k:!:x:x,root"),
+      this.lines("gshadow"));
+    assertEquals(
+      "x:!:19000:0:99999:7:::",
+      this.lines("shadow").get(1));
+  }
+
+  @Test
+  public void testCreatePrimaryGroupMissing()
+    throws Exception
+  {
+    final var before = this.lines("passwd");
+
+    final var ex = assertThrows(UException.class, () -> {
+      UAdjustmentExecutor.ofFiles(this.directory)
+        .execute(List.of(
+          new UAdjustmentUserCreate(new UUser(2001, 3001, "z", SHELL))
+        ));
+    });
+
+    assertEquals("error-group-nonexistent", ex.errorCode());
+    assertEquals("3001", ex.attributes().get("Group ID"));
+    assertEquals(before, this.lines("passwd"));
+  }
+
+  @Test
+  public void testFailureWritesNothing()
+    throws Exception
+  {
+    final var before = this.lines("group");
+
+    final var ex = assertThrows(UException.class, () -> {
+      UAdjustmentExecutor.ofFiles(this.directory)
+        .execute(List.of(
+          new UAdjustmentGroupCreate(new UGroup(3001, "h", Map.of())),
+          new UAdjustmentUserChangeShell(new UUser(1, 1, "nonexistent", SHELL))
+        ));
+    });
+
+    assertEquals("error-user-nonexistent", ex.errorCode());
+    assertEquals(before, this.lines("group"));
+  }
+
+  @Test
+  public void testLocked()
+    throws Exception
+  {
+    Files.writeString(this.etc.resolve("group.lock"), "1");
+
+    final var ex = assertThrows(UException.class, () -> {
+      UAdjustmentExecutor.ofFiles(this.directory)
+        .execute(List.of(
+          new UAdjustmentGroupCreate(new UGroup(3001, "h", Map.of()))
+        ));
+    });
+
+    assertEquals("error-database-locked", ex.errorCode());
+    assertTrue(Files.exists(this.etc.resolve("group.lock")));
+    assertFalse(Files.exists(this.etc.resolve("passwd.lock")));
+  }
+
+  @Test
+  public void testSetMembers()
+    throws Exception
+  {
+    UAdjustmentExecutor.ofFiles(this.directory)
+      .execute(List.of(
+        new UAdjustmentGroupSetMembers(
+          new UGroup(3000, "g", Map.of()),
+          List.of("root")),
+        new UAdjustmentGroupSetMembers(
+          new UGroup(0, "root", Map.of()),
+          List.of("root", "y"))
+      ));
+
+    assertEquals(
+      List.of("root:x:0:root,y", "g:x:3000:root"),
+      this.lines("group"));
+    assertEquals(
+      List.of("root:*::root,y", "g:!:y:root"),
+      this.lines("gshadow"));
+  }
+}
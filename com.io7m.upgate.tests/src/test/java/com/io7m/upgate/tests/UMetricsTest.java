@@ -0,0 +1,138 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.tests;
+
+import com.io7m.upgate.core.UAdjustmentGroupCreate;
+import com.io7m.upgate.core.UAdjustmentUserCreate;
+import com.io7m.upgate.core.UGroup;
+import com.io7m.upgate.core.UMetrics;
+import com.io7m.upgate.core.UMetricsFormat;
+import com.io7m.upgate.core.UUser;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public final class UMetricsTest
+{
+  private Path directory;
+
+  @BeforeEach
+  public void setup()
+    throws IOException
+  {
+    this.directory = UTestDirectories.createTempDirectory();
+  }
+
+  @AfterEach
+  public void tearDown()
+    throws IOException
+  {
+    UTestDirectories.deleteDirectory(this.directory);
+  }
+
+  private static UMetrics metrics()
+  {
+    final var metrics = new UMetrics();
+    try (var ignored = metrics.phase("parse")) {
+      metrics.entriesRead("passwd", 23);
+    }
+    final var user = new UUser(1000, 1000, "u0", "/bin/sh");
+    metrics.adjustmentsCalculated(List.of(
+      new UAdjustmentUserCreate(user),
+      new UAdjustmentUserCreate(user),
+      new UAdjustmentGroupCreate(new UGroup(1000, "g0", Map.of()))
+    ));
+    metrics.commandCompleted("useradd", 2_000_000_000L);
+    metrics.commandCompleted("useradd", 1_000_000_000L);
+    metrics.commandCompleted("group\"add", 500_000_000L);
+    metrics.finished(Instant.ofEpochSecond(1_700_000_000L), true);
+    return metrics;
+  }
+
+  @Test
+  public void testPrometheus()
+  {
+    final var text = metrics().toPrometheus();
+    final var lines = List.of(text.split("\n"));
+
+    assertTrue(lines.contains("upgate_apply_success 1"));
+    assertTrue(lines.contains("upgate_apply_timestamp_seconds 1700000000"));
+    assertTrue(lines.contains("upgate_entries_read{source=\"passwd\"} 23"));
+    assertTrue(lines.contains("upgate_adjustments{type=\"UserCreate\"} 2"));
+    assertTrue(lines.contains("upgate_adjustments{type=\"GroupCreate\"} 1"));
+    assertTrue(lines.contains(
+      "upgate_command_duration_seconds_sum{command=\"useradd\"} 3.0"));
+    assertTrue(lines.contains(
+      "upgate_command_duration_seconds_count{command=\"useradd\"} 2"));
+    assertTrue(lines.contains(
+      "upgate_command_duration_seconds_max{command=\"useradd\"} 2.0"));
+    assertTrue(lines.contains(
+      "upgate_command_duration_seconds_count{command=\"group\\\"add\"} 1"));
+    assertTrue(lines.contains(
+      "# TYPE upgate_command_duration_seconds summary"));
+    assertTrue(lines.stream().anyMatch(
+      s -> s.startsWith("upgate_phase_duration_seconds{phase=\"parse\"} ")));
+  }
+
+  @Test
+  public void testJSON()
+  {
+    final var text = metrics().toJSON();
+    assertTrue(text.contains("\"success\": true"));
+    assertTrue(text.contains("\"timestamp\": \"2023-11-14T22:13:20Z\""));
+    assertTrue(text.contains("\"passwd\": 23"));
+    assertTrue(text.contains("\"UserCreate\": 2"));
+    assertTrue(text.contains(
+      "\"useradd\": { \"count\": 2, \"sum\": 3.0, \"max\": 2.0 }"));
+    assertTrue(text.contains("\"group\\\"add\": { \"count\": 1"));
+    assertTrue(text.contains("\"parse\": "));
+  }
+
+  @Test
+  public void testEmpty()
+  {
+    final var text = new UMetrics().toJSON();
+    assertTrue(text.contains("\"success\": false"));
+    assertTrue(text.contains("\"commands\": {}"));
+    assertFalse(new UMetrics().toPrometheus().contains("{"));
+  }
+
+  @Test
+  public void testWrite()
+    throws IOException
+  {
+    final var file = this.directory.resolve("upgate.prom");
+    final var metrics = metrics();
+    metrics.write(file, UMetricsFormat.PROMETHEUS);
+    assertEquals(metrics.toPrometheus(), Files.readString(file));
+    metrics.write(file, UMetricsFormat.JSON);
+    assertEquals(metrics.toJSON(), Files.readString(file));
+    assertEquals(List.of(file), Files.list(this.directory).toList());
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.upgate.tests;
+
+import com.io7m.upgate.core.UConfiguration;
+import com.io7m.upgate.core.UException;
+import com.io7m.upgate.core.UGroup;
+import com.io7m.upgate.core.UGroupDatabase;
+import com.io7m.upgate.core.UMain;
+import com.io7m.upgate.core.UPlan;
+import com.io7m.upgate.core.UUser;
+import com.io7m.upgate.core.UUserDatabase;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public final class UPlanTest
+{
+  private static final String SHELL = "/sbin/nologin";
+
+  private UConfiguration configuration;
+  private UUserDatabase users;
+  private UGroupDatabase groups;
+  private Path directory;
+
+  @BeforeEach
+  public void setup()
+    throws IOException
+  {
+    this.directory = UTestDirectories.createTempDirectory();
+
+    final var user0 = new UUser(1000, 1000, "user0", SHELL);
+    final var user1 = new UUser(1001, 1000, "user1", SHELL);
+
+    this.configuration =
+      new UConfiguration(
+        List.of(user0, user1),
+        List.of(
+          new UGroup(1000, "group0", Map.of("user0", user0, "user1", user1))
+        ));
+
+    this.users =
+      new UUserDatabase(List.of(
+        new UUserDatabase.UUserDatabaseEntry("root", 0, 0, "/bin/sh"),
+        new UUserDatabase.UUserDatabaseEntry("user0", 999, 1000, SHELL),
+        new UUserDatabase.UUserDatabaseEntry("other", 1001, 1000, "/bin/sh")
+      ));
+    this.groups =
+      new UGroupDatabase(List.of(
+        new UGroupDatabase.UGroupDatabaseEntry("root", 0, List.of()),
+        new UGroupDatabase.UGroupDatabaseEntry(
+          "group0", 1000, List.of("other"))
+      ));
+  }
+
+  @AfterEach
+  public void tearDown()
+    throws IOException
+  {
+    UTestDirectories.deleteDirectory(this.directory);
+  }
+
+  @Test
+  public void testRoundTrip()
+    throws Exception
+  {
+    final var plan =
+      UPlan.create(this.users, this.groups, this.configuration);
+
+    assertEquals(3, plan.adjustments().size());
+
+    final var output = new ByteArrayOutputStream();
+    plan.write(output);
+
+    final var read =
+      UPlan.read(new ByteArrayInputStream(output.toByteArray()));
+    assertEquals(plan, read);
+    read.verify(this.users, this.groups);
+  }
+
+  @Test
+  public void testUnrelatedChangesAccepted()
+    throws Exception
+  {
+    final var plan =
+      UPlan.create(this.users, this.groups, this.configuration);
+
+    plan.verify(
+      new UUserDatabase(List.of(
+        new UUserDatabase.UUserDatabaseEntry("user0", 999, 1000, SHELL),
+        new UUserDatabase.UUserDatabaseEntry("other", 1001, 1000, "/bin/sh"),
+        new UUserDatabase.UUserDatabaseEntry("new", 2000, 2000, "/bin/sh")
+      )),
+      new UGroupDatabase(List.of(
+        new UGroupDatabase.UGroupDatabaseEntry(
+          "group0", 1000, List.of("other")),
+        new UGroupDatabase.UGroupDatabaseEntry("new", 2000, List.of())
+      ))
+    );
+  }
+
+  @Test
+  public void testStale()
+    throws Exception
+  {
+    final var plan =
+      UPlan.create(this.users, this.groups, this.configuration);
+
+    final var ex = assertThrows(UException.class, () -> {
+      plan.verify(
+        new UUserDatabase(List.of(
+          new UUserDatabase.UUserDatabaseEntry("user0", 999, 1000, "/bin/sh"),
+          new UUserDatabase.UUserDatabaseEntry("other", 1001, 1000, "/bin/sh")
+        )),
+        this.groups
+      );
+    });
+    assertEquals("error-plan-stale", ex.errorCode());
+
+    final var exGroups = assertThrows(UException.class, () -> {
+      plan.verify(
+        this.users,
+        new UGroupDatabase(List.of(
+          new UGroupDatabase.UGroupDatabaseEntry(
+            "group0", 1000, List.of("other", "user0"))
+        ))
+      );
+    });
+    assertEquals("error-plan-stale", exGroups.errorCode());
+  }
+
+  @Test
+  public void testMalformed()
+    throws Exception
+  {
+    final var plan =
+      UPlan.create(this.users, this.groups, this.configuration);
+
+    final var output = new ByteArrayOutputStream();
+    plan.write(output);
+    final var bytes = output.toByteArray();
+
+    final var badMagic = Arrays.copyOf(bytes, bytes.length);
+    badMagic[0] = 0;
+    final var ex = assertThrows(UException.class, () -> {
+      UPlan.read(new ByteArrayInputStream(badMagic));
+    });
+    assertEquals("error-plan-malformed", ex.errorCode());
+
+    final var trailing = Arrays.copyOf(bytes, bytes.length + 1);
+    final var exTrailing = assertThrows(UException.class, () -> {
+      UPlan.read(new ByteArrayInputStream(trailing));
+    });
+    assertEquals("error-plan-malformed", exTrailing.errorCode());
+
+    final var truncated = Arrays.copyOf(bytes, bytes.length - 1);
+    assertThrows(EOFException.class, () -> {
+      UPlan.read(new ByteArrayInputStream(truncated));
+    });
+  }
+
+  @Test
+  public void testCommandLine()
+    throws Exception
+  {
+    final var file =
+      UTestDirectories.resourceOf(
+        UPlanTest.class,
+        this.directory,
+        "config0.xml");
+    final var root =
+      this.directory.resolve("root");
+    final var planFile =
+      this.directory.resolve("host.plan");
+
+    Files.createDirectories(root.resolve("etc"));
+    Files.writeString(
+      root.resolve("etc/passwd"),
+      "root:x:0:0:root:/root:/bin/sh\n");
+    Files.writeString(
+      root.resolve("etc/group"),
+      "root:x:0:\n");
+
+    assertEquals(0, UMain.mainExitless(new String[]{
+      "plan",
+      "--configuration", file.toString(),
+      "--root", root.toString(),
+      "--output", planFile.toString()
+    }));
+    assertTrue(Files.isRegularFile(planFile));
+
+    assertEquals(0, UMain.mainExitless(new String[]{
+      "apply",
+      "--plan", planFile.toString(),
+      "--root", root.toString(),
+      "--dry-run", "true"
+    }));
+
+    assertNotEquals(0, UMain.mainExitless(new String[]{
+      "apply",
+      "--plan", planFile.toString(),
+      "--root", root.toString(),
+      "--dry-run", "true",
+      "--stream", "true"
+    }));
+  }
+}
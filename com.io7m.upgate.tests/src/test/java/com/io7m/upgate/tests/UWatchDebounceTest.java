@@ -0,0 +1,116 @@
+/*
+ * Copyright © 2023 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.upgate.tests;
+
+import com.io7m.upgate.core.UWatchDebounce;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public final class UWatchDebounceTest
+{
+  private static final Path CONFIGURATION =
+    Path.of("/etc/upgate/config.xml");
+  private static final Path PASSWD =
+    Path.of("/etc/passwd");
+  private static final Path GROUP =
+    Path.of("/etc/group");
+  private static final Path UNRELATED =
+    Path.of("/etc/motd");
+  private static final long MILLIS = 1_000_000L;
+
+  private static UWatchDebounce debounce()
+  {
+    return new UWatchDebounce(CONFIGURATION, Duration.ofSeconds(1L));
+  }
+
+  @Test
+  public void testUnrelatedEventIgnored()
+  {
+    final var debounce = debounce();
+
+    assertFalse(debounce.onEvent(UNRELATED, 0L));
+    assertTrue(debounce.waitTime(0L).isEmpty());
+    assertTrue(debounce.take(2_000L * MILLIS).isEmpty());
+
+    assertTrue(debounce.onEvent(PASSWD, 0L));
+    assertFalse(debounce.onEvent(UNRELATED, 900L * MILLIS));
+    assertEquals(100L * MILLIS, debounce.waitTime(900L * MILLIS).getAsLong());
+
+    final var changes = debounce.take(1_000L * MILLIS).orElseThrow();
+    assertTrue(changes.databases());
+    assertFalse(changes.configuration());
+  }
+
+  @Test
+  public void testBurstReconcilesOnce()
+  {
+    final var debounce = debounce();
+    final var taken = new ArrayList<Long>();
+
+    for (long time = 0L; time <= 5_000L; time += 50L) {
+      if (time <= 900L && time % 100L == 0L) {
+        debounce.onEvent(time == 500L ? GROUP : PASSWD, time * MILLIS);
+        debounce.onEvent(UNRELATED, time * MILLIS);
+      }
+      if (debounce.take(time * MILLIS).isPresent()) {
+        taken.add(Long.valueOf(time));
+      }
+    }
+
+    assertEquals(1, taken.size());
+    assertEquals(1_900L, taken.get(0).longValue());
+  }
+
+  @Test
+  public void testWatchedFilesTrigger()
+  {
+    for (final var path : new Path[]{PASSWD, GROUP}) {
+      final var debounce = debounce();
+      assertTrue(debounce.onEvent(path, 0L));
+      assertTrue(debounce.take(999L * MILLIS).isEmpty());
+
+      final var changes = debounce.take(1_000L * MILLIS).orElseThrow();
+      assertTrue(changes.databases());
+      assertFalse(changes.configuration());
+      assertTrue(debounce.take(2_000L * MILLIS).isEmpty());
+    }
+
+    final var debounce = debounce();
+    assertTrue(debounce.onEvent(CONFIGURATION, 0L));
+    final var changes = debounce.take(1_000L * MILLIS).orElseThrow();
+    assertTrue(changes.configuration());
+    assertFalse(changes.databases());
+  }
+
+  @Test
+  public void testOverflow()
+  {
+    final var debounce = debounce();
+    debounce.onOverflow(0L);
+
+    final var changes = debounce.take(1_000L * MILLIS).orElseThrow();
+    assertTrue(changes.configuration());
+    assertTrue(changes.databases());
+  }
+}